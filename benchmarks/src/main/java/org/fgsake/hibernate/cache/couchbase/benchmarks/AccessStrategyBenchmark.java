@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.benchmarks;
+
+import org.fgsake.hibernate.cache.couchbase.CouchbaseRegionFactory;
+import org.fgsake.hibernate.cache.couchbase.internal.LocalBackendFactory;
+import org.hibernate.cache.internal.CacheDataDescriptionImpl;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.cache.spi.EntityRegion;
+import org.hibernate.cache.spi.access.AccessType;
+import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.hibernate.internal.util.compare.ComparableComparator;
+import org.hibernate.type.LongType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The read-write entity access strategy, through the region factory, against
+ * an {@link InMemoryMemcachedClient} or the
+ * {@link LocalBackendFactory local backend}. This measures the provider's own
+ * overhead (keys, transcoding, lock handling) with the network taken out, and
+ * compares the two backends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessStrategyBenchmark {
+    private static final int KEYS = 1024;
+    private static final String REGION = "com.example.Person";
+
+    @State(Scope.Benchmark)
+    public static class Cache {
+        @Param({"0", "1000"})
+        public int nearCacheEntries;
+
+        @Param({"memcached", "local"})
+        public String backend;
+
+        private CouchbaseRegionFactory factory;
+        private EntityRegionAccessStrategy strategy;
+        private CacheKey[] keys;
+        private Object[] value;
+        private final AtomicInteger threads = new AtomicInteger();
+
+        @Setup
+        public void setup() {
+            Properties props = new Properties();
+            props.setProperty(CouchbaseRegionFactory.CACHE_CLIENT_FACTORY_PROPERTY, InMemoryClientFactory.class.getName());
+            if (backend.equals("local")) {
+                props.setProperty(CouchbaseRegionFactory.CACHE_BACKEND_FACTORY_PROPERTY, LocalBackendFactory.class.getName());
+            }
+            props.setProperty(CouchbaseRegionFactory.CACHE_NEAR_CACHE_MAX_ENTRIES_PROPERTY, String.valueOf(nearCacheEntries));
+            props.setProperty(CouchbaseRegionFactory.CACHE_JMX_ENABLED_PROPERTY, "false");
+
+            factory = new CouchbaseRegionFactory();
+            factory.start(null, props);
+            EntityRegion region = factory.buildEntityRegion(REGION, props,
+                    new CacheDataDescriptionImpl(true, true, ComparableComparator.INSTANCE));
+            strategy = region.buildAccessStrategy(AccessType.READ_WRITE);
+
+            keys = new CacheKey[KEYS];
+            for (int i = 0; i < KEYS; i++) {
+                keys[i] = new CacheKey((long) i, LongType.INSTANCE, REGION, null, null);
+            }
+            value = new Object[]{"Jane", "Doe", 42, "jane.doe@example.com", Boolean.TRUE};
+
+            long txTimestamp = factory.nextTimestamp();
+            for (CacheKey key : keys) {
+                strategy.putFromLoad(key, value, txTimestamp, 1);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            factory.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+        private int version = 1;
+        // Threads write to disjoint keys unless the benchmark uses a shared one
+        private int base;
+
+        @Setup
+        public void setup(Cache cache) {
+            base = cache.threads.getAndIncrement() * 16;
+        }
+
+        CacheKey nextKey(Cache cache) {
+            return cache.keys[next++ & (KEYS - 1)];
+        }
+
+        CacheKey ownKey(Cache cache) {
+            return cache.keys[base & (KEYS - 1)];
+        }
+    }
+
+    @Benchmark
+    public Object getHit(Cache cache, Cursor cursor) {
+        return cache.strategy.get(cursor.nextKey(cache), Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object getHitContended(Cache cache, Cursor cursor) {
+        return cache.strategy.get(cursor.nextKey(cache), Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public boolean putFromLoadExisting(Cache cache, Cursor cursor) {
+        return cache.strategy.putFromLoad(cursor.nextKey(cache), cache.value, cache.factory.nextTimestamp(), 1);
+    }
+
+    @Benchmark
+    public boolean putFromLoadMissing(Cache cache, Cursor cursor) {
+        CacheKey key = cursor.nextKey(cache);
+        cache.strategy.evict(key);
+        return cache.strategy.putFromLoad(key, cache.value, cache.factory.nextTimestamp(), 1);
+    }
+
+    @Benchmark
+    public boolean writeCycle(Cache cache, Cursor cursor) {
+        return writeCycle(cache, cursor, cursor.ownKey(cache));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean writeCycleDisjoint(Cache cache, Cursor cursor) {
+        return writeCycle(cache, cursor, cursor.ownKey(cache));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean writeCycleSharedKey(Cache cache, Cursor cursor) {
+        return writeCycle(cache, cursor, cache.keys[0]);
+    }
+
+    /**
+     * What Hibernate does for an update to a cached entity: lock, then
+     * replace the lock with the new state after commit.
+     */
+    private static boolean writeCycle(Cache cache, Cursor cursor, CacheKey key) {
+        int previous = cursor.version++;
+        SoftLock lock = cache.strategy.lockItem(key, previous);
+        cache.strategy.update(key, cache.value, cursor.version, previous);
+        return cache.strategy.afterUpdate(key, cache.value, cursor.version, previous, lock);
+    }
+}
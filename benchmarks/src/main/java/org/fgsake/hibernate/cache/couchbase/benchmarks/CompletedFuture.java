@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.benchmarks;
+
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Future for an operation {@link InMemoryMemcachedClient} has already carried
+ * out.
+ */
+final class CompletedFuture<T> extends OperationFuture<T> {
+    private static final OperationStatus SUCCESS = new OperationStatus(true, "OK", StatusCode.SUCCESS);
+
+    private final T value;
+    private final OperationStatus status;
+
+    CompletedFuture(String key, T value, StatusCode code, ExecutorService executor) {
+        super(key, new CountDownLatch(0), 0, executor);
+        this.value = value;
+        this.status = code == StatusCode.SUCCESS ? SUCCESS : new OperationStatus(false, code.name(), code);
+        set(value, status);
+    }
+
+    @Override
+    public T get() {
+        return value;
+    }
+
+    @Override
+    public T get(long duration, TimeUnit unit) {
+        return value;
+    }
+
+    @Override
+    public OperationStatus getStatus() {
+        return status;
+    }
+
+    @Override
+    public boolean cancel(boolean ign) {
+        return false;
+    }
+
+    @Override
+    public boolean cancel() {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return true;
+    }
+}
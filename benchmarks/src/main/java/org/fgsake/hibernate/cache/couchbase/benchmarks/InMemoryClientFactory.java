@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.benchmarks;
+
+import net.spy.memcached.MemcachedClient;
+import org.fgsake.hibernate.cache.couchbase.MemcachedClientFactory;
+
+import java.util.Properties;
+
+/**
+ * Creates an {@link InMemoryMemcachedClient}, for benchmarking the region
+ * factory without a Couchbase cluster.
+ */
+public class InMemoryClientFactory implements MemcachedClientFactory {
+    public MemcachedClient create(Properties props) throws Exception {
+        return InMemoryMemcachedClient.create();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.benchmarks;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.transcoders.Transcoder;
+import org.fgsake.hibernate.cache.couchbase.internal.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link MemcachedClient} backed by a map, overriding the operations
+ * {@code ClientWrapper} uses. Items are encoded and decoded as they would be
+ * on the wire, so transcoding costs are included, but there's no network.
+ * Expiry is ignored.
+ * <p>
+ * {@code MemcachedClient} insists on connecting somewhere, so it's given a
+ * local socket that never sees any traffic.
+ */
+public class InMemoryMemcachedClient extends MemcachedClient {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ServerSocket socket;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Item> items = new ConcurrentHashMap<String, Item>();
+    private final AtomicLong casCounter = new AtomicLong();
+
+    public static InMemoryMemcachedClient create() throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        ServerSocket socket = new ServerSocket(0, 1, loopback);
+        return new InMemoryMemcachedClient(socket, new InetSocketAddress(loopback, socket.getLocalPort()));
+    }
+
+    private InMemoryMemcachedClient(ServerSocket socket, InetSocketAddress address) throws IOException {
+        super(new ConnectionFactoryBuilder().setDaemon(true).build(), Collections.singletonList(address));
+        this.socket = socket;
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("in-memory-listener"));
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public <T> OperationFuture<Boolean> add(String key, int exp, T o, Transcoder<T> tc) {
+        boolean added = items.putIfAbsent(key, new Item(tc.encode(o), casCounter.incrementAndGet())) == null;
+        return future(key, added, added ? StatusCode.SUCCESS : StatusCode.ERR_EXISTS);
+    }
+
+    @Override
+    public <T> OperationFuture<Boolean> set(String key, int exp, T o, Transcoder<T> tc) {
+        items.put(key, new Item(tc.encode(o), casCounter.incrementAndGet()));
+        return future(key, true, StatusCode.SUCCESS);
+    }
+
+    @Override
+    public <T> CASResponse cas(String key, long casId, int exp, T value, Transcoder<T> tc) {
+        Item current = items.get(key);
+        if (current == null) {
+            return CASResponse.NOT_FOUND;
+        } else if (current.cas != casId) {
+            return CASResponse.EXISTS;
+        }
+        return items.replace(key, current, new Item(tc.encode(value), casCounter.incrementAndGet()))
+                ? CASResponse.OK
+                : CASResponse.EXISTS;
+    }
+
+    @Override
+    public <T> OperationFuture<CASResponse> asyncCAS(String key, long casId, int exp, T value, Transcoder<T> tc) {
+        CASResponse rsp = cas(key, casId, exp, value, tc);
+        return future(key, rsp, rsp == CASResponse.OK ? StatusCode.SUCCESS
+                : rsp == CASResponse.NOT_FOUND ? StatusCode.ERR_NOT_FOUND : StatusCode.ERR_EXISTS);
+    }
+
+    @Override
+    public OperationFuture<Boolean> delete(String key) {
+        boolean deleted = items.remove(key) != null;
+        return future(key, deleted, deleted ? StatusCode.SUCCESS : StatusCode.ERR_NOT_FOUND);
+    }
+
+    @Override
+    public <T> T get(String key, Transcoder<T> tc) {
+        Item item = items.get(key);
+        return item != null ? tc.decode(item.data) : null;
+    }
+
+    @Override
+    public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) {
+        Map<String, T> values = new HashMap<String, T>();
+        for (String key : keys) {
+            Item item = items.get(key);
+            if (item != null) {
+                values.put(key, tc.decode(item.data));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public <T> CASValue<T> gets(String key, Transcoder<T> tc) {
+        Item item = items.get(key);
+        return item != null ? new CASValue<T>(item.cas, tc.decode(item.data)) : null;
+    }
+
+    @Override
+    public <T> OperationFuture<CASValue<T>> asyncGets(String key, Transcoder<T> tc) {
+        CASValue<T> value = gets(key, tc);
+        return future(key, value, value != null ? StatusCode.SUCCESS : StatusCode.ERR_NOT_FOUND);
+    }
+
+    @Override
+    public long incr(String key, int by, long def, int exp) {
+        while (true) {
+            Item current = items.get(key);
+            if (current == null) {
+                if (items.putIfAbsent(key, counter(def)) == null) {
+                    return def;
+                }
+                continue;
+            }
+
+            long next = Long.parseLong(new String(current.data.getData(), ASCII)) + by;
+            if (items.replace(key, current, counter(next))) {
+                return next;
+            }
+        }
+    }
+
+    @Override
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        executor.shutdownNow();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing listens on it anyway
+        }
+        return super.shutdown(timeout, unit);
+    }
+
+    private Item counter(long value) {
+        return new Item(new CachedData(0, Long.toString(value).getBytes(ASCII), CachedData.MAX_SIZE), casCounter.incrementAndGet());
+    }
+
+    private <T> OperationFuture<T> future(String key, T value, StatusCode code) {
+        return new CompletedFuture<T>(key, value, code, executor);
+    }
+
+    private static final class Item {
+        final CachedData data;
+        final long cas;
+
+        Item(CachedData data, long cas) {
+            this.data = data;
+            this.cas = cas;
+        }
+    }
+}
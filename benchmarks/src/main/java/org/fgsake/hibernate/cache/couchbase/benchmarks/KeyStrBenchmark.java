@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.benchmarks;
+
+import org.fgsake.hibernate.cache.couchbase.internal.ClientWrapper;
+import org.fgsake.hibernate.cache.couchbase.internal.CouchbaseGeneralDataRegion;
+import org.fgsake.hibernate.cache.couchbase.internal.DaemonThreadFactory;
+import org.fgsake.hibernate.cache.couchbase.internal.Generations;
+import org.fgsake.hibernate.cache.couchbase.internal.RegionSettings;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.transform.CacheableResultTransformer;
+import org.hibernate.type.LongType;
+import org.hibernate.type.StringType;
+import org.hibernate.type.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning entity and query keys into Couchbase key strings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyStrBenchmark {
+    // More than the region's query key cache holds
+    private static final int DISTINCT_QUERY_KEYS = 1024;
+
+    private ClientWrapper client;
+    private ScheduledExecutorService scheduler;
+    private KeyRegion region;
+    private CacheKey entityKey;
+    private CacheKey longEntityKey;
+    private QueryKey queryKey;
+    private QueryKey[] distinctQueryKeys;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        client = new ClientWrapper(InMemoryMemcachedClient.create());
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("benchmark"));
+        Generations generations = new Generations(client, scheduler, 1, TimeUnit.SECONDS);
+        region = new KeyRegion(client, "com.example.Person", generations.register("com.example.Person"));
+
+        entityKey = new CacheKey(1234567L, LongType.INSTANCE, "com.example.Person", null, null);
+        StringBuilder id = new StringBuilder();
+        while (id.length() < 300) {
+            id.append("a-rather-long-natural-identifier-");
+        }
+        longEntityKey = new CacheKey(id.toString(), StringType.INSTANCE, "com.example.Person", null, null);
+
+        queryKey = queryKey(0);
+        distinctQueryKeys = new QueryKey[DISTINCT_QUERY_KEYS];
+        for (int i = 0; i < DISTINCT_QUERY_KEYS; i++) {
+            distinctQueryKeys[i] = queryKey(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdownNow();
+        client.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public String entityKey() {
+        return region.keyStr(entityKey);
+    }
+
+    @Benchmark
+    public String longEntityKey() {
+        return region.keyStr(longEntityKey);
+    }
+
+    @Benchmark
+    public String queryKeyCached() {
+        return region.keyStr(queryKey);
+    }
+
+    @Benchmark
+    public String queryKeyUncached() {
+        return region.keyStr(distinctQueryKeys[next++ & (DISTINCT_QUERY_KEYS - 1)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String queryKeyCachedContended() {
+        return region.keyStr(queryKey);
+    }
+
+    private static QueryKey queryKey(int i) throws Exception {
+        Map<String, TypedValue> named = new HashMap<String, TypedValue>();
+        named.put("name", new TypedValue(StringType.INSTANCE, "name-" + i));
+        named.put("minAge", new TypedValue(LongType.INSTANCE, 18L));
+
+        // The constructor is package-private, and generateQueryKey needs a session
+        Constructor<QueryKey> c = QueryKey.class.getDeclaredConstructor(String.class, Type[].class, Object[].class,
+                Map.class, Integer.class, Integer.class, Set.class, String.class, CacheableResultTransformer.class);
+        c.setAccessible(true);
+        return c.newInstance("select p.id, p.name, p.age from Person p where p.name = :name and p.age >= :minAge and p.org_id = ?",
+                new Type[]{LongType.INSTANCE}, new Object[]{42L}, named, 0, 50, null, null, null);
+    }
+
+    static final class KeyRegion extends CouchbaseGeneralDataRegion {
+        KeyRegion(ClientWrapper client, String name, Generations.Generation generation) {
+            super(client, name, generation, new RegionSettings(0, 30000000, false, -1, false, 0, 0));
+        }
+
+        String keyStr(Object key) {
+            return keyStrFor(key);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.benchmarks;
+
+import net.spy.memcached.CachedData;
+import org.fgsake.hibernate.cache.couchbase.internal.CacheData;
+import org.fgsake.hibernate.cache.couchbase.internal.CacheLock;
+import org.fgsake.hibernate.cache.couchbase.internal.CacheTranscoder;
+import org.fgsake.hibernate.cache.couchbase.internal.CompressionCodec;
+import org.fgsake.hibernate.cache.couchbase.internal.JavaValueSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding cache entries and locks, with the payload being a
+ * disassembled entity whose text column is {@code size} characters long.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranscoderBenchmark {
+    private static final String[] WORDS = {"cache", "couchbase", "hibernate", "entity", "region", "lock", "the", "a", "of"};
+
+    @Param({"64", "1024", "16384", "262144"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean compact;
+
+    @Param({"none", "gzip", "lz4"})
+    public String codec;
+
+    private CacheTranscoder transcoder;
+    private CacheData data;
+    private CacheLock lock;
+    private CachedData encodedData;
+    private CachedData encodedLock;
+
+    @Setup
+    public void setup() {
+        transcoder = new CacheTranscoder(new JavaValueSerializer(), compact, CompressionCodec.forName(codec), 16384);
+
+        StringBuilder text = new StringBuilder(size);
+        Random random = new Random(42);
+        while (text.length() < size) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        text.setLength(size);
+        Object[] state = {1234567L, "Jane", "Doe", 42, text.toString(), Boolean.TRUE};
+
+        data = new CacheData(System.currentTimeMillis() * 1000, 7, state, -1);
+        lock = new CacheLock(7, System.currentTimeMillis() * 1000 + 30000000, -1);
+        encodedData = transcoder.encode(data);
+        encodedLock = transcoder.encode(lock);
+    }
+
+    @Benchmark
+    public CachedData encodeData() {
+        return transcoder.encode(data);
+    }
+
+    @Benchmark
+    public Object decodeData() {
+        return transcoder.decode(encodedData);
+    }
+
+    @Benchmark
+    public Object roundTripData() {
+        return transcoder.decode(transcoder.encode(data));
+    }
+
+    @Benchmark
+    public Object roundTripLock() {
+        return transcoder.decode(transcoder.encode(lock));
+    }
+
+    @Benchmark
+    public Object decodeLock() {
+        return transcoder.decode(encodedLock);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where regions store their items. The operations are those of
+ * {@link net.spy.memcached.MemcachedClient} that the regions rely on, with
+ * the same semantics: items have a CAS value that changes on every write,
+ * expiries are in seconds, up to 30 days relative and absolute beyond, and
+ * failed writes complete their future with an unsuccessful status rather
+ * than throwing.
+ */
+public interface CacheBackend {
+    <T> T get(String key, Transcoder<T> tc);
+
+    <T> CASValue<T> gets(String key, Transcoder<T> tc);
+
+    <T> OperationFuture<CASValue<T>> asyncGets(String key, Transcoder<T> tc);
+
+    <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc);
+
+    <T> BulkFuture<Map<String, T>> asyncGetBulk(Collection<String> keys, Transcoder<T> tc);
+
+    <T> OperationFuture<Boolean> add(String key, int exp, T o, Transcoder<T> tc);
+
+    <T> OperationFuture<Boolean> set(String key, int exp, T o, Transcoder<T> tc);
+
+    <T> CASResponse cas(String key, long casId, int exp, T value, Transcoder<T> tc);
+
+    <T> OperationFuture<CASResponse> asyncCAS(String key, long casId, int exp, T value, Transcoder<T> tc);
+
+    OperationFuture<Boolean> delete(String key);
+
+    OperationFuture<Boolean> touch(String key, int exp);
+
+    /**
+     * Adds {@code by} to a numeric item, keeping its expiry, or creates it
+     * with the value {@code def} expiring after {@code exp}.
+     *
+     * @return the new value, or -1 if the item isn't a number
+     */
+    long incr(String key, int by, long def, int exp);
+
+    boolean shutdown(long timeout, TimeUnit unit);
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase;
+
+import java.util.Properties;
+
+/**
+ * Creates the {@link CacheBackend}s regions store their items in. A pool of
+ * {@code n} clients calls {@link #create} {@code n} times.
+ */
+public interface CacheBackendFactory {
+    CacheBackend create(Properties props) throws Exception;
+}
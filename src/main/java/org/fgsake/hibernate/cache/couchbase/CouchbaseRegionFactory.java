@@ -16,6 +16,7 @@
 
 package org.fgsake.hibernate.cache.couchbase;
 
+import net.spy.memcached.DefaultConnectionFactory;
 import org.fgsake.hibernate.cache.couchbase.internal.*;
 import org.hibernate.cache.CacheException;
 import org.hibernate.cache.spi.*;
@@ -23,7 +24,18 @@ import org.hibernate.cache.spi.access.AccessType;
 import org.hibernate.cfg.Settings;
 import org.jboss.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class CouchbaseRegionFactory implements RegionFactory {
@@ -35,7 +47,34 @@ public class CouchbaseRegionFactory implements RegionFactory {
      */
     public static final String CACHE_CLIENT_FACTORY_PROPERTY = "hibernate.cache.couchbase.client_factory_class";
     /**
-     * Default entry expiration time, in seconds. Default is 3600.
+     * Fully qualified name of a class that implements {@link CacheBackendFactory},
+     * to store items somewhere other than through a memcached client, e.g.
+     * {@link LocalBackendFactory} to keep them in this JVM. It must have a
+     * public no-arg constructor. Default is none, which stores items through
+     * clients created by the client factory.
+     */
+    public static final String CACHE_BACKEND_FACTORY_PROPERTY = "hibernate.cache.couchbase.backend_factory_class";
+    /**
+     * Number of clients to spread keys over, each with its own connections,
+     * I/O thread and command queue. Every operation on a key goes through the
+     * same client. Default is 1.
+     * <p>
+     * A region that sets this, the operation timeout, or the Couchbase hosts,
+     * bucket or password, gets a pool of its own, created with its
+     * region-level settings.
+     */
+    public static final String CACHE_CLIENT_POOL_SIZE_PROPERTY = "hibernate.cache.couchbase.client_pool_size";
+    /**
+     * How long an operation may take before it fails, in milliseconds. The
+     * client factories build their connections with it, and batched gets
+     * and multi-gets split over a pool wait as long. A custom client factory
+     * should do the same. Default is 2500.
+     */
+    public static final String CACHE_OPERATION_TIMEOUT_PROPERTY = "hibernate.cache.couchbase.operation_timeout";
+    /**
+     * Entry expiration time, in seconds. Usually set per region, so that e.g.
+     * reference data lives long and volatile entities churn quickly. Default
+     * is 3600.
      */
     public static final String CACHE_DEFAULT_EXPIRY_PROPERTY = "hibernate.cache.couchbase.default_expiry";
     /**
@@ -43,40 +82,426 @@ public class CouchbaseRegionFactory implements RegionFactory {
      * Default is false.
      */
     public static final String CACHE_IGNORE_NONSTRICT_PROPERTY = "hibernate.cache.couchbase.ignore_nonstrict";
-
+    /**
+     * Version stamped on every entry; entries with another version are
+     * ignored. Bump it, globally or for one region, when cached classes
+     * change incompatibly. Default is -1.
+     */
     public static final String CACHE_SCHEMA_VERSION_PROPERTY = "hibernate.cache.couchbase.schema_version";
+    /**
+     * Longest an entity, collection or natural ID stays locked for an update,
+     * in milliseconds, if it's never unlocked. At most 2147483. Default is
+     * 30000.
+     */
+    public static final String CACHE_LOCK_TIMEOUT_PROPERTY = "hibernate.cache.couchbase.lock.timeout";
+    /**
+     * Maximum number of entries kept in each entity and collection region's
+     * in-process near cache. Default is 0, which disables the near cache.
+     * <p>
+     * A near cache is only invalidated by writes made through this node, so
+     * other nodes' writes can go unnoticed for up to
+     * {@link #CACHE_NEAR_CACHE_TTL_PROPERTY} seconds. Hits are also served
+     * without looking for a lock, so on {@code READ_WRITE} and
+     * {@code TRANSACTIONAL} regions a node keeps returning its copy of an
+     * entry while another node holds it locked for an update. Only enable it
+     * for regions that can tolerate that.
+     */
+    public static final String CACHE_NEAR_CACHE_MAX_ENTRIES_PROPERTY = "hibernate.cache.couchbase.near_cache.max_entries";
+    /**
+     * Most bytes each near cache's entries may take, going by the size of
+     * the items they were read from. Default is 0, which only bounds the
+     * number of entries.
+     */
+    public static final String CACHE_NEAR_CACHE_MAX_BYTES_PROPERTY = "hibernate.cache.couchbase.near_cache.max_bytes";
+    /**
+     * Near cache entry lifetime, in seconds. Default is 30.
+     */
+    public static final String CACHE_NEAR_CACHE_TTL_PROPERTY = "hibernate.cache.couchbase.near_cache.ttl";
+    /**
+     * How many of the most read keys of a region to find and serve from a
+     * local replica, to spread their reads over the nodes rather than the
+     * one that owns them. Default is 0, which disables hot key detection.
+     * <p>
+     * Like the near cache, a replica is served without looking for a lock,
+     * so on {@code READ_WRITE} and {@code TRANSACTIONAL} regions it keeps
+     * returning a hot key's old value while another node holds it locked for
+     * an update, for up to {@link #CACHE_HOT_KEYS_REPLICA_TTL_PROPERTY}.
+     */
+    public static final String CACHE_HOT_KEYS_TOP_PROPERTY = "hibernate.cache.couchbase.hot_keys.top";
+    /**
+     * One in how many reads is counted to find the hot keys. Default is 16.
+     */
+    public static final String CACHE_HOT_KEYS_SAMPLE_RATE_PROPERTY = "hibernate.cache.couchbase.hot_keys.sample_rate";
+    /**
+     * Lifetime of a hot key's local replica, in milliseconds, which bounds
+     * how stale it can be with respect to writes made by other nodes.
+     * Default is 1000.
+     */
+    public static final String CACHE_HOT_KEYS_REPLICA_TTL_PROPERTY = "hibernate.cache.couchbase.hot_keys.replica_ttl";
+    /**
+     * How long a cache read waits for concurrent reads to share a multi-get
+     * with, in microseconds. Default is 0, which sends every read on its own.
+     */
+    public static final String CACHE_GET_BATCH_WINDOW_PROPERTY = "hibernate.cache.couchbase.get_batch.window";
+    /**
+     * Maximum number of keys in one batched multi-get. Default is 64.
+     */
+    public static final String CACHE_GET_BATCH_MAX_SIZE_PROPERTY = "hibernate.cache.couchbase.get_batch.max_size";
+    /**
+     * Whether to store cache entries and locks in a compact binary encoding
+     * instead of Java serialization. Both encodings are always readable, but
+     * releases before 0.3.0 can only read Java serialization, so disable this
+     * while such nodes share the bucket. Default is true.
+     */
+    public static final String CACHE_COMPACT_ENCODING_PROPERTY = "hibernate.cache.couchbase.compact_encoding";
+    /**
+     * Fully qualified name of a class that implements {@link ValueSerializer},
+     * used for cached values in the compact encoding. It must have a public
+     * no-arg constructor. Default is {@link JavaValueSerializer}.
+     */
+    public static final String CACHE_VALUE_SERIALIZER_PROPERTY = "hibernate.cache.couchbase.value_serializer_class";
+    /**
+     * Compression codec for large items: none, gzip or lz4. gzip matches what
+     * spymemcached does on its own; lz4 is much cheaper at a somewhat lower
+     * ratio. Default is gzip.
+     */
+    public static final String CACHE_COMPRESSION_CODEC_PROPERTY = "hibernate.cache.couchbase.compression.codec";
+    /**
+     * Items at least this many bytes long are compressed. Default is 16384.
+     */
+    public static final String CACHE_COMPRESSION_THRESHOLD_PROPERTY = "hibernate.cache.couchbase.compression.threshold";
+    /**
+     * Largest item, in bytes after encoding and compression, written as a
+     * single item. Larger items are split into chunks of this size plus a
+     * small manifest, and read back with one multi-get. Default is 0, which
+     * never splits items.
+     */
+    public static final String CACHE_CHUNK_SIZE_PROPERTY = "hibernate.cache.couchbase.chunk_size";
+    /**
+     * How often the timestamps region refreshes its local mirror of query
+     * space timestamps, in milliseconds. Default is 0, which disables the
+     * mirror so that every timestamp is read from Couchbase.
+     */
+    public static final String CACHE_TIMESTAMPS_REFRESH_INTERVAL_PROPERTY = "hibernate.cache.couchbase.timestamps.refresh_interval";
+    /**
+     * How old a mirrored timestamp can be before it's read from Couchbase
+     * instead, in milliseconds. This bounds how long an update made through
+     * another node can go unnoticed by the query cache. Default is twice the
+     * refresh interval.
+     */
+    public static final String CACHE_TIMESTAMPS_MAX_STALENESS_PROPERTY = "hibernate.cache.couchbase.timestamps.max_staleness";
+    /**
+     * How often region generations are re-read, in milliseconds. Clearing a
+     * region moves it to a new generation, and other nodes keep reading and
+     * writing the previous one for up to this long. Default is 1000.
+     */
+    public static final String CACHE_GENERATION_REFRESH_INTERVAL_PROPERTY = "hibernate.cache.couchbase.generation.refresh_interval";
+    /**
+     * How many times a lock, unlock or update that loses a CAS race is
+     * retried. A lock that still can't be taken is forced, which leaves the
+     * item uncached until the lock times out; an unlock or update is dropped
+     * and the lock times out on its own. Default is 10.
+     */
+    public static final String CACHE_LOCK_MAX_RETRIES_PROPERTY = "hibernate.cache.couchbase.lock.max_retries";
+    /**
+     * Upper bound of the random delay before the first lock retry, in
+     * microseconds. It doubles with each retry. Default is 500.
+     */
+    public static final String CACHE_LOCK_INITIAL_BACKOFF_PROPERTY = "hibernate.cache.couchbase.lock.initial_backoff";
+    /**
+     * Largest upper bound of the random delay between lock retries, in
+     * microseconds. Default is 50000.
+     */
+    public static final String CACHE_LOCK_MAX_BACKOFF_PROPERTY = "hibernate.cache.couchbase.lock.max_backoff";
+    /**
+     * How long the unlocks and updates that follow a commit wait for others
+     * to be applied with, in microseconds. They're applied in the background,
+     * a batch at a time, with pipelined gets and CASes. Default is 0, which
+     * applies each one on the committing thread before returning.
+     */
+    public static final String CACHE_RELEASE_BATCH_WINDOW_PROPERTY = "hibernate.cache.couchbase.release_batch.window";
+    /**
+     * Maximum number of unlocks and updates in one batch. Default is 256.
+     */
+    public static final String CACHE_RELEASE_BATCH_MAX_SIZE_PROPERTY = "hibernate.cache.couchbase.release_batch.max_size";
+    /**
+     * Share of the expiry, between 0 and 1, by which the TTL of each write is
+     * randomly shortened, so that entries written together, e.g. while
+     * warming a region, don't all expire in the same second. Default is 0.
+     */
+    public static final String CACHE_EXPIRY_JITTER_PROPERTY = "hibernate.cache.couchbase.expiry_jitter";
+    /**
+     * Share of the expiry, between 0 and 1, before the earliest an entry can
+     * expire during which reads may miss so that it's reloaded early. The
+     * odds rise towards the end of that window, so only a few readers reload
+     * an entry instead of all of them once it's gone. Default is 0, which
+     * lets entries expire.
+     */
+    public static final String CACHE_EARLY_REFRESH_PROPERTY = "hibernate.cache.couchbase.early_refresh";
+    /**
+     * Whether a hit on an entity, collection or natural ID extends the
+     * entry's TTL back to the full expiry, so that entries read often stay
+     * cached while the rest age out. Each extension is a {@code gets} and a
+     * {@code cas}, and items split into chunks aren't extended. Default is
+     * false.
+     */
+    public static final String CACHE_SLIDING_EXPIRY_ENABLED_PROPERTY = "hibernate.cache.couchbase.sliding_expiry.enabled";
+    /**
+     * Shortest time between two TTL extensions of the same entry by this
+     * node, in seconds. Default is 60.
+     */
+    public static final String CACHE_SLIDING_EXPIRY_INTERVAL_PROPERTY = "hibernate.cache.couchbase.sliding_expiry.interval";
+    /**
+     * Longest an entry stays cached after it was written, however often it's
+     * read, in seconds. Default is 86400.
+     */
+    public static final String CACHE_SLIDING_EXPIRY_MAX_LIFETIME_PROPERTY = "hibernate.cache.couchbase.sliding_expiry.max_lifetime";
+    /**
+     * Whether putFromLoad tries to add the loaded value without reading the
+     * current item first, and without waiting for the result. If the item
+     * exists, it's read and replaced in the background when that's allowed.
+     * This halves the round trips when the cache is cold, at the cost of an
+     * extra one when it isn't. Default is false.
+     */
+    public static final String CACHE_OPTIMISTIC_PUTS_PROPERTY = "hibernate.cache.couchbase.optimistic_puts";
+    /**
+     * Whether threads in this JVM that miss the same entity, collection or
+     * natural ID at the same time wait for the first one to load and put it,
+     * rather than all going to the database. Default is false.
+     */
+    public static final String CACHE_SINGLE_FLIGHT_ENABLED_PROPERTY = "hibernate.cache.couchbase.single_flight.enabled";
+    /**
+     * Lease a thread that misses has to load and put the value before the
+     * threads waiting for it give up and load it themselves, in milliseconds.
+     * Loads that are never put, e.g. of a row that doesn't exist or under
+     * CacheMode.GET, hold their waiters up this long. Default is 50.
+     */
+    public static final String CACHE_SINGLE_FLIGHT_TIMEOUT_PROPERTY = "hibernate.cache.couchbase.single_flight.timeout";
+    /**
+     * File to save each region's hot and most recently used keys to on
+     * shutdown, and to prefetch them from in the background on startup.
+     * Default is none, which disables warm starts.
+     */
+    public static final String CACHE_WARM_START_FILE_PROPERTY = "hibernate.cache.couchbase.warm_start.file";
+    /**
+     * Most keys saved per region for a warm start. Default is 1000.
+     */
+    public static final String CACHE_WARM_START_MAX_KEYS_PROPERTY = "hibernate.cache.couchbase.warm_start.max_keys";
+    /**
+     * Most keys prefetched per second during a warm start, to spare the
+     * cluster while the application starts. Default is 5000.
+     */
+    public static final String CACHE_WARM_START_RATE_PROPERTY = "hibernate.cache.couchbase.warm_start.rate";
+    /**
+     * Entity region to read ahead from when a collection or query results
+     * region hits: the entities the hit refers to are read in one multi-get,
+     * and Hibernate's gets for them that follow on the same thread are served
+     * from what was read. Set per region, e.g.
+     * <code>hibernate.cache.couchbase.region.com.example.Person.children.prefetch.region</code>.
+     * Default is none.
+     */
+    public static final String CACHE_PREFETCH_REGION_PROPERTY = "hibernate.cache.couchbase.prefetch.region";
+    /**
+     * Root entity name of the entities read ahead. Default is the entity
+     * region's name without Hibernate's region prefix, which is the entity
+     * name unless the entity has a region of its own.
+     */
+    public static final String CACHE_PREFETCH_ENTITY_PROPERTY = "hibernate.cache.couchbase.prefetch.entity";
+    /**
+     * Most entities read ahead for one hit. Default is 1000.
+     */
+    public static final String CACHE_PREFETCH_MAX_KEYS_PROPERTY = "hibernate.cache.couchbase.prefetch.max_keys";
+    /**
+     * How long entities read ahead are held for the gets that follow, in
+     * milliseconds. Default is 1000.
+     */
+    public static final String CACHE_PREFETCH_TTL_PROPERTY = "hibernate.cache.couchbase.prefetch.ttl";
+    /**
+     * How often each node merges its estimate of a region's size into the
+     * one shared by all nodes, in seconds. 0 leaves each node with an
+     * estimate from its own writes only. Default is 60.
+     */
+    public static final String CACHE_SIZE_ESTIMATE_INTERVAL_PROPERTY = "hibernate.cache.couchbase.size_estimate.interval";
+    /**
+     * Whether to register a JMX MBean for each region, named
+     * <code>org.fgsake.hibernate.cache.couchbase:type=Region,name=&lt;region name&gt;</code>.
+     * Default is true.
+     */
+    public static final String CACHE_JMX_ENABLED_PROPERTY = "hibernate.cache.couchbase.jmx.enabled";
+    /**
+     * Whether to stop using Couchbase while too many operations fail or time
+     * out. While the circuit breaker is open, reads miss and writes are
+     * dropped; if any writes were dropped, every region is cleared once it
+     * closes. Default is false.
+     */
+    public static final String CACHE_CIRCUIT_BREAKER_ENABLED_PROPERTY = "hibernate.cache.couchbase.circuit_breaker.enabled";
+    /**
+     * Share of failed operations, between 0 and 1, that opens the circuit
+     * breaker. Default is 0.5.
+     */
+    public static final String CACHE_CIRCUIT_BREAKER_FAILURE_RATE_PROPERTY = "hibernate.cache.couchbase.circuit_breaker.failure_rate";
+    /**
+     * Fewest operations in the window for the circuit breaker to open.
+     * Default is 20.
+     */
+    public static final String CACHE_CIRCUIT_BREAKER_MINIMUM_REQUESTS_PROPERTY = "hibernate.cache.couchbase.circuit_breaker.minimum_requests";
+    /**
+     * Length of the rolling window failures are counted over, in
+     * milliseconds. Default is 10000.
+     */
+    public static final String CACHE_CIRCUIT_BREAKER_WINDOW_PROPERTY = "hibernate.cache.couchbase.circuit_breaker.window";
+    /**
+     * How long the circuit breaker stays open before probing Couchbase, in
+     * milliseconds. Default is 5000.
+     */
+    public static final String CACHE_CIRCUIT_BREAKER_OPEN_DURATION_PROPERTY = "hibernate.cache.couchbase.circuit_breaker.open_duration";
+    /**
+     * Number of probe operations that must succeed for the circuit breaker to
+     * close. Default is 5.
+     */
+    public static final String CACHE_CIRCUIT_BREAKER_PROBES_PROPERTY = "hibernate.cache.couchbase.circuit_breaker.probes";
+    /**
+     * Prefix for region-level overrides. A region-level setting is given as
+     * <code>hibernate.cache.couchbase.region.&lt;region name&gt;.&lt;setting&gt;</code>,
+     * where <code>&lt;setting&gt;</code> is the global property name without
+     * the <code>hibernate.cache.couchbase.</code> prefix, e.g.
+     * <code>hibernate.cache.couchbase.region.com.example.Person.near_cache.max_entries</code>.
+     */
+    public static final String CACHE_REGION_PREFIX = "hibernate.cache.couchbase.region.";
 
+    private static final String PROPERTY_PREFIX = "hibernate.cache.couchbase.";
+
+    /**
+     * Region-level settings that give a region its own client pool.
+     */
+    private static final String[] DEDICATED_CLIENT_PROPERTIES = {
+            CACHE_CLIENT_POOL_SIZE_PROPERTY,
+            CACHE_OPERATION_TIMEOUT_PROPERTY,
+            CouchbaseClientFactory.CACHE_HOSTS_PROPERTY,
+            CouchbaseClientFactory.CACHE_BUCKET_PROPERTY,
+            CouchbaseClientFactory.CACHE_PASSWORD_PROPERTY
+    };
+
+    private Properties props;
+    private String regionPrefix;
+    private CacheBackendFactory backendFactory;
     private ClientWrapper client;
-    private int expiry;
-    private boolean ignoreNonstrict;
-    private int schemaVersion;
+    private CircuitBreaker breaker;
+    private long batchWindow;
+    private int batchMaxSize;
+    private ReleaseBatcher releaseBatcher;
+    private WarmStart warmStart;
+    private ScheduledExecutorService scheduler;
+    // Size estimates are published with blocking round trips, kept off the scheduler
+    private ScheduledExecutorService sizePublisher;
+    private Generations generations;
+    private ValueSerializer serializer;
+    private boolean compact;
+    private boolean jmxEnabled;
+    private final List<ObjectName> mbeans = new ArrayList<ObjectName>();
+    private final List<ClientWrapper> dedicatedClients = new ArrayList<ClientWrapper>();
+    private final Map<String, CouchbaseEntityRegion> entityRegions = new ConcurrentHashMap<String, CouchbaseEntityRegion>();
 
     public void start(Settings settings, Properties props) throws CacheException {
-        schemaVersion = Integer.parseInt(props.getProperty(CACHE_SCHEMA_VERSION_PROPERTY, "-1"));
+        this.props = props;
+        this.regionPrefix = settings != null ? settings.getCacheRegionPrefix() : null;
+
+        String backendFactoryClassName = props.getProperty(CACHE_BACKEND_FACTORY_PROPERTY);
+        if (backendFactoryClassName != null) {
+            try {
+                Class<?> factoryClass = Class.forName(backendFactoryClassName);
+                backendFactory = CacheBackendFactory.class.cast(factoryClass.getConstructor().newInstance());
+            } catch (Exception e) {
+                throw new CacheException("Unable to instantiate backend factory class " + backendFactoryClassName);
+            }
+        } else {
+            String factoryClassName = props.getProperty(CACHE_CLIENT_FACTORY_PROPERTY, "org.fgsake.hibernate.cache.couchbase.internal.CouchbaseClientFactory");
+
+            try {
+                Class<?> factoryClass = Class.forName(factoryClassName);
+                backendFactory = new MemcachedBackendFactory(MemcachedClientFactory.class.cast(factoryClass.getConstructor().newInstance()));
+            } catch (Exception e) {
+                throw new CacheException("Unable to instantiate client factory class " + factoryClassName);
+            }
+        }
 
-        String factoryClassName = props.getProperty(CACHE_CLIENT_FACTORY_PROPERTY, "org.fgsake.hibernate.cache.couchbase.internal.CouchbaseClientFactory");
+        String serializerClassName = props.getProperty(CACHE_VALUE_SERIALIZER_PROPERTY, "org.fgsake.hibernate.cache.couchbase.internal.JavaValueSerializer");
 
-        MemcachedClientFactory factory;
         try {
-            Class<?> factoryClass = Class.forName(factoryClassName);
-            factory = MemcachedClientFactory.class.cast(factoryClass.getConstructor().newInstance());
+            Class<?> serializerClass = Class.forName(serializerClassName);
+            serializer = ValueSerializer.class.cast(serializerClass.getConstructor().newInstance());
         } catch (Exception e) {
-            throw new CacheException("Unable to instantiate client factory class " + factoryClassName);
+            throw new CacheException("Unable to instantiate value serializer class " + serializerClassName);
         }
 
-        expiry = Integer.parseInt(props.getProperty(CACHE_DEFAULT_EXPIRY_PROPERTY, "3600"));
-        ignoreNonstrict = Boolean.parseBoolean(props.getProperty(CACHE_IGNORE_NONSTRICT_PROPERTY, "false"));
+        compact = Boolean.parseBoolean(props.getProperty(CACHE_COMPACT_ENCODING_PROPERTY, "true"));
+
+        jmxEnabled = Boolean.parseBoolean(props.getProperty(CACHE_JMX_ENABLED_PROPERTY, "true"));
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("couchbase-cache"));
+        sizePublisher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("couchbase-cache-sizes"));
 
+        batchWindow = Long.parseLong(props.getProperty(CACHE_GET_BATCH_WINDOW_PROPERTY, "0"));
+        batchMaxSize = Integer.parseInt(props.getProperty(CACHE_GET_BATCH_MAX_SIZE_PROPERTY, "64"));
+        if (batchWindow > 0) {
+            log.debugf("Batching gets within %dus, up to %d keys", batchWindow, batchMaxSize);
+        }
+
+        long releaseWindow = Long.parseLong(props.getProperty(CACHE_RELEASE_BATCH_WINDOW_PROPERTY, "0"));
+        if (releaseWindow > 0) {
+            int releaseMaxSize = Integer.parseInt(props.getProperty(CACHE_RELEASE_BATCH_MAX_SIZE_PROPERTY, "256"));
+            log.debugf("Batching unlocks and updates within %dus, up to %d at a time", releaseWindow, releaseMaxSize);
+            releaseBatcher = new ReleaseBatcher(releaseWindow, TimeUnit.MICROSECONDS, releaseMaxSize);
+        }
+
+        breaker = circuitBreaker();
+        int poolSize = Integer.parseInt(props.getProperty(CACHE_CLIENT_POOL_SIZE_PROPERTY, "1"));
         try {
-            client = new ClientWrapper(factory.create(props));
+            client = connect(props, poolSize, transcoderFor(null), 0);
         } catch (Exception e) {
             throw new CacheException(e);
         }
+
+        String warmStartFile = props.getProperty(CACHE_WARM_START_FILE_PROPERTY);
+        if (warmStartFile != null) {
+            int maxKeys = Integer.parseInt(props.getProperty(CACHE_WARM_START_MAX_KEYS_PROPERTY, "1000"));
+            int rate = Integer.parseInt(props.getProperty(CACHE_WARM_START_RATE_PROPERTY, "5000"));
+            log.debugf("Warm start from %s, up to %d keys per region at %d keys/s", warmStartFile, maxKeys, rate);
+            warmStart = new WarmStart(new File(warmStartFile), maxKeys, rate);
+        }
+
+        long generationRefreshInterval = Long.parseLong(props.getProperty(CACHE_GENERATION_REFRESH_INTERVAL_PROPERTY, "1000"));
+        generations = new Generations(client, scheduler, generationRefreshInterval, TimeUnit.MILLISECONDS);
+
+        if (breaker != null) {
+            breaker.addRecoveryAction(new Runnable() {
+                public void run() {
+                    log.info("Clearing all regions after writes were dropped");
+                    generations.incrementAll();
+                }
+            });
+        }
     }
 
     public void stop() {
         log.debug("Shutting down");
+        unregisterMBeans();
+        if (warmStart != null) {
+            warmStart.shutdown();
+        }
+        if (releaseBatcher != null) {
+            releaseBatcher.shutdown(10, TimeUnit.SECONDS);
+        }
+        scheduler.shutdownNow();
+        sizePublisher.shutdownNow();
+        synchronized (dedicatedClients) {
+            for (ClientWrapper dedicated : dedicatedClients) {
+                dedicated.shutdown(10, TimeUnit.SECONDS);
+            }
+            dedicatedClients.clear();
+        }
         client.shutdown(10, TimeUnit.SECONDS);
+        entityRegions.clear();
     }
 
     public boolean isMinimalPutsEnabledByDefault() {
@@ -93,26 +518,277 @@ public class CouchbaseRegionFactory implements RegionFactory {
 
     public EntityRegion buildEntityRegion(String regionName, Properties properties, CacheDataDescription metadata) throws CacheException {
         log.tracef("Building entity region %s", regionName);
-        return new CouchbaseEntityRegion(client, metadata, regionName, expiry, ignoreNonstrict, schemaVersion);
+        ClientWrapper regionClient = clientFor(regionName);
+        long prefetchTtl = Long.parseLong(regionProperty(regionName, CACHE_PREFETCH_TTL_PROPERTY, "1000"));
+        CouchbaseEntityRegion region = new CouchbaseEntityRegion(regionClient, metadata, regionName, generations.register(regionName), settingsFor(regionName), nearCacheFor(regionName), lockManagerFor(regionClient, regionName), singleFlightFor(regionName), hotKeysFor(regionName), slidingExpiryFor(regionName), new PrefetchBuffer(prefetchTtl, TimeUnit.MILLISECONDS));
+        entityRegions.put(regionName, region);
+        return register(region);
     }
 
     public NaturalIdRegion buildNaturalIdRegion(String regionName, Properties properties, CacheDataDescription metadata) throws CacheException {
         log.tracef("Building natural ID region %s", regionName);
-        return new CouchbaseNaturalIdRegion(client, metadata, regionName, expiry, ignoreNonstrict, schemaVersion);
+        ClientWrapper regionClient = clientFor(regionName);
+        return register(new CouchbaseNaturalIdRegion(regionClient, metadata, regionName, generations.register(regionName), settingsFor(regionName), lockManagerFor(regionClient, regionName), singleFlightFor(regionName), hotKeysFor(regionName), slidingExpiryFor(regionName)));
     }
 
     public CollectionRegion buildCollectionRegion(String regionName, Properties properties, CacheDataDescription metadata) throws CacheException {
         log.tracef("Building collection region %s", regionName);
-        return new CouchbaseCollectionRegion(client, metadata, regionName, expiry, ignoreNonstrict, schemaVersion);
+        ClientWrapper regionClient = clientFor(regionName);
+        return register(new CouchbaseCollectionRegion(regionClient, metadata, regionName, generations.register(regionName), settingsFor(regionName), nearCacheFor(regionName), lockManagerFor(regionClient, regionName), singleFlightFor(regionName), hotKeysFor(regionName), slidingExpiryFor(regionName), prefetcherFor(regionName)));
     }
 
     public QueryResultsRegion buildQueryResultsRegion(String regionName, Properties properties) throws CacheException {
         log.tracef("Building query results region %s", regionName);
-        return new CouchbaseGeneralDataRegion(client, regionName, expiry);
+        return register(new CouchbaseGeneralDataRegion(clientFor(regionName), regionName, generations.register(regionName), settingsFor(regionName), prefetcherFor(regionName), false));
     }
 
     public TimestampsRegion buildTimestampsRegion(String regionName, Properties properties) throws CacheException {
         log.tracef("Building timestamp region %s", regionName);
-        return new CouchbaseGeneralDataRegion(client, regionName, 0);
+        long refreshInterval = Long.parseLong(regionProperty(regionName, CACHE_TIMESTAMPS_REFRESH_INTERVAL_PROPERTY, "0"));
+        if (refreshInterval <= 0) {
+            return register(new CouchbaseGeneralDataRegion(clientFor(regionName), regionName, generations.register(regionName), settingsFor(regionName).withExpiry(0)));
+        }
+        long maxStaleness = Long.parseLong(regionProperty(regionName, CACHE_TIMESTAMPS_MAX_STALENESS_PROPERTY, String.valueOf(2 * refreshInterval)));
+        log.debugf("Mirroring timestamps region %s every %dms, at most %dms stale", regionName, refreshInterval, maxStaleness);
+        return register(new CouchbaseTimestampsRegion(clientFor(regionName), regionName, generations.register(regionName), settingsFor(regionName).withExpiry(0), scheduler, refreshInterval, maxStaleness, TimeUnit.MILLISECONDS));
+    }
+
+    private CircuitBreaker circuitBreaker() {
+        if (!Boolean.parseBoolean(props.getProperty(CACHE_CIRCUIT_BREAKER_ENABLED_PROPERTY, "false"))) {
+            return null;
+        }
+        double failureRate = Double.parseDouble(props.getProperty(CACHE_CIRCUIT_BREAKER_FAILURE_RATE_PROPERTY, "0.5"));
+        int minimumRequests = Integer.parseInt(props.getProperty(CACHE_CIRCUIT_BREAKER_MINIMUM_REQUESTS_PROPERTY, "20"));
+        long window = Long.parseLong(props.getProperty(CACHE_CIRCUIT_BREAKER_WINDOW_PROPERTY, "10000"));
+        long openDuration = Long.parseLong(props.getProperty(CACHE_CIRCUIT_BREAKER_OPEN_DURATION_PROPERTY, "5000"));
+        int probes = Integer.parseInt(props.getProperty(CACHE_CIRCUIT_BREAKER_PROBES_PROPERTY, "5"));
+        return new CircuitBreaker("couchbase", failureRate, minimumRequests, window, openDuration, probes, TimeUnit.MILLISECONDS, scheduler);
+    }
+
+    private <T extends CouchbaseRegion> T register(final T region) {
+        long sizeInterval = Long.parseLong(regionProperty(region.getName(), CACHE_SIZE_ESTIMATE_INTERVAL_PROPERTY, "60"));
+        if (sizeInterval > 0) {
+            sizePublisher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    region.getSizeEstimator().publish();
+                }
+            }, sizeInterval, sizeInterval, TimeUnit.SECONDS);
+        }
+        if (warmStart != null && region instanceof CouchbaseTransactionalDataRegion) {
+            warmStart.track((CouchbaseTransactionalDataRegion) region);
+        }
+        if (!jmxEnabled) {
+            return region;
+        }
+
+        try {
+            ObjectName name = new ObjectName("org.fgsake.hibernate.cache.couchbase:type=Region,name=" + ObjectName.quote(region.getName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new RegionMonitor(region), name);
+            synchronized (mbeans) {
+                mbeans.add(name);
+            }
+        } catch (JMException e) {
+            log.warnf("Unable to register MBean for region %s: %s", region.getName(), e);
+        }
+        return region;
+    }
+
+    private void unregisterMBeans() {
+        synchronized (mbeans) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : mbeans) {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException e) {
+                    log.debugf("Unable to unregister MBean %s: %s", name, e);
+                }
+            }
+            mbeans.clear();
+        }
+    }
+
+    /**
+     * Creates a pool of {@code poolSize} clients, each with its own get
+     * batcher if batching is enabled.
+     */
+    private ClientWrapper connect(Properties clientProps, int poolSize, CacheTranscoder transcoder, int chunkSize) throws Exception {
+        long operationTimeout = operationTimeout(clientProps);
+        CacheBackend[] clients = new CacheBackend[poolSize];
+        GetBatcher[] batchers = batchWindow > 0 ? new GetBatcher[poolSize] : null;
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                clients[i] = backendFactory.create(clientProps);
+                if (batchers != null) {
+                    batchers[i] = new GetBatcher(clients[i], batchWindow, TimeUnit.MICROSECONDS, batchMaxSize, operationTimeout);
+                }
+            }
+        } catch (Exception e) {
+            for (int i = 0; i < poolSize; i++) {
+                if (batchers != null && batchers[i] != null) {
+                    batchers[i].shutdown();
+                }
+                if (clients[i] != null) {
+                    clients[i].shutdown(0, TimeUnit.SECONDS);
+                }
+            }
+            throw e;
+        }
+        return new ClientWrapper(clients, transcoder, batchers, breaker, chunkSize, operationTimeout);
+    }
+
+    /**
+     * @return the operation timeout clients created with {@code clientProps}
+     *         use, in milliseconds
+     */
+    private static long operationTimeout(Properties clientProps) {
+        return Long.parseLong(clientProps.getProperty(CACHE_OPERATION_TIMEOUT_PROPERTY,
+                String.valueOf(DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT)));
+    }
+
+    private ClientWrapper clientFor(String regionName) {
+        int chunkSize = Integer.parseInt(regionProperty(regionName, CACHE_CHUNK_SIZE_PROPERTY, "0"));
+        boolean dedicatedPool = false;
+        for (String property : DEDICATED_CLIENT_PROPERTIES) {
+            dedicatedPool |= regionOverride(regionName, property) != null;
+        }
+        if (!dedicatedPool) {
+            return client.withTranscoder(transcoderFor(regionName), chunkSize);
+        }
+
+        int poolSize = Integer.parseInt(regionProperty(regionName, CACHE_CLIENT_POOL_SIZE_PROPERTY, "1"));
+        log.debugf("Dedicated pool of %d clients for region %s", poolSize, regionName);
+        ClientWrapper dedicated;
+        try {
+            dedicated = connect(regionProperties(regionName), poolSize, transcoderFor(regionName), chunkSize);
+        } catch (Exception e) {
+            throw new CacheException(e);
+        }
+        synchronized (dedicatedClients) {
+            dedicatedClients.add(dedicated);
+        }
+        return dedicated;
+    }
+
+    private CacheTranscoder transcoderFor(String regionName) {
+        CompressionCodec codec = CompressionCodec.forName(regionProperty(regionName, CACHE_COMPRESSION_CODEC_PROPERTY, "gzip"));
+        int threshold = Integer.parseInt(regionProperty(regionName, CACHE_COMPRESSION_THRESHOLD_PROPERTY, "16384"));
+        log.debugf("Compression for region %s: %s above %d bytes", regionName, codec, threshold);
+        return new CacheTranscoder(serializer, compact, codec, threshold);
+    }
+
+    private Prefetcher prefetcherFor(String regionName) {
+        String entityRegionName = regionOverride(regionName, CACHE_PREFETCH_REGION_PROPERTY);
+        if (entityRegionName == null) {
+            return null;
+        }
+        String entityName = regionOverride(regionName, CACHE_PREFETCH_ENTITY_PROPERTY);
+        if (entityName == null) {
+            entityName = regionPrefix != null && entityRegionName.startsWith(regionPrefix + ".")
+                    ? entityRegionName.substring(regionPrefix.length() + 1)
+                    : entityRegionName;
+        }
+        int maxKeys = Integer.parseInt(regionProperty(regionName, CACHE_PREFETCH_MAX_KEYS_PROPERTY, "1000"));
+        log.debugf("Prefetching up to %d %s entities from region %s on hits in region %s", maxKeys, entityName, entityRegionName, regionName);
+        return new Prefetcher(entityName, entityRegionName, entityRegions, maxKeys);
+    }
+
+    private NearCache nearCacheFor(String regionName) {
+        int maxEntries = Integer.parseInt(regionProperty(regionName, CACHE_NEAR_CACHE_MAX_ENTRIES_PROPERTY, "0"));
+        if (maxEntries <= 0) {
+            return null;
+        }
+        long maxBytes = Long.parseLong(regionProperty(regionName, CACHE_NEAR_CACHE_MAX_BYTES_PROPERTY, "0"));
+        int ttl = Integer.parseInt(regionProperty(regionName, CACHE_NEAR_CACHE_TTL_PROPERTY, "30"));
+        log.debugf("Near cache for region %s: %d entries, %d bytes, %ds", regionName, maxEntries, maxBytes, ttl);
+        return new NearCache(maxEntries, maxBytes, ttl, TimeUnit.SECONDS);
+    }
+
+    private HotKeys hotKeysFor(String regionName) {
+        int top = Integer.parseInt(regionProperty(regionName, CACHE_HOT_KEYS_TOP_PROPERTY, "0"));
+        if (top <= 0) {
+            return null;
+        }
+        int sampleRate = Integer.parseInt(regionProperty(regionName, CACHE_HOT_KEYS_SAMPLE_RATE_PROPERTY, "16"));
+        long replicaTtl = Long.parseLong(regionProperty(regionName, CACHE_HOT_KEYS_REPLICA_TTL_PROPERTY, "1000"));
+        log.debugf("Hot keys for region %s: top %d, sampling 1 in %d reads, %dms replica", regionName, top, sampleRate, replicaTtl);
+        return new HotKeys(top, sampleRate, replicaTtl, TimeUnit.MILLISECONDS, scheduler);
+    }
+
+    private SlidingExpiry slidingExpiryFor(String regionName) {
+        if (!Boolean.parseBoolean(regionProperty(regionName, CACHE_SLIDING_EXPIRY_ENABLED_PROPERTY, "false"))) {
+            return null;
+        }
+        long interval = Long.parseLong(regionProperty(regionName, CACHE_SLIDING_EXPIRY_INTERVAL_PROPERTY, "60"));
+        long maxLifetime = Long.parseLong(regionProperty(regionName, CACHE_SLIDING_EXPIRY_MAX_LIFETIME_PROPERTY, "86400"));
+        log.debugf("Sliding expiry for region %s: every %ds at most, for up to %ds", regionName, interval, maxLifetime);
+        return new SlidingExpiry(interval, maxLifetime, TimeUnit.SECONDS);
+    }
+
+    private LockManager lockManagerFor(ClientWrapper regionClient, String regionName) {
+        int maxRetries = Integer.parseInt(regionProperty(regionName, CACHE_LOCK_MAX_RETRIES_PROPERTY, "10"));
+        long initialBackoff = Long.parseLong(regionProperty(regionName, CACHE_LOCK_INITIAL_BACKOFF_PROPERTY, "500"));
+        long maxBackoff = Long.parseLong(regionProperty(regionName, CACHE_LOCK_MAX_BACKOFF_PROPERTY, "50000"));
+        return new LockManager(regionClient, maxRetries, initialBackoff, maxBackoff, TimeUnit.MICROSECONDS, releaseBatcher);
+    }
+
+    private RegionSettings settingsFor(String regionName) {
+        int expiry = Integer.parseInt(regionProperty(regionName, CACHE_DEFAULT_EXPIRY_PROPERTY, "3600"));
+        long lockTimeout = Long.parseLong(regionProperty(regionName, CACHE_LOCK_TIMEOUT_PROPERTY, "30000"));
+        RegionSettings settings = new RegionSettings(
+                expiry,
+                (int) Math.min(TimeUnit.MILLISECONDS.toMicros(lockTimeout), Integer.MAX_VALUE),
+                Boolean.parseBoolean(regionProperty(regionName, CACHE_IGNORE_NONSTRICT_PROPERTY, "false")),
+                Integer.parseInt(regionProperty(regionName, CACHE_SCHEMA_VERSION_PROPERTY, "-1")),
+                Boolean.parseBoolean(regionProperty(regionName, CACHE_OPTIMISTIC_PUTS_PROPERTY, "false")),
+                Double.parseDouble(regionProperty(regionName, CACHE_EXPIRY_JITTER_PROPERTY, "0")),
+                Double.parseDouble(regionProperty(regionName, CACHE_EARLY_REFRESH_PROPERTY, "0")));
+        log.debugf("Settings for region %s: %s", regionName, settings);
+        return settings;
+    }
+
+    private SingleFlight singleFlightFor(String regionName) {
+        if (!Boolean.parseBoolean(regionProperty(regionName, CACHE_SINGLE_FLIGHT_ENABLED_PROPERTY, "false"))) {
+            return null;
+        }
+        long timeout = Long.parseLong(regionProperty(regionName, CACHE_SINGLE_FLIGHT_TIMEOUT_PROPERTY, "50"));
+        log.debugf("Coalescing misses for region %s, with %dms leases", regionName, timeout);
+        return new SingleFlight(timeout, TimeUnit.MILLISECONDS, scheduler);
+    }
+
+    /**
+     * Looks up a region-level override of a global property, falling back to
+     * the global value and then to the default.
+     */
+    private String regionProperty(String regionName, String property, String defaultValue) {
+        String value = regionOverride(regionName, property);
+        return value != null ? value : props.getProperty(property, defaultValue);
+    }
+
+    /**
+     * @return the properties with {@code regionName}'s region-level settings
+     *         in place of the global ones
+     */
+    private Properties regionProperties(String regionName) {
+        Properties merged = new Properties();
+        merged.putAll(props);
+        String prefix = CACHE_REGION_PREFIX + regionName + ".";
+        for (String property : props.stringPropertyNames()) {
+            if (property.startsWith(prefix)) {
+                merged.setProperty(PROPERTY_PREFIX + property.substring(prefix.length()), props.getProperty(property));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return the region-level setting of {@code property}, or null if there
+     *         isn't one
+     */
+    private String regionOverride(String regionName, String property) {
+        if (regionName == null) {
+            return null;
+        }
+        String setting = property.substring(PROPERTY_PREFIX.length());
+        return props.getProperty(CACHE_REGION_PREFIX + regionName + "." + setting);
     }
 }
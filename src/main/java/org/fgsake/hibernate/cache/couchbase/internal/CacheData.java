@@ -24,6 +24,8 @@ public final class CacheData implements Externalizable, CacheItem {
     private Object version;
     private Object value;
     private int schemaVersion;
+    // Bytes the item was decoded from, or 0 if it wasn't; not serialized
+    private transient int encodedSize;
 
     public CacheData() {
     }
@@ -75,6 +77,10 @@ public final class CacheData implements Externalizable, CacheItem {
         return timestamp;
     }
 
+    public Object getVersion() {
+        return version;
+    }
+
     public Object getValue() {
         return value;
     }
@@ -83,6 +89,18 @@ public final class CacheData implements Externalizable, CacheItem {
         return schemaVersion;
     }
 
+    /**
+     * @return size of the item this was decoded from, in bytes, before
+     *         compression, or 0 if it wasn't decoded
+     */
+    public int getEncodedSize() {
+        return encodedSize;
+    }
+
+    void setEncodedSize(int encodedSize) {
+        this.encodedSize = encodedSize;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder("CacheData{timestamp=")
@@ -38,6 +38,23 @@ public final class CacheLock implements CacheItem, Externalizable {
         this.version = version;
     }
 
+    CacheLock(int count, boolean concurrent, long unlockTimestamp, long timeout, int schemaVersion, Object version) {
+        this.count = count;
+        this.concurrent = concurrent;
+        this.unlockTimestamp = unlockTimestamp;
+        this.timeout = timeout;
+        this.schemaVersion = schemaVersion;
+        this.version = version;
+    }
+
+    /**
+     * A lock that unlocking never releases, so the item stays unwritable until
+     * {@code timeout}.
+     */
+    public static CacheLock unreleasable(long timeout, int schemaVersion) {
+        return new CacheLock(1, true, Long.MAX_VALUE, timeout, schemaVersion, null);
+    }
+
     public boolean writable(long txTimestamp, Object version, Comparator versionComparator, int schemaVersion) {
         if (this.schemaVersion > schemaVersion) {
             return false;
@@ -70,6 +87,30 @@ public final class CacheLock implements CacheItem, Externalizable {
         return false;
     }
 
+    int getCount() {
+        return count;
+    }
+
+    boolean isConcurrent() {
+        return concurrent;
+    }
+
+    long getUnlockTimestamp() {
+        return unlockTimestamp;
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+
+    int getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    Object getVersion() {
+        return version;
+    }
+
     public void writeExternal(ObjectOutput out) throws IOException {
         out.writeByte(2);
         out.writeInt(count);
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import org.fgsake.hibernate.cache.couchbase.ValueSerializer;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Transcoder that writes {@link CacheData} and {@link CacheLock} as a
+ * fixed-width binary envelope, tagged by type in the item flags, instead of
+ * Java serialization. Only the cached value (and a version of an unusual type)
+ * goes through the {@link ValueSerializer}.
+ * <p>
+ * Anything else, and anything stored without our flags (including the
+ * Java-serialized format 1 and 2 items written by older releases), is handled
+ * by spymemcached's {@link SerializingTranscoder}, so both encodings can be
+ * read no matter which one is being written.
+ * <p>
+ * Items of at least {@code compressionThreshold} bytes are compressed with the
+ * given codec, unless that doesn't make them smaller. The codec is recorded in
+ * the flags, so items compressed by any codec (or by spymemcached) decode.
+ * <p>
+ * Items that were already encoded, such as chunks and chunk manifests, are
+ * written as is. A chunk manifest decodes to a {@link ChunkManifest}, which
+ * {@link ClientWrapper} replaces with the item it stands in for.
+ */
+public class CacheTranscoder implements Transcoder<Object> {
+    private static final Logger log = Logger.getLogger(CacheTranscoder.class);
+
+    // SerializingTranscoder uses the low two bytes of the flags, CompressionCodec uses 0x2 and 0x100000
+    static final int TYPE_MASK = 0xf0000;
+    static final int TYPE_DATA = 0x10000;
+    static final int TYPE_LOCK = 0x20000;
+    static final int TYPE_CHUNKED = 0x30000;
+
+    private static final byte FORMAT = 3;
+
+    private static final byte VERSION_NULL = 0;
+    private static final byte VERSION_INT = 1;
+    private static final byte VERSION_LONG = 2;
+    private static final byte VERSION_SHORT = 3;
+    private static final byte VERSION_TIMESTAMP = 4;
+    private static final byte VERSION_DATE = 5;
+    private static final byte VERSION_SERIALIZED = 6;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_SERIALIZED = 1;
+
+    private final SerializingTranscoder delegate = new SerializingTranscoder();
+    private final ValueSerializer serializer;
+    private final boolean compact;
+    private final CompressionCodec codec;
+    private final int compressionThreshold;
+    private final CompressionStats stats = new CompressionStats();
+
+    /**
+     * @param compact whether to write the compact encoding; it's always read
+     * @param codec   codec for large items, or null to never compress
+     */
+    public CacheTranscoder(ValueSerializer serializer, boolean compact, CompressionCodec codec, int compressionThreshold) {
+        this.serializer = serializer;
+        this.compact = compact;
+        this.codec = codec;
+        this.compressionThreshold = compressionThreshold;
+        delegate.setCompressionThreshold(Integer.MAX_VALUE);
+    }
+
+    public CompressionStats getCompressionStats() {
+        return stats;
+    }
+
+    public boolean asyncDecode(CachedData d) {
+        return false;
+    }
+
+    public CachedData encode(Object o) {
+        if (o instanceof CachedData) {
+            return (CachedData) o;
+        }
+        CachedData encoded = encodeItem(o);
+        if (!(o instanceof CacheLock)) {
+            stats.recordEncode(encoded.getData().length);
+        }
+        return encoded;
+    }
+
+    private CachedData encodeItem(Object o) {
+        if (compact) {
+            if (o instanceof CacheData) {
+                return compress(new CachedData(TYPE_DATA, encodeData((CacheData) o), getMaxSize()));
+            } else if (o instanceof CacheLock) {
+                return compress(new CachedData(TYPE_LOCK, encodeLock((CacheLock) o), getMaxSize()));
+            }
+        }
+        return compress(delegate.encode(o));
+    }
+
+    public Object decode(CachedData d) {
+        try {
+            CompressionCodec itemCodec = CompressionCodec.forFlags(d.getFlags());
+            if (itemCodec != null) {
+                long start = System.nanoTime();
+                byte[] data = itemCodec.decompress(d.getData());
+                stats.recordDecompress(System.nanoTime() - start);
+                d = new CachedData(d.getFlags() & ~itemCodec.getFlag(), data, getMaxSize());
+            }
+
+            Object item;
+            switch (d.getFlags() & TYPE_MASK) {
+                case TYPE_DATA:
+                    item = decodeData(ByteBuffer.wrap(d.getData()));
+                    break;
+                case TYPE_LOCK:
+                    return decodeLock(ByteBuffer.wrap(d.getData()));
+                case TYPE_CHUNKED:
+                    return ChunkManifest.decode(d.getData());
+                default:
+                    item = delegate.decode(d);
+                    break;
+            }
+            if (item instanceof CacheData) {
+                ((CacheData) item).setEncodedSize(d.getData().length);
+            }
+            return item;
+        } catch (Exception e) {
+            log.warnf(e, "Unable to decode item with flags %x", d.getFlags());
+            return null;
+        }
+    }
+
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+
+    private CachedData compress(CachedData raw) {
+        byte[] data = raw.getData();
+        if (codec == null || data.length < compressionThreshold) {
+            return raw;
+        }
+
+        long start = System.nanoTime();
+        byte[] compressed;
+        try {
+            compressed = codec.compress(data);
+        } catch (IOException e) {
+            log.warnf(e, "Unable to compress with %s", codec);
+            return raw;
+        }
+        boolean kept = compressed.length < data.length;
+        stats.recordCompress(data.length, compressed.length, System.nanoTime() - start, kept);
+
+        return kept ? new CachedData(raw.getFlags() | codec.getFlag(), compressed, getMaxSize()) : raw;
+    }
+
+    private byte[] encodeData(CacheData data) {
+        byte[] versionBytes = serializedVersion(data.getVersion());
+        byte[] valueBytes = data.getValue() == null ? null : serialize(data.getValue());
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 4 + versionSize(data.getVersion(), versionBytes)
+                + 1 + (valueBytes == null ? 0 : valueBytes.length));
+        buf.put(FORMAT);
+        buf.putLong(data.getTimestamp());
+        buf.putInt(data.getSchemaVersion());
+        putVersion(buf, data.getVersion(), versionBytes);
+        if (valueBytes == null) {
+            buf.put(VALUE_NULL);
+        } else {
+            buf.put(VALUE_SERIALIZED);
+            buf.put(valueBytes);
+        }
+        return buf.array();
+    }
+
+    private CacheData decodeData(ByteBuffer buf) throws Exception {
+        checkFormat(buf.get());
+        long timestamp = buf.getLong();
+        int schemaVersion = buf.getInt();
+        Object version = getVersion(buf);
+        Object value = null;
+        if (buf.get() == VALUE_SERIALIZED) {
+            value = serializer.deserialize(buf.array(), buf.position(), buf.remaining());
+        }
+        return new CacheData(timestamp, version, value, schemaVersion);
+    }
+
+    private byte[] encodeLock(CacheLock lock) {
+        byte[] versionBytes = serializedVersion(lock.getVersion());
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 1 + 8 + 8 + 4 + versionSize(lock.getVersion(), versionBytes));
+        buf.put(FORMAT);
+        buf.putInt(lock.getCount());
+        buf.put((byte) (lock.isConcurrent() ? 1 : 0));
+        buf.putLong(lock.getUnlockTimestamp());
+        buf.putLong(lock.getTimeout());
+        buf.putInt(lock.getSchemaVersion());
+        putVersion(buf, lock.getVersion(), versionBytes);
+        return buf.array();
+    }
+
+    private CacheLock decodeLock(ByteBuffer buf) throws Exception {
+        checkFormat(buf.get());
+        int count = buf.getInt();
+        boolean concurrent = (buf.get() & 1) != 0;
+        long unlockTimestamp = buf.getLong();
+        long timeout = buf.getLong();
+        int schemaVersion = buf.getInt();
+        Object version = getVersion(buf);
+        return new CacheLock(count, concurrent, unlockTimestamp, timeout, schemaVersion, version);
+    }
+
+    private static void checkFormat(byte format) {
+        if (format != FORMAT) {
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+    }
+
+    private byte[] serialize(Object o) {
+        try {
+            return serializer.serialize(o);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to serialize " + o.getClass().getName(), e);
+        }
+    }
+
+    private byte[] serializedVersion(Object version) {
+        return version == null || isInline(version) ? null : serialize(version);
+    }
+
+    private static boolean isInline(Object version) {
+        Class<?> c = version.getClass();
+        return c == Integer.class || c == Long.class || c == Short.class || c == Timestamp.class || c == Date.class;
+    }
+
+    private static int versionSize(Object version, byte[] versionBytes) {
+        if (version == null) {
+            return 1;
+        } else if (versionBytes != null) {
+            return 1 + 4 + versionBytes.length;
+        }
+
+        Class<?> c = version.getClass();
+        if (c == Integer.class) {
+            return 1 + 4;
+        } else if (c == Long.class) {
+            return 1 + 8;
+        } else if (c == Short.class) {
+            return 1 + 2;
+        } else if (c == Timestamp.class) {
+            return 1 + 8 + 4;
+        } else {
+            return 1 + 8;
+        }
+    }
+
+    private static void putVersion(ByteBuffer buf, Object version, byte[] versionBytes) {
+        if (version == null) {
+            buf.put(VERSION_NULL);
+        } else if (versionBytes != null) {
+            buf.put(VERSION_SERIALIZED);
+            buf.putInt(versionBytes.length);
+            buf.put(versionBytes);
+        } else if (version instanceof Integer) {
+            buf.put(VERSION_INT);
+            buf.putInt((Integer) version);
+        } else if (version instanceof Long) {
+            buf.put(VERSION_LONG);
+            buf.putLong((Long) version);
+        } else if (version instanceof Short) {
+            buf.put(VERSION_SHORT);
+            buf.putShort((Short) version);
+        } else if (version instanceof Timestamp) {
+            buf.put(VERSION_TIMESTAMP);
+            buf.putLong(((Timestamp) version).getTime());
+            buf.putInt(((Timestamp) version).getNanos());
+        } else {
+            buf.put(VERSION_DATE);
+            buf.putLong(((Date) version).getTime());
+        }
+    }
+
+    private Object getVersion(ByteBuffer buf) throws Exception {
+        byte tag = buf.get();
+        switch (tag) {
+            case VERSION_NULL:
+                return null;
+            case VERSION_INT:
+                return buf.getInt();
+            case VERSION_LONG:
+                return buf.getLong();
+            case VERSION_SHORT:
+                return buf.getShort();
+            case VERSION_TIMESTAMP:
+                Timestamp ts = new Timestamp(buf.getLong());
+                ts.setNanos(buf.getInt());
+                return ts;
+            case VERSION_DATE:
+                return new Date(buf.getLong());
+            case VERSION_SERIALIZED:
+                int length = buf.getInt();
+                Object version = serializer.deserialize(buf.array(), buf.position(), length);
+                buf.position(buf.position() + length);
+                return version;
+            default:
+                throw new IllegalArgumentException("Unknown version type " + tag);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CachedData;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Stands in for an item too large to store whole. The encoded item is split
+ * into chunks stored under their own keys, and the manifest, stored under the
+ * item's key, records how to put them back together.
+ * <p>
+ * Chunk keys are derived from a random ID rather than the item's key, so
+ * chunks written for different versions of an item never mix. A CRC of the
+ * whole item catches chunks that were evicted and rewritten by another
+ * version anyway.
+ */
+final class ChunkManifest {
+    private static final byte FORMAT = 1;
+    private static final String KEY_PREFIX = "#chunk:";
+
+    private final long id;
+    private final int count;
+    private final int length;
+    private final int crc;
+    private final int flags;
+
+    private ChunkManifest(long id, int count, int length, int crc, int flags) {
+        this.id = id;
+        this.count = count;
+        this.length = length;
+        this.crc = crc;
+        this.flags = flags;
+    }
+
+    /**
+     * Splits {@code item} into chunks of at most {@code chunkSize} bytes.
+     *
+     * @param chunks filled with the chunks to store, by key
+     */
+    static ChunkManifest split(CachedData item, int chunkSize, long id, Map<String, CachedData> chunks) {
+        byte[] data = item.getData();
+        int count = (data.length + chunkSize - 1) / chunkSize;
+        ChunkManifest manifest = new ChunkManifest(id, count, data.length, crc(data), item.getFlags());
+        for (int i = 0; i < count; i++) {
+            int offset = i * chunkSize;
+            byte[] chunk = new byte[Math.min(chunkSize, data.length - offset)];
+            System.arraycopy(data, offset, chunk, 0, chunk.length);
+            chunks.put(manifest.key(i), new CachedData(0, chunk, CachedData.MAX_SIZE));
+        }
+        return manifest;
+    }
+
+    static ChunkManifest decode(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        byte format = buf.get();
+        if (format != FORMAT) {
+            throw new IllegalArgumentException("Unknown chunk manifest format " + format);
+        }
+        return new ChunkManifest(buf.getLong(), buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt());
+    }
+
+    byte[] encode() {
+        return ByteBuffer.allocate(1 + 8 + 4 + 4 + 4 + 4)
+                .put(FORMAT)
+                .putLong(id)
+                .putInt(count)
+                .putInt(length)
+                .putInt(crc)
+                .putInt(flags)
+                .array();
+    }
+
+    List<String> keys() {
+        List<String> keys = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(key(i));
+        }
+        return keys;
+    }
+
+    /**
+     * @return the original item, or null if any chunk is missing or doesn't
+     *         belong to it
+     */
+    CachedData join(Map<String, CachedData> chunks) {
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            CachedData chunk = chunks.get(key(i));
+            if (chunk == null || offset + chunk.getData().length > length) {
+                return null;
+            }
+            System.arraycopy(chunk.getData(), 0, data, offset, chunk.getData().length);
+            offset += chunk.getData().length;
+        }
+        if (offset != length || crc(data) != crc) {
+            return null;
+        }
+        return new CachedData(flags, data, Math.max(length, CachedData.MAX_SIZE));
+    }
+
+    private String key(int i) {
+        return KEY_PREFIX + Long.toString(id, 36) + ":" + i;
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkManifest{id=" + Long.toString(id, 36) + ", count=" + count + ", length=" + length + "}";
+    }
+}
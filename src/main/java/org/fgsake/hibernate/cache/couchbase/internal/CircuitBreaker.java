@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.jboss.logging.Logger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stops sending operations to Couchbase while too many of them fail.
+ * <p>
+ * While CLOSED, outcomes are counted over a rolling window. Once at least
+ * {@code minimumRequests} in the window have completed and the share that
+ * failed reaches {@code failureRate}, the breaker OPENs and rejects
+ * everything for {@code openDuration}. It's then HALF_OPEN: up to
+ * {@code probes} operations are let through, and it closes once that many
+ * succeed, or opens again at the first failure.
+ * <p>
+ * Writes rejected while not CLOSED are lost, so the cache may hold entries
+ * that should have been invalidated. If any were, the recovery actions run
+ * when the breaker closes again.
+ */
+public final class CircuitBreaker {
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    private static final int BUCKETS = 10;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final double failureRate;
+    private final int minimumRequests;
+    private final long bucketNanos;
+    private final long openNanos;
+    private final int probes;
+    private final ExecutorService executor;
+    private final long start = System.nanoTime();
+
+    private final StripedCounter[] successes = new StripedCounter[BUCKETS];
+    private final StripedCounter[] failures = new StripedCounter[BUCKETS];
+    private final AtomicLongArray ticks = new AtomicLongArray(BUCKETS);
+
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+    private final AtomicInteger probesSent = new AtomicInteger();
+    private final AtomicInteger probesSucceeded = new AtomicInteger();
+
+    private final AtomicBoolean writesDropped = new AtomicBoolean();
+    private final List<Runnable> recoveryActions = new CopyOnWriteArrayList<Runnable>();
+    private final StripedCounter rejected = new StripedCounter();
+    private final AtomicLong trips = new AtomicLong();
+
+    /**
+     * @param executor runs recovery actions
+     */
+    public CircuitBreaker(String name, double failureRate, int minimumRequests, long window, long openDuration, int probes, TimeUnit unit, ExecutorService executor) {
+        this.name = name;
+        this.failureRate = failureRate;
+        this.minimumRequests = minimumRequests;
+        this.bucketNanos = Math.max(unit.toNanos(window) / BUCKETS, 1);
+        this.openNanos = unit.toNanos(openDuration);
+        this.probes = probes;
+        this.executor = executor;
+        for (int i = 0; i < BUCKETS; i++) {
+            successes[i] = new StripedCounter();
+            failures[i] = new StripedCounter();
+        }
+    }
+
+    /**
+     * Adds an action to run when the breaker closes after writes were dropped.
+     */
+    public void addRecoveryAction(Runnable action) {
+        recoveryActions.add(action);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return number of times the breaker has opened
+     */
+    public long getTripCount() {
+        return trips.get();
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return whether an operation may be sent; if not, it's counted as rejected
+     */
+    public boolean allowRequest() {
+        State s = state;
+        if (s == State.CLOSED) {
+            return true;
+        }
+
+        if (s == State.OPEN) {
+            synchronized (this) {
+                if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                    log.infof("Circuit breaker %s half-open, probing Couchbase", name);
+                    probesSent.set(0);
+                    probesSucceeded.set(0);
+                    state = State.HALF_OPEN;
+                }
+                s = state;
+            }
+        }
+
+        if (s == State.HALF_OPEN && probesSent.incrementAndGet() <= probes) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    public void onSuccess() {
+        State s = state;
+        if (s == State.CLOSED) {
+            successes[bucket()].increment();
+        } else if (s == State.HALF_OPEN && probesSucceeded.incrementAndGet() >= probes) {
+            close();
+        }
+    }
+
+    public void onFailure() {
+        State s = state;
+        if (s == State.CLOSED) {
+            failures[bucket()].increment();
+            if (tripped()) {
+                open();
+            }
+        } else if (s == State.HALF_OPEN) {
+            open();
+        }
+    }
+
+    /**
+     * Records that a rejected operation would have changed the cache.
+     */
+    public void onWriteDropped() {
+        writesDropped.set(true);
+    }
+
+    private boolean tripped() {
+        long now = tick();
+        long ok = 0;
+        long failed = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (now - ticks.get(i) < BUCKETS) {
+                ok += successes[i].get();
+                failed += failures[i].get();
+            }
+        }
+        long total = ok + failed;
+        return total >= minimumRequests && failed >= failureRate * total;
+    }
+
+    private synchronized void open() {
+        if (state == State.OPEN) {
+            return;
+        }
+        log.warnf("Circuit breaker %s open, bypassing Couchbase for %dms", name, TimeUnit.NANOSECONDS.toMillis(openNanos));
+        trips.incrementAndGet();
+        openedAt = System.nanoTime();
+        state = State.OPEN;
+    }
+
+    private synchronized void close() {
+        if (state != State.HALF_OPEN) {
+            return;
+        }
+        log.infof("Circuit breaker %s closed", name);
+        for (int i = 0; i < BUCKETS; i++) {
+            successes[i].reset();
+            failures[i].reset();
+        }
+        state = State.CLOSED;
+
+        if (writesDropped.getAndSet(false)) {
+            for (Runnable action : recoveryActions) {
+                try {
+                    executor.execute(action);
+                } catch (RejectedExecutionException e) {
+                    log.debugf("Not running recovery action %s, shutting down", action);
+                }
+            }
+        }
+    }
+
+    private long tick() {
+        return (System.nanoTime() - start) / bucketNanos;
+    }
+
+    /**
+     * @return the index of the current bucket, which is cleared first if it
+     *         last held an earlier tick
+     */
+    private int bucket() {
+        long tick = tick();
+        int i = (int) (tick % BUCKETS);
+        long last = ticks.get(i);
+        if (last != tick && ticks.compareAndSet(i, last, tick)) {
+            successes[i].reset();
+            failures[i].reset();
+        }
+        return i;
+    }
+}
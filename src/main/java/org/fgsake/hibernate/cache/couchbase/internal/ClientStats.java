@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of each {@link ClientWrapper} operation, plus counts of operations
+ * that timed out or couldn't be queued and of items split into chunks.
+ * Latencies are reported both since startup and over the last completed
+ * interval of at least {@value #LATENCY_INTERVAL_SECONDS} seconds.
+ */
+public final class ClientStats {
+    public enum Op {
+        ADD("add"),
+        CAS("cas"),
+        DELETE("delete"),
+        GET("get"),
+        GET_BULK("getBulk"),
+        GETS("gets"),
+        INCR("incr"),
+        SET("set"),
+        TOUCH("touch");
+
+        private final String opName;
+
+        Op(String opName) {
+            this.opName = opName;
+        }
+
+        public String getOpName() {
+            return opName;
+        }
+    }
+
+    static final int LATENCY_INTERVAL_SECONDS = 60;
+
+    private final EnumMap<Op, LatencyHistogram> latencies = new EnumMap<Op, LatencyHistogram>(Op.class);
+    private final StripedCounter timeouts = new StripedCounter();
+    private final StripedCounter queueFull = new StripedCounter();
+    private final StripedCounter chunkedWrites = new StripedCounter();
+    private final StripedCounter chunkedReads = new StripedCounter();
+    private final StripedCounter incompleteChunkedReads = new StripedCounter();
+
+    public ClientStats() {
+        for (Op op : Op.values()) {
+            latencies.put(op, new LatencyHistogram(LATENCY_INTERVAL_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    public void record(Op op, long startNanos) {
+        latencies.get(op).record(System.nanoTime() - startNanos);
+    }
+
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    public void queueFull() {
+        queueFull.increment();
+    }
+
+    public void chunkedWrite() {
+        chunkedWrites.increment();
+    }
+
+    public void chunkedRead() {
+        chunkedReads.increment();
+    }
+
+    public void incompleteChunkedRead() {
+        incompleteChunkedReads.increment();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getQueueFullCount() {
+        return queueFull.get();
+    }
+
+    public long getChunkedWriteCount() {
+        return chunkedWrites.get();
+    }
+
+    public long getChunkedReadCount() {
+        return chunkedReads.get();
+    }
+
+    /**
+     * @return number of chunked items read with chunks missing or mismatched
+     */
+    public long getIncompleteChunkedReadCount() {
+        return incompleteChunkedReads.get();
+    }
+
+    /**
+     * @return latencies by operation name
+     */
+    public Map<String, LatencySnapshot> getLatencies() {
+        Map<String, LatencySnapshot> snapshots = new LinkedHashMap<String, LatencySnapshot>();
+        for (Map.Entry<Op, LatencyHistogram> e : latencies.entrySet()) {
+            snapshots.put(e.getKey().getOpName(), e.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * @return latencies over the last completed interval, by operation name
+     */
+    public Map<String, LatencySnapshot> getRecentLatencies() {
+        Map<String, LatencySnapshot> snapshots = new LinkedHashMap<String, LatencySnapshot>();
+        for (Map.Entry<Op, LatencyHistogram> e : latencies.entrySet()) {
+            snapshots.put(e.getKey().getOpName(), e.getValue().intervalSnapshot());
+        }
+        return snapshots;
+    }
+}
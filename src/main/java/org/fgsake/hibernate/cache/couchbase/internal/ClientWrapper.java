@@ -18,135 +18,730 @@ package org.fgsake.hibernate.cache.couchbase.internal;
 
 import net.spy.memcached.CASResponse;
 import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.DefaultConnectionFactory;
 import net.spy.memcached.MemcachedClient;
 import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.BulkFuture;
 import net.spy.memcached.internal.OperationCompletionListener;
 import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.transcoders.Transcoder;
+import org.fgsake.hibernate.cache.couchbase.CacheBackend;
+import org.fgsake.hibernate.cache.couchbase.internal.ClientStats.Op;
 import org.hibernate.cache.CacheException;
 import org.jboss.logging.Logger;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Wrapper around {@link MemcachedClient}, wrapping exceptions in {@link CacheException}
- * and enabling trace logging.
+ * Wrapper around a {@link CacheBackend}, wrapping exceptions in {@link CacheException},
+ * recording {@link ClientStats} and enabling trace logging.
+ * <p>
+ * With a {@link CircuitBreaker}, operations it rejects don't reach Couchbase:
+ * reads miss, and writes are dropped and return an already failed future.
+ * Dropping a write that invalidates, such as a delete or a lock, is reported
+ * to the breaker, so that the cache is cleared once it closes. Writes that
+ * only fill the cache are passed as not invalidating and dropped silently.
+ * <p>
+ * With a chunk size, items that encode to more than that many bytes are
+ * split into chunks, which are written without waiting for them, followed
+ * by a {@link ChunkManifest} under the item's key. Reads fetch the chunks
+ * with one multi-get and reassemble the item; if any chunk is missing or
+ * doesn't match, the item reads as undecodable ({@code null}). Chunks of
+ * replaced or deleted items are left to expire, so they're written with a
+ * TTL even when the item has none; chunks whose manifest isn't stored, e.g.
+ * because an add lost or a CAS failed, are deleted right away.
+ * {@link #asyncGets} returns the manifest itself.
+ * <p>
+ * With more than one backend client, each key is always sent through the
+ * same one, so operations on a key stay in order. Multi-gets are split by
+ * client and sent in parallel.
  */
 public class ClientWrapper {
     private static final Logger log = Logger.getLogger(ClientWrapper.class);
 
-    private final MemcachedClient client;
+    private static final OperationStatus REJECTED = new OperationStatus(false, "Circuit breaker open", StatusCode.ERR_CLIENT);
+    /**
+     * TTL of the chunks of items that don't expire, in seconds
+     */
+    private static final int CHUNK_TTL = 24 * 60 * 60;
+
+    private final CacheBackend[] clients;
+    private final CacheTranscoder transcoder;
+    private final GetBatcher[] batchers;
+    private final CircuitBreaker breaker;
+    private final int chunkSize;
+    private final long operationTimeout;
+    private final ClientStats stats = new ClientStats();
+    private final Random chunkIds = new Random();
 
     public ClientWrapper(MemcachedClient client) {
-        this.client = client;
+        this(new MemcachedBackend(client), new CacheTranscoder(new JavaValueSerializer(), true, CompressionCodec.GZIP, 16384), null, null);
+    }
+
+    /**
+     * @param batcher if not null, {@link #get} goes through this to share
+     *                multi-gets with concurrent callers
+     * @param breaker if not null, guards every operation
+     */
+    public ClientWrapper(CacheBackend client, CacheTranscoder transcoder, GetBatcher batcher, CircuitBreaker breaker) {
+        this(new CacheBackend[] {client}, transcoder, batcher != null ? new GetBatcher[] {batcher} : null, breaker, 0);
+    }
+
+    /**
+     * @param clients   keys are spread over these by hash
+     * @param batchers  if not null, one per client
+     * @param chunkSize largest item written whole, in bytes, or 0 to never
+     *                  split items
+     */
+    public ClientWrapper(CacheBackend[] clients, CacheTranscoder transcoder, GetBatcher[] batchers, CircuitBreaker breaker, int chunkSize) {
+        this(clients, transcoder, batchers, breaker, chunkSize, DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT);
+    }
+
+    /**
+     * @param operationTimeout the clients' operation timeout, in milliseconds,
+     *                         which multi-gets split over them also wait
+     */
+    public ClientWrapper(CacheBackend[] clients, CacheTranscoder transcoder, GetBatcher[] batchers, CircuitBreaker breaker, int chunkSize, long operationTimeout) {
+        this.clients = clients;
+        this.transcoder = transcoder;
+        this.batchers = batchers;
+        this.breaker = breaker;
+        this.chunkSize = chunkSize;
+        this.operationTimeout = operationTimeout;
+    }
+
+    /**
+     * @return a wrapper sharing this one's connection and circuit breaker but
+     *         encoding items with {@code transcoder}, splitting them at
+     *         {@code chunkSize} and keeping its own stats
+     */
+    public ClientWrapper withTranscoder(CacheTranscoder transcoder, int chunkSize) {
+        return new ClientWrapper(clients, transcoder, batchers, breaker, chunkSize, operationTimeout);
+    }
+
+    public CompressionStats getCompressionStats() {
+        return transcoder.getCompressionStats();
+    }
+
+    public ClientStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the circuit breaker, or null if there isn't one
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return the clients' operation timeout, in milliseconds
+     */
+    public long getOperationTimeout() {
+        return operationTimeout;
+    }
+
+    /**
+     * @return whether {@code future} is for an operation the circuit breaker rejected
+     */
+    public static boolean isRejected(OperationFuture<?> future) {
+        return future.getStatus() == REJECTED;
     }
 
     public OperationFuture<Boolean> add(String key, int exp, Object o) {
+        return add(key, exp, o, true);
+    }
+
+    /**
+     * @param invalidating whether dropping the write could leave a stale
+     *                     item to be read; false for writes that only fill
+     *                     the cache
+     */
+    public OperationFuture<Boolean> add(String key, int exp, Object o, boolean invalidating) {
+        if (!allow()) {
+            return dropped(key, Boolean.FALSE, invalidating);
+        }
+        long start = System.nanoTime();
         try {
-            OperationFuture<Boolean> future = client.add(key, exp, o);
+            Object data = chunked(exp, o);
+            OperationFuture<Boolean> future = clientFor(key).add(key, exp, data, transcoder);
+            future.addListener(new OpListener(Op.ADD, start));
+            discardChunksUnlessStored(future, data);
             if (log.isTraceEnabled()) {
                 future.addListener(new LogListener("add"));
             }
             return future;
         } catch (IllegalStateException e) {
+            queueFull();
             throw new CacheException("Client command queue is full", e);
         } catch (RuntimeException e) {
+            failed();
             Throwable t = e.getCause() != null ? e.getCause() : e;
             throw new CacheException("Exception talking to Couchbase", t);
         }
     }
 
     public OperationFuture<CASResponse> asyncCAS(String key, long casId, int exp, Object value) {
+        return asyncCAS(key, casId, exp, value, true);
+    }
+
+    /**
+     * @param invalidating whether dropping the write could leave a stale
+     *                     item to be read; false for writes that only fill
+     *                     the cache
+     */
+    public OperationFuture<CASResponse> asyncCAS(String key, long casId, int exp, Object value, boolean invalidating) {
+        if (!allow()) {
+            return dropped(key, (CASResponse) null, invalidating);
+        }
+        long start = System.nanoTime();
         try {
-            OperationFuture<CASResponse> future = client.asyncCAS(key, casId, exp, value);
+            Object data = chunked(exp, value);
+            OperationFuture<CASResponse> future = clientFor(key).asyncCAS(key, casId, exp, data, transcoder);
+            future.addListener(new OpListener(Op.CAS, start));
+            discardChunksUnlessStored(future, data);
             if (log.isTraceEnabled()) {
                 future.addListener(new LogListener("cas"));
             }
             return future;
         } catch (IllegalStateException e) {
+            queueFull();
             throw new CacheException("Client command queue is full", e);
         } catch (RuntimeException e) {
+            failed();
             Throwable t = e.getCause() != null ? e.getCause() : e;
             throw new CacheException("Exception talking to Couchbase", t);
         }
     }
 
+    /**
+     * @return the response, or null if the circuit breaker dropped the write
+     */
     public CASResponse cas(String key, long casId, int exp, Object value) {
+        return cas(key, casId, exp, value, true);
+    }
+
+    /**
+     * @param invalidating whether dropping the write could leave a stale
+     *                     item to be read; false for writes that only fill
+     *                     the cache
+     * @return the response, or null if the circuit breaker dropped the write
+     */
+    public CASResponse cas(String key, long casId, int exp, Object value, boolean invalidating) {
+        if (!allow()) {
+            if (invalidating) {
+                breaker.onWriteDropped();
+            }
+            return null;
+        }
+        long start = System.nanoTime();
         try {
-            CASResponse rsp = client.cas(key, casId, exp, value);
+            Object data = chunked(exp, value);
+            CASResponse rsp = clientFor(key).cas(key, casId, exp, data, transcoder);
+            succeeded(Op.CAS, start);
+            if (rsp == CASResponse.EXISTS || rsp == CASResponse.NOT_FOUND) {
+                discardChunks(data);
+            }
             log.tracef("cas %s: %s", key, rsp);
             return rsp;
         } catch (OperationTimeoutException e) {
+            timedOut();
             throw new CacheException("Couchbase unavailable", e);
         } catch (IllegalStateException e) {
+            queueFull();
             throw new CacheException("Client command queue is full", e);
         } catch (RuntimeException e) {
+            failed();
             Throwable t = e.getCause() != null ? e.getCause() : e;
             throw new CacheException("Exception talking to Couchbase", t);
         }
     }
 
     public OperationFuture<Boolean> delete(String key) {
+        if (!allow()) {
+            return dropped(key, Boolean.FALSE, true);
+        }
+        long start = System.nanoTime();
         try {
-            OperationFuture<Boolean> future = client.delete(key);
+            OperationFuture<Boolean> future = clientFor(key).delete(key);
+            future.addListener(new OpListener(Op.DELETE, start));
             if (log.isTraceEnabled()) {
                 future.addListener(new LogListener("delete"));
             }
             return future;
         } catch (IllegalStateException e) {
+            queueFull();
+            throw new CacheException("Client command queue is full", e);
+        } catch (RuntimeException e) {
+            failed();
+            Throwable t = e.getCause() != null ? e.getCause() : e;
+            throw new CacheException("Exception talking to Couchbase", t);
+        }
+    }
+
+    /**
+     * Sets the TTL of {@code key} without changing its value. A touch
+     * rejected by the circuit breaker isn't counted as a dropped write, since
+     * the item just expires on schedule.
+     */
+    public OperationFuture<Boolean> touch(String key, int exp) {
+        if (!allow()) {
+            return rejected(key, Boolean.FALSE);
+        }
+        long start = System.nanoTime();
+        try {
+            OperationFuture<Boolean> future = clientFor(key).touch(key, exp);
+            future.addListener(new OpListener(Op.TOUCH, start));
+            if (log.isTraceEnabled()) {
+                future.addListener(new LogListener("touch"));
+            }
+            return future;
+        } catch (IllegalStateException e) {
+            queueFull();
             throw new CacheException("Client command queue is full", e);
         } catch (RuntimeException e) {
+            failed();
             Throwable t = e.getCause() != null ? e.getCause() : e;
             throw new CacheException("Exception talking to Couchbase", t);
         }
     }
 
     public Object get(String key) {
+        if (!allow()) {
+            return null;
+        }
+        long start = System.nanoTime();
         try {
-            Object value = client.get(key);
+            Object value;
+            if (batchers != null) {
+                CachedData raw = batchers[index(key)].get(key);
+                value = raw != null ? transcoder.decode(raw) : null;
+            } else {
+                value = clientFor(key).get(key, transcoder);
+            }
+            value = unchunked(key, value);
+            succeeded(Op.GET, start);
             log.tracef("get %s: %s", key, value);
             return value;
         } catch (OperationTimeoutException e) {
+            timedOut();
             throw new CacheException("Couchbase unavailable", e);
+        } catch (GetBatcher.ShutdownException e) {
+            throw new CacheException("Client is shutting down", e);
         } catch (IllegalStateException e) {
+            queueFull();
             throw new CacheException("Client command queue is full", e);
         } catch (RuntimeException e) {
+            failed();
+            Throwable t = e.getCause() != null ? e.getCause() : e;
+            throw new CacheException("Exception talking to Couchbase", t);
+        }
+    }
+
+    public Map<String, Object> getBulk(Collection<String> keys) {
+        if (!allow()) {
+            return Collections.emptyMap();
+        }
+        long start = System.nanoTime();
+        try {
+            Map<String, Object> values = unchunked(bulk(keys, transcoder));
+            succeeded(Op.GET_BULK, start);
+            log.tracef("getBulk %s: %s", keys, values);
+            return values;
+        } catch (OperationTimeoutException e) {
+            timedOut();
+            throw new CacheException("Couchbase unavailable", e);
+        } catch (IllegalStateException e) {
+            queueFull();
+            throw new CacheException("Client command queue is full", e);
+        } catch (RuntimeException e) {
+            failed();
             Throwable t = e.getCause() != null ? e.getCause() : e;
             throw new CacheException("Exception talking to Couchbase", t);
         }
     }
 
     public CASValue<Object> gets(String key) {
+        if (!allow()) {
+            return null;
+        }
+        long start = System.nanoTime();
         try {
-            CASValue<Object> value = client.gets(key);
+            CASValue<Object> value = clientFor(key).gets(key, transcoder);
+            if (value != null && value.getValue() instanceof ChunkManifest) {
+                value = new CASValue<Object>(value.getCas(), unchunked(key, value.getValue()));
+            }
+            succeeded(Op.GETS, start);
             log.tracef("gets %s: %s", key, value);
             return value;
         } catch (OperationTimeoutException e) {
+            timedOut();
             throw new CacheException("Couchbase unavailable", e);
         } catch (IllegalStateException e) {
+            queueFull();
+            throw new CacheException("Client command queue is full", e);
+        } catch (RuntimeException e) {
+            failed();
+            Throwable t = e.getCause() != null ? e.getCause() : e;
+            throw new CacheException("Exception talking to Couchbase", t);
+        }
+    }
+
+    public OperationFuture<CASValue<Object>> asyncGets(String key) {
+        if (!allow()) {
+            return rejected(key, null);
+        }
+        long start = System.nanoTime();
+        try {
+            OperationFuture<CASValue<Object>> future = clientFor(key).asyncGets(key, transcoder);
+            future.addListener(new OpListener(Op.GETS, start));
+            if (log.isTraceEnabled()) {
+                future.addListener(new LogListener("gets"));
+            }
+            return future;
+        } catch (IllegalStateException e) {
+            queueFull();
             throw new CacheException("Client command queue is full", e);
         } catch (RuntimeException e) {
+            failed();
+            Throwable t = e.getCause() != null ? e.getCause() : e;
+            throw new CacheException("Exception talking to Couchbase", t);
+        }
+    }
+
+    /**
+     * @return the new value, or -1 on failure
+     */
+    public long incr(String key, int by, long def) {
+        if (!allow()) {
+            if (by != 0) {
+                breaker.onWriteDropped();
+            }
+            return -1;
+        }
+        long start = System.nanoTime();
+        try {
+            long value = clientFor(key).incr(key, by, def, 0);
+            succeeded(Op.INCR, start);
+            log.tracef("incr %s: %d", key, value);
+            return value;
+        } catch (OperationTimeoutException e) {
+            timedOut();
+            throw new CacheException("Couchbase unavailable", e);
+        } catch (IllegalStateException e) {
+            queueFull();
+            throw new CacheException("Client command queue is full", e);
+        } catch (RuntimeException e) {
+            failed();
             Throwable t = e.getCause() != null ? e.getCause() : e;
             throw new CacheException("Exception talking to Couchbase", t);
         }
     }
 
     public OperationFuture<Boolean> set(String key, int exp, Object o) {
+        return set(key, exp, o, true);
+    }
+
+    /**
+     * @param invalidating whether dropping the write could leave a stale
+     *                     item to be read; false for writes that only fill
+     *                     the cache
+     */
+    public OperationFuture<Boolean> set(String key, int exp, Object o, boolean invalidating) {
+        if (!allow()) {
+            return dropped(key, Boolean.FALSE, invalidating);
+        }
+        long start = System.nanoTime();
         try {
-            OperationFuture<Boolean> future = client.set(key, exp, o);
+            Object data = chunked(exp, o);
+            OperationFuture<Boolean> future = clientFor(key).set(key, exp, data, transcoder);
+            future.addListener(new OpListener(Op.SET, start));
+            discardChunksUnlessStored(future, data);
             if (log.isTraceEnabled()) {
                 future.addListener(new LogListener("set"));
             }
             return future;
         } catch (IllegalStateException e) {
+            queueFull();
             throw new CacheException("Client command queue is full", e);
         } catch (RuntimeException e) {
+            failed();
             Throwable t = e.getCause() != null ? e.getCause() : e;
             throw new CacheException("Exception talking to Couchbase", t);
         }
     }
 
     public void shutdown(long timeout, TimeUnit unit) {
-        client.shutdown(timeout, unit);
+        if (batchers != null) {
+            for (GetBatcher batcher : batchers) {
+                batcher.shutdown();
+            }
+        }
+        for (CacheBackend client : clients) {
+            client.shutdown(timeout, unit);
+        }
+    }
+
+    private CacheBackend clientFor(String key) {
+        return clients[index(key)];
+    }
+
+    private int index(String key) {
+        if (clients.length == 1) {
+            return 0;
+        }
+        // Spread the hash so keys that differ only at the end don't cluster
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & Integer.MAX_VALUE) % clients.length;
+    }
+
+    /**
+     * Fetches {@code keys} with one multi-get per client, all sent before
+     * waiting for any of them.
+     */
+    private <T> Map<String, T> bulk(Collection<String> keys, Transcoder<T> tc) {
+        if (clients.length == 1) {
+            return clients[0].getBulk(keys, tc);
+        }
+
+        List<List<String>> groups = new ArrayList<List<String>>(clients.length);
+        for (int i = 0; i < clients.length; i++) {
+            groups.add(new ArrayList<String>());
+        }
+        for (String key : keys) {
+            groups.get(index(key)).add(key);
+        }
+
+        List<BulkFuture<Map<String, T>>> futures = new ArrayList<BulkFuture<Map<String, T>>>(clients.length);
+        for (int i = 0; i < clients.length; i++) {
+            if (!groups.get(i).isEmpty()) {
+                futures.add(clients[i].asyncGetBulk(groups.get(i), tc));
+            }
+        }
+
+        Map<String, T> values = new HashMap<String, T>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(operationTimeout);
+        for (BulkFuture<Map<String, T>> future : futures) {
+            try {
+                values.putAll(future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted getting bulk values", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Exception waiting for bulk values", e.getCause());
+            } catch (TimeoutException e) {
+                throw new OperationTimeoutException("Timeout waiting for bulk values", e);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return {@code o}, or if it encodes to more than {@code chunkSize}
+     *         bytes, the manifest of the chunks it was split into, which
+     *         have been written already
+     */
+    private Object chunked(int exp, Object o) {
+        if (chunkSize <= 0) {
+            return o;
+        }
+        CachedData encoded = transcoder.encode(o);
+        if (encoded.getData().length <= chunkSize) {
+            return encoded;
+        }
+
+        Map<String, CachedData> chunks = new LinkedHashMap<String, CachedData>();
+        ChunkManifest manifest = ChunkManifest.split(encoded, chunkSize, nextChunkId(), chunks);
+        int chunkExp = exp > 0 ? exp : CHUNK_TTL;
+        for (Map.Entry<String, CachedData> chunk : chunks.entrySet()) {
+            long start = System.nanoTime();
+            clientFor(chunk.getKey()).set(chunk.getKey(), chunkExp, chunk.getValue(), transcoder).addListener(new OpListener(Op.SET, start));
+        }
+        stats.chunkedWrite();
+        log.tracef("Split %d bytes into %s", encoded.getData().length, manifest);
+        return new CachedData(CacheTranscoder.TYPE_CHUNKED, manifest.encode(), CachedData.MAX_SIZE);
+    }
+
+    /**
+     * Deletes the chunks of {@code data}, if it's a chunk manifest, once
+     * {@code future} shows it wasn't stored.
+     */
+    private void discardChunksUnlessStored(OperationFuture<?> future, final Object data) {
+        if (!isManifest(data)) {
+            return;
+        }
+        future.addListener(new OperationCompletionListener() {
+            public void onComplete(OperationFuture<?> future) throws Exception {
+                switch (future.getStatus().getStatusCode()) {
+                case ERR_EXISTS:
+                case ERR_NOT_FOUND:
+                case ERR_NOT_STORED:
+                    discardChunks(data);
+                    break;
+                default:
+                    break;
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the chunks of {@code data}, if it's the manifest of an item
+     * that wasn't stored, since nothing will ever read them.
+     */
+    private void discardChunks(Object data) {
+        if (!isManifest(data)) {
+            return;
+        }
+        ChunkManifest manifest = ChunkManifest.decode(((CachedData) data).getData());
+        log.tracef("Discarding chunks of %s", manifest);
+        for (String chunkKey : manifest.keys()) {
+            long start = System.nanoTime();
+            try {
+                clientFor(chunkKey).delete(chunkKey).addListener(new OpListener(Op.DELETE, start));
+            } catch (RuntimeException e) {
+                log.debugf(e, "Leaving chunk %s to expire", chunkKey);
+            }
+        }
+    }
+
+    private static boolean isManifest(Object data) {
+        return data instanceof CachedData && ((CachedData) data).getFlags() == CacheTranscoder.TYPE_CHUNKED;
+    }
+
+    private long nextChunkId() {
+        synchronized (chunkIds) {
+            return chunkIds.nextLong() & Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return {@code value}, or if it's a chunk manifest, the item put back
+     *         together from its chunks, or null if that can't be done
+     */
+    private Object unchunked(String key, Object value) {
+        if (!(value instanceof ChunkManifest)) {
+            return value;
+        }
+
+        ChunkManifest manifest = (ChunkManifest) value;
+        long start = System.nanoTime();
+        Map<String, CachedData> chunks = bulk(manifest.keys(), RawTranscoder.INSTANCE);
+        stats.record(Op.GET_BULK, start);
+        CachedData item = manifest.join(chunks);
+        if (item == null) {
+            log.debugf("Chunks of %s are incomplete: %s", key, manifest);
+            stats.incompleteChunkedRead();
+            return null;
+        }
+        stats.chunkedRead();
+        return transcoder.decode(item);
+    }
+
+    private Map<String, Object> unchunked(Map<String, Object> values) {
+        if (chunkSize <= 0) {
+            return values;
+        }
+        Map<String, Object> result = values;
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            if (e.getValue() instanceof ChunkManifest) {
+                if (result == values) {
+                    result = new HashMap<String, Object>(values);
+                }
+                Object value = unchunked(e.getKey(), e.getValue());
+                if (value != null) {
+                    result.put(e.getKey(), value);
+                } else {
+                    result.remove(e.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean allow() {
+        return breaker == null || breaker.allowRequest();
+    }
+
+    private void succeeded(Op op, long start) {
+        stats.record(op, start);
+        if (breaker != null) {
+            breaker.onSuccess();
+        }
+    }
+
+    private void timedOut() {
+        stats.timeout();
+        failed();
+    }
+
+    private void queueFull() {
+        stats.queueFull();
+        failed();
+    }
+
+    private void failed() {
+        if (breaker != null) {
+            breaker.onFailure();
+        }
+    }
+
+    private <T> OperationFuture<T> dropped(String key, T value, boolean invalidating) {
+        if (invalidating) {
+            breaker.onWriteDropped();
+        }
+        return rejected(key, value);
+    }
+
+    private <T> OperationFuture<T> rejected(String key, T value) {
+        return new CompletedFuture<T>(key, value, REJECTED, breaker.getExecutor());
+    }
+
+    /**
+     * Records an asynchronous operation's latency and outcome when it completes.
+     */
+    private class OpListener implements OperationCompletionListener {
+        private final Op op;
+        private final long start;
+
+        public OpListener(Op op, long start) {
+            this.op = op;
+            this.start = start;
+        }
+
+        public void onComplete(OperationFuture<?> future) throws Exception {
+            switch (future.getStatus().getStatusCode()) {
+            case TIMEDOUT:
+                stats.record(op, start);
+                timedOut();
+                break;
+            case CANCELLED:
+            case ERR_BUSY:
+            case ERR_TEMP_FAIL:
+                stats.record(op, start);
+                failed();
+                break;
+            default:
+                succeeded(op, start);
+                break;
+            }
+        }
     }
 
     private static class LogListener implements OperationCompletionListener {
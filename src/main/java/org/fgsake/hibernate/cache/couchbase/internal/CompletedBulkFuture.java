@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Already completed future for a multi-get carried out in process. Like
+ * {@link CompletedFuture}, the methods that look at the operations behind
+ * it are overridden.
+ */
+final class CompletedBulkFuture<T> extends BulkGetFuture<T> {
+    private static final OperationStatus SUCCESS = new OperationStatus(true, "OK", StatusCode.SUCCESS);
+
+    private final Map<String, T> values;
+
+    CompletedBulkFuture(Map<String, T> values, ExecutorService executor) {
+        super(Collections.<String, Future<T>>emptyMap(), Collections.<Operation>emptyList(), new CountDownLatch(0), executor);
+        this.values = values;
+        setStatus(SUCCESS);
+    }
+
+    @Override
+    public Map<String, T> get() {
+        return values;
+    }
+
+    @Override
+    public Map<String, T> get(long duration, TimeUnit unit) {
+        return values;
+    }
+
+    @Override
+    public Map<String, T> getSome(long duration, TimeUnit unit) {
+        return values;
+    }
+
+    @Override
+    public OperationStatus getStatus() {
+        return SUCCESS;
+    }
+
+    @Override
+    public boolean cancel(boolean ign) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return true;
+    }
+
+    @Override
+    public boolean isTimeout() {
+        return false;
+    }
+}
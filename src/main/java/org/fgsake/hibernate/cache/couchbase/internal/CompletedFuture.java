@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Already completed future for an operation that was never sent, because
+ * the circuit breaker rejected it or it was carried out in process.
+ * {@link OperationFuture} assumes there's an operation behind it, so the
+ * methods that look at it are overridden.
+ */
+final class CompletedFuture<T> extends OperationFuture<T> {
+    private final T value;
+    private final OperationStatus status;
+
+    CompletedFuture(String key, T value, OperationStatus status, ExecutorService executor) {
+        super(key, new CountDownLatch(0), 0, executor);
+        this.value = value;
+        this.status = status;
+        set(value, status);
+    }
+
+    @Override
+    public T get() {
+        return value;
+    }
+
+    @Override
+    public T get(long duration, TimeUnit unit) {
+        return value;
+    }
+
+    @Override
+    public OperationStatus getStatus() {
+        return status;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean cancel(boolean ign) {
+        return false;
+    }
+
+    @Override
+    public boolean cancel() {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression applied by {@link CacheTranscoder}. Each codec owns a bit in
+ * the item flags so items written with different codecs can be mixed.
+ */
+public abstract class CompressionCodec {
+    /**
+     * Same bit and format as spymemcached's own compression, so items it
+     * compressed decode with this codec and vice versa.
+     */
+    public static final CompressionCodec GZIP = new Gzip();
+    public static final CompressionCodec LZ4 = new Lz4Codec();
+
+    private final String name;
+    private final int flag;
+
+    protected CompressionCodec(String name, int flag) {
+        this.name = name;
+        this.flag = flag;
+    }
+
+    /**
+     * @return the codec called {@code name}, or null for "none"
+     */
+    public static CompressionCodec forName(String name) {
+        if ("none".equalsIgnoreCase(name)) {
+            return null;
+        } else if (GZIP.name.equalsIgnoreCase(name)) {
+            return GZIP;
+        } else if (LZ4.name.equalsIgnoreCase(name)) {
+            return LZ4;
+        }
+        throw new IllegalArgumentException("Unknown compression codec " + name);
+    }
+
+    /**
+     * @return the codec that wrote an item with {@code flags}, or null if it isn't compressed
+     */
+    public static CompressionCodec forFlags(int flags) {
+        if ((flags & LZ4.flag) != 0) {
+            return LZ4;
+        } else if ((flags & GZIP.flag) != 0) {
+            return GZIP;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getFlag() {
+        return flag;
+    }
+
+    public abstract byte[] compress(byte[] data) throws IOException;
+
+    public abstract byte[] decompress(byte[] data) throws IOException;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static final class Gzip extends CompressionCodec {
+        Gzip() {
+            super("gzip", 0x2);
+        }
+
+        public byte[] compress(byte[] data) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2);
+            GZIPOutputStream gz = new GZIPOutputStream(bos);
+            gz.write(data);
+            gz.close();
+            return bos.toByteArray();
+        }
+
+        public byte[] decompress(byte[] data) throws IOException {
+            GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(data));
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 2);
+            byte[] buf = new byte[8192];
+            int r;
+            while ((r = gz.read(buf)) > 0) {
+                bos.write(buf, 0, r);
+            }
+            gz.close();
+            return bos.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for tuning a region's compression settings, and the sizes of the
+ * values it writes.
+ */
+public final class CompressionStats {
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressed = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+    private final AtomicLong encoded = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+
+    void recordCompress(int before, int after, long nanos, boolean kept) {
+        (kept ? compressed : rejected).incrementAndGet();
+        bytesIn.addAndGet(before);
+        bytesOut.addAndGet(kept ? after : before);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordDecompress(long nanos) {
+        decompressed.incrementAndGet();
+        decompressNanos.addAndGet(nanos);
+    }
+
+    void recordEncode(int bytes) {
+        encoded.incrementAndGet();
+        encodedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return number of items stored compressed
+     */
+    public long getCompressedCount() {
+        return compressed.get();
+    }
+
+    /**
+     * @return number of items that were compressed but stored uncompressed because compression didn't shrink them
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return bytes not sent thanks to compression
+     */
+    public long getBytesSaved() {
+        return bytesIn.get() - bytesOut.get();
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    public long getDecompressedCount() {
+        return decompressed.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    /**
+     * @return number of values encoded for writing, not counting locks
+     */
+    public long getEncodedCount() {
+        return encoded.get();
+    }
+
+    /**
+     * @return bytes of the values encoded for writing, as stored
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("CompressionStats{compressed=")
+                .append(compressed.get())
+                .append(", rejected=")
+                .append(rejected.get())
+                .append(", bytesSaved=")
+                .append(getBytesSaved())
+                .append(", compressNanos=")
+                .append(compressNanos.get())
+                .append(", decompressed=")
+                .append(decompressed.get())
+                .append(", decompressNanos=")
+                .append(decompressNanos.get())
+                .append(", encoded=")
+                .append(encoded.get())
+                .append(", encodedBytes=")
+                .append(encodedBytes.get())
+                .append('}')
+                .toString();
+    }
+}
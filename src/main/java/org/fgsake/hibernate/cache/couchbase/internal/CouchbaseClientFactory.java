@@ -17,7 +17,10 @@
 package org.fgsake.hibernate.cache.couchbase.internal;
 
 import com.couchbase.client.CouchbaseClient;
+import com.couchbase.client.CouchbaseConnectionFactoryBuilder;
+import net.spy.memcached.DefaultConnectionFactory;
 import net.spy.memcached.MemcachedClient;
+import org.fgsake.hibernate.cache.couchbase.CouchbaseRegionFactory;
 import org.fgsake.hibernate.cache.couchbase.MemcachedClientFactory;
 import org.jboss.logging.Logger;
 
@@ -50,6 +53,8 @@ public class CouchbaseClientFactory implements MemcachedClientFactory {
         String hosts = props.getProperty(CACHE_HOSTS_PROPERTY, "localhost");
         String bucketName = props.getProperty(CACHE_BUCKET_PROPERTY, "cache");
         String password = props.getProperty(CACHE_PASSWORD_PROPERTY, "");
+        long operationTimeout = Long.parseLong(props.getProperty(CouchbaseRegionFactory.CACHE_OPERATION_TIMEOUT_PROPERTY,
+                String.valueOf(DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT)));
 
         List<URI> uris = new ArrayList<URI>();
         for (String host : Arrays.asList(hosts.split("[, ]"))) {
@@ -58,6 +63,8 @@ public class CouchbaseClientFactory implements MemcachedClientFactory {
         }
 
         log.debugf("Starting with hosts: '%s' and bucket: %s", hosts, bucketName);
-        return new CouchbaseClient(uris, bucketName, password);
+        CouchbaseConnectionFactoryBuilder builder = new CouchbaseConnectionFactoryBuilder();
+        builder.setOpTimeout(operationTimeout);
+        return new CouchbaseClient(builder.buildCouchbaseConnection(uris, bucketName, password));
     }
 }
@@ -23,8 +23,15 @@ import org.hibernate.cache.spi.access.AccessType;
 import org.hibernate.cache.spi.access.CollectionRegionAccessStrategy;
 
 public class CouchbaseCollectionRegion extends CouchbaseTransactionalDataRegion implements CollectionRegion {
-    public CouchbaseCollectionRegion(ClientWrapper client, CacheDataDescription description, String name, int expiry, boolean ignoreNonstrict, int schemaVersion) {
-        super(client, description, name, expiry, ignoreNonstrict, schemaVersion);
+    private final Prefetcher prefetcher;
+
+    /**
+     * @param prefetcher reads ahead the elements of collections that hit, or
+     *                   null
+     */
+    public CouchbaseCollectionRegion(ClientWrapper client, CacheDataDescription description, String name, Generations.Generation generation, RegionSettings settings, NearCache nearCache, LockManager locks, SingleFlight flights, HotKeys hotKeys, SlidingExpiry sliding, Prefetcher prefetcher) {
+        super(client, description, name, generation, settings, nearCache, locks, flights, hotKeys, sliding);
+        this.prefetcher = prefetcher;
     }
 
     public CollectionRegionAccessStrategy buildAccessStrategy(AccessType accessType) throws CacheException {
@@ -39,5 +46,14 @@ public class CouchbaseCollectionRegion extends CouchbaseTransactionalDataRegion
         public CollectionRegion getRegion() {
             return CouchbaseCollectionRegion.this;
         }
+
+        @Override
+        public Object get(Object key, long txTimestamp) throws CacheException {
+            Object value = super.get(key, txTimestamp);
+            if (value != null && prefetcher != null) {
+                prefetcher.prefetch(value);
+            }
+            return value;
+        }
     }
 }
@@ -22,10 +22,67 @@ import org.hibernate.cache.spi.EntityRegion;
 import org.hibernate.cache.spi.access.AccessType;
 import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
 import org.hibernate.cache.spi.access.SoftLock;
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 public class CouchbaseEntityRegion extends CouchbaseTransactionalDataRegion implements EntityRegion {
-    public CouchbaseEntityRegion(ClientWrapper client, CacheDataDescription description, String name, int expiry, boolean ignoreNonstrict, int schemaVersion) {
-        super(client, description, name, expiry, ignoreNonstrict, schemaVersion);
+    private static final Logger log = Logger.getLogger(CouchbaseEntityRegion.class);
+
+    private final PrefetchBuffer prefetched;
+
+    /**
+     * @param prefetched holds entries read ahead by {@link #prefetchForThread}
+     */
+    public CouchbaseEntityRegion(ClientWrapper client, CacheDataDescription description, String name, Generations.Generation generation, RegionSettings settings, NearCache nearCache, LockManager locks, SingleFlight flights, HotKeys hotKeys, SlidingExpiry sliding, PrefetchBuffer prefetched) {
+        super(client, description, name, generation, settings, nearCache, locks, flights, hotKeys, sliding);
+        this.prefetched = prefetched;
+    }
+
+    /**
+     * Reads the entries for {@code keys}, given the way Hibernate keys them,
+     * in one multi-get, and holds them for this thread's next gets. Keys in
+     * the near cache are skipped, as are all of them if Couchbase can't be
+     * reached, in which case the gets go to Couchbase one by one.
+     */
+    public void prefetchForThread(Collection<String> keys) {
+        if (bypassed()) {
+            return;
+        }
+        List<String> keyStrs = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            String keyStr = keyStrFor(key);
+            if (nearCache == null || nearCache.get(keyStr) == null) {
+                keyStrs.add(keyStr);
+            }
+        }
+        if (keyStrs.isEmpty()) {
+            return;
+        }
+
+        log.debugf("Prefetch %d keys", keyStrs.size());
+        Map<String, Object> values;
+        try {
+            values = client.getBulk(keyStrs);
+        } catch (CacheException e) {
+            log.debugf(e, "Dropping prefetch of %d keys", keyStrs.size());
+            return;
+        }
+        prefetched.put(keyStrs, values);
+    }
+
+    @Override
+    protected Object takePrefetched(String keyStr) {
+        return prefetched.take(keyStr);
+    }
+
+    @Override
+    protected void invalidateLocal(String keyStr) {
+        super.invalidateLocal(keyStr);
+        prefetched.remove(keyStr);
     }
 
     public EntityRegionAccessStrategy buildAccessStrategy(AccessType accessType) throws CacheException {
@@ -24,29 +24,67 @@ import org.jboss.logging.Logger;
 public class CouchbaseGeneralDataRegion extends CouchbaseRegion implements QueryResultsRegion, TimestampsRegion {
     private static final Logger log = Logger.getLogger(CouchbaseGeneralDataRegion.class);
 
-    public CouchbaseGeneralDataRegion(ClientWrapper client, String name, int expiry) {
-        super(client, name, expiry);
+    private final Prefetcher prefetcher;
+    private final boolean invalidatingPuts;
+
+    public CouchbaseGeneralDataRegion(ClientWrapper client, String name, Generations.Generation generation, RegionSettings settings) {
+        this(client, name, generation, settings, null, true);
+    }
+
+    /**
+     * @param prefetcher       reads ahead the entities in query results that
+     *                         hit, or null
+     * @param invalidatingPuts whether a put that's dropped could leave stale
+     *                         data to be read, as with timestamps; query
+     *                         results puts only fill the cache
+     */
+    public CouchbaseGeneralDataRegion(ClientWrapper client, String name, Generations.Generation generation, RegionSettings settings, Prefetcher prefetcher, boolean invalidatingPuts) {
+        super(client, name, generation, settings);
+        this.prefetcher = prefetcher;
+        this.invalidatingPuts = invalidatingPuts;
     }
 
     public Object get(Object key) throws CacheException {
+        if (bypassed()) {
+            stats.miss();
+            return null;
+        }
         String keyStr = keyStrFor(key);
         log.debugf("Get %s", keyStr);
-        return client.get(keyStr);
+        Object value = client.get(keyStr);
+        if (value != null) {
+            stats.hit();
+            if (prefetcher != null) {
+                prefetcher.prefetch(value);
+            }
+        } else {
+            stats.miss();
+        }
+        return value;
     }
 
     public void put(Object key, Object value) throws CacheException {
+        if (invalidatingPuts ? generation.skipWrite() : bypassed()) {
+            return;
+        }
         String keyStr = keyStrFor(key);
         log.debugf("Put %s", keyStr);
-        client.set(keyStr, expiry, value);
+        recordPut(keyStr);
+        client.set(keyStr, nextExpiry(), value, invalidatingPuts);
     }
 
     public void evict(Object key) throws CacheException {
         String keyStr = keyStrFor(key);
         log.debugf("Evict %s", keyStr);
-        client.delete(keyStr);
+        stats.evict();
+        if (!generation.skipWrite()) {
+            client.delete(keyStr);
+        }
     }
 
     public void evictAll() throws CacheException {
-        throw new CacheException("evictAll not supported");
+        log.debugf("Evict all %s", name);
+        stats.evict();
+        generation.increment();
     }
 }
@@ -16,24 +16,48 @@
 
 package org.fgsake.hibernate.cache.couchbase.internal;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.hibernate.cache.CacheException;
 import org.hibernate.cache.spi.QueryKey;
 import org.hibernate.cache.spi.Region;
-import org.hibernate.internal.util.SerializationHelper;
 
-import java.util.Collections;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Random;
 
 public class CouchbaseRegion implements Region {
+    private static final int MAX_KEY_LENGTH = 250;
+    private static final int QUERY_KEY_CACHE_SIZE = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     protected final ClientWrapper client;
     protected final String name;
     protected final int expiry;
+    protected final Generations.Generation generation;
+    protected final RegionStats stats = new RegionStats();
+    protected final SizeEstimator sizes;
+    private final int timeout;
+    private final int maxJitter;
+    private final Random random = new Random();
+    private final int keyPrefixLength;
+    private final Map<QueryKey, String> queryKeyCache = new LinkedHashMap<QueryKey, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<QueryKey, String> eldest) {
+            return size() > QUERY_KEY_CACHE_SIZE;
+        }
+    };
 
-    public CouchbaseRegion(ClientWrapper client, String name, int expiry) {
+    public CouchbaseRegion(ClientWrapper client, String name, Generations.Generation generation, RegionSettings settings) {
         this.client = client;
         this.name = name;
-        this.expiry = expiry;
+        this.expiry = settings.getExpiry();
+        this.timeout = settings.getLockTimeout();
+        // Never down to 0, which would mean no expiry at all
+        this.maxJitter = (int) Math.min(expiry * settings.getExpiryJitter(), expiry - 1);
+        this.generation = generation;
+        // Leaves room for the generation to grow
+        this.keyPrefixLength = generation.prefix().getBytes(UTF_8).length + 2;
+        this.sizes = new SizeEstimator(client, generation, expiry);
     }
 
     public String getName() {
@@ -47,44 +71,142 @@ public class CouchbaseRegion implements Region {
         return false;
     }
 
+    /**
+     * @return estimated bytes taken by the region's entries in Couchbase
+     */
     public long getSizeInMemory() {
-        return -1;
+        return sizes.getSizeInBytes();
     }
 
+    /**
+     * @return estimated number of the region's entries in Couchbase
+     */
     public long getElementCountInMemory() {
-        return -1;
+        return sizes.getElementCount();
     }
 
     public long getElementCountOnDisk() {
         return -1;
     }
 
+    /**
+     * Entries can't be listed, so this holds the size estimates instead:
+     * {@code elementCount}, {@code sizeInBytes} and {@code averageSize}.
+     */
     public Map toMap() {
-        return Collections.EMPTY_MAP;
+        long elementCount = sizes.getElementCount();
+        long sizeInBytes = sizes.getSizeInBytes();
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        map.put("elementCount", elementCount);
+        map.put("sizeInBytes", sizeInBytes);
+        map.put("averageSize", elementCount > 0 ? sizeInBytes / elementCount : 0);
+        return map;
     }
 
     public long nextTimestamp() {
         return Timestamper.nextTimestamp();
     }
 
+    public RegionStats getStats() {
+        return stats;
+    }
+
+    public SizeEstimator getSizeEstimator() {
+        return sizes;
+    }
+
+    /**
+     * @return whether the region's generation couldn't be read yet, in which
+     *         case reads miss and writes are skipped
+     */
+    protected boolean bypassed() {
+        return !generation.isKnown();
+    }
+
+    /**
+     * Counts a write of {@code keyStr}.
+     */
+    protected void recordPut(String keyStr) {
+        stats.put();
+        sizes.add(keyStr);
+    }
+
+    public ClientStats getClientStats() {
+        return client.getStats();
+    }
+
+    /**
+     * @return the circuit breaker guarding this region's client, or null
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return client.getCircuitBreaker();
+    }
+
+    public CompressionStats getCompressionStats() {
+        return client.getCompressionStats();
+    }
+
     public int getTimeout() {
-        return 30000000;
+        return timeout;
+    }
+
+    /**
+     * @return the TTL of an item written now: the expiry, shortened by a
+     *         random jitter so that items written together don't all expire
+     *         together
+     */
+    protected int nextExpiry() {
+        return maxJitter > 0 ? expiry - random.nextInt(maxJitter + 1) : expiry;
     }
 
     protected String keyStrFor(Object key) {
         String keyStr;
         if (key instanceof QueryKey) {
             // Can't use toString, QueryKey.customTransformer shows up wrong in toString
-            keyStr = DigestUtils.md5Hex(SerializationHelper.serialize((QueryKey) key));
+            keyStr = queryKeyStr((QueryKey) key);
         } else {
             keyStr = key.toString();
-            if (name.length() + 1 + keyStr.length() > 250) {
-                keyStr = DigestUtils.md5Hex(keyStr);
+            if (tooLong(keyStr)) {
+                keyStr = KeyHasher.hash(keyStr);
             }
         }
 
-        return new StringBuilder(name.length() + 1 + keyStr.length())
-                .append(name).append(":").append(keyStr)
-                .toString();
+        return generation.prefix().concat(keyStr);
+    }
+
+    private String queryKeyStr(QueryKey key) {
+        synchronized (queryKeyCache) {
+            String keyStr = queryKeyCache.get(key);
+            if (keyStr != null) {
+                return keyStr;
+            }
+        }
+
+        String keyStr = QueryKeyHasher.hash(key);
+        synchronized (queryKeyCache) {
+            queryKeyCache.put(key, keyStr);
+        }
+        return keyStr;
+    }
+
+    /**
+     * Memcached limits keys to 250 bytes. Only computes the UTF-8 length when
+     * the string is long enough for it to matter.
+     */
+    private boolean tooLong(String keyStr) {
+        int n = keyStr.length();
+        if (keyPrefixLength + n > MAX_KEY_LENGTH) {
+            return true;
+        } else if (keyPrefixLength + 3 * n <= MAX_KEY_LENGTH) {
+            return false;
+        }
+
+        int bytes = keyPrefixLength;
+        for (int i = 0; i < n; i++) {
+            char c = keyStr.charAt(i);
+            // A surrogate pair is 4 bytes: 1 for the high half, 3 for the low
+            bytes += c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isHighSurrogate(c) ? 1 : 3;
+        }
+        return bytes > MAX_KEY_LENGTH;
     }
 }
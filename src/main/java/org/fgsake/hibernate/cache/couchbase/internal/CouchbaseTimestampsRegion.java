@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.hibernate.cache.CacheException;
+import org.jboss.logging.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timestamps region that mirrors every query space it has seen. Hibernate
+ * reads one timestamp per query space on every query cache hit, so reads are
+ * served from the mirror while it's fresher than {@code maxStaleness}, and a
+ * background task refreshes all mirrored spaces with one multi-get every
+ * {@code refreshInterval}.
+ * <p>
+ * Writes through this node update the mirror immediately. Writes through
+ * other nodes are seen within {@code maxStaleness} at most, so a query cache
+ * hit can be that stale.
+ * <p>
+ * Mirrored entries remember the region generation they were read in and
+ * don't survive a change of generation.
+ */
+public class CouchbaseTimestampsRegion extends CouchbaseGeneralDataRegion {
+    private static final Logger log = Logger.getLogger(CouchbaseTimestampsRegion.class);
+
+    private final ConcurrentMap<Object, Entry> mirror = new ConcurrentHashMap<Object, Entry>();
+    private final long maxStalenessNanos;
+    private final ScheduledFuture<?> refresher;
+
+    public CouchbaseTimestampsRegion(ClientWrapper client, String name, Generations.Generation generation, RegionSettings settings, ScheduledExecutorService scheduler, long refreshInterval, long maxStaleness, TimeUnit unit) {
+        super(client, name, generation, settings);
+        this.maxStalenessNanos = unit.toNanos(maxStaleness);
+        this.refresher = scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        }, refreshInterval, refreshInterval, unit);
+    }
+
+    @Override
+    public Object get(Object key) throws CacheException {
+        if (bypassed()) {
+            stats.miss();
+            return null;
+        }
+        long gen = generation.get();
+        Entry entry = mirror.get(key);
+        if (entry != null && entry.generation == gen && System.nanoTime() - entry.fetchedAt <= maxStalenessNanos) {
+            stats.nearCacheHit();
+            return entry.value;
+        }
+
+        String keyStr = keyStrFor(key);
+        log.debugf("Get %s", keyStr);
+        long fetchedAt = System.nanoTime();
+        Object value = client.get(keyStr);
+        if (value != null) {
+            stats.hit();
+        } else {
+            stats.miss();
+        }
+        update(key, new Entry(value, gen, fetchedAt));
+        return value;
+    }
+
+    @Override
+    public void put(Object key, Object value) throws CacheException {
+        if (generation.skipWrite()) {
+            return;
+        }
+        String keyStr = keyStrFor(key);
+        log.debugf("Put %s", keyStr);
+        mirror.put(key, new Entry(value, generation.get(), System.nanoTime()));
+        recordPut(keyStr);
+        client.set(keyStr, expiry, value);
+    }
+
+    @Override
+    public void evict(Object key) throws CacheException {
+        String keyStr = keyStrFor(key);
+        log.debugf("Evict %s", keyStr);
+        mirror.remove(key);
+        stats.evict();
+        if (!generation.skipWrite()) {
+            client.delete(keyStr);
+        }
+    }
+
+    @Override
+    public void evictAll() throws CacheException {
+        super.evictAll();
+        mirror.clear();
+    }
+
+    @Override
+    public void destroy() throws CacheException {
+        refresher.cancel(false);
+        mirror.clear();
+    }
+
+    void refresh() {
+        if (mirror.isEmpty() || bypassed()) {
+            return;
+        }
+
+        long gen = generation.get();
+        Map<String, Object> keys = new HashMap<String, Object>();
+        for (Object key : mirror.keySet()) {
+            keys.put(keyStrFor(key), key);
+        }
+
+        long fetchedAt = System.nanoTime();
+        Map<String, Object> values;
+        try {
+            values = client.getBulk(keys.keySet());
+        } catch (CacheException e) {
+            log.debugf(e, "Unable to refresh %d timestamps", keys.size());
+            return;
+        }
+
+        for (Map.Entry<String, Object> key : keys.entrySet()) {
+            update(key.getValue(), new Entry(values.get(key.getKey()), gen, fetchedAt));
+        }
+        log.tracef("Refreshed %d timestamps", keys.size());
+    }
+
+    /**
+     * Stores a fetched value unless a local put that raced the fetch already
+     * stored something newer.
+     */
+    private void update(Object key, Entry fetched) {
+        Entry current = mirror.putIfAbsent(key, fetched);
+        if (current != null && (current.generation < fetched.generation
+                || current.generation == fetched.generation && current.fetchedAt - fetched.fetchedAt < 0)) {
+            mirror.replace(key, current, fetched);
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long generation;
+        final long fetchedAt;
+
+        Entry(Object value, long generation, long fetchedAt) {
+            this.value = value;
+            this.generation = generation;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
@@ -16,8 +16,10 @@
 
 package org.fgsake.hibernate.cache.couchbase.internal;
 
-import net.spy.memcached.CASResponse;
 import net.spy.memcached.CASValue;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.StatusCode;
 import org.hibernate.cache.CacheException;
 import org.hibernate.cache.spi.CacheDataDescription;
 import org.hibernate.cache.spi.TransactionalDataRegion;
@@ -26,22 +28,63 @@ import org.hibernate.cache.spi.access.RegionAccessStrategy;
 import org.hibernate.cache.spi.access.SoftLock;
 import org.jboss.logging.Logger;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class CouchbaseTransactionalDataRegion extends CouchbaseRegion implements TransactionalDataRegion {
     private static final Logger log = Logger.getLogger(CouchbaseTransactionalDataRegion.class);
 
+    /**
+     * Scale of the random lead time of an early refresh, as a share of the
+     * refresh window. Reads at the start of the window miss with odds of
+     * about e^-8, rising to certain at its end.
+     */
+    private static final int REFRESH_STEEPNESS = 8;
+
     protected final CacheDataDescription description;
     protected final Comparator versionComparator;
     protected final int schemaVersion;
+    protected final NearCache nearCache;
+    protected final LockManager locks;
+    protected final SingleFlight flights;
+    protected final HotKeys hotKeys;
+    protected final SlidingExpiry sliding;
     private final boolean ignoreNonstrict;
-
-    public CouchbaseTransactionalDataRegion(ClientWrapper client, CacheDataDescription description, String name, int expiry, boolean ignoreNonstrict, int schemaVersion) {
-        super(client, name, expiry);
+    private final boolean optimisticPuts;
+    private final long refreshDeadline;
+    private final long refreshWindow;
+    private final Random random = new Random();
+
+    /**
+     * @param nearCache in-process cache in front of Couchbase, or null
+     * @param flights   coalesces concurrent misses on the same key, or null to
+     *                  let every miss load
+     * @param hotKeys   finds and replicates the most read keys, or null
+     * @param sliding   extends the TTL of entries that are read, or null to
+     *                  let them expire on schedule
+     */
+    public CouchbaseTransactionalDataRegion(ClientWrapper client, CacheDataDescription description, String name, Generations.Generation generation, RegionSettings settings, NearCache nearCache, LockManager locks, SingleFlight flights, HotKeys hotKeys, SlidingExpiry sliding) {
+        super(client, name, generation, settings);
         this.description = description;
-        this.ignoreNonstrict = ignoreNonstrict;
-        this.schemaVersion = schemaVersion;
+        this.ignoreNonstrict = settings.isIgnoreNonstrict();
+        this.schemaVersion = settings.getSchemaVersion();
+        this.nearCache = nearCache;
+        this.locks = locks;
+        this.optimisticPuts = settings.isOptimisticPuts();
+        this.flights = flights;
+        this.hotKeys = hotKeys;
+        this.sliding = sliding;
         this.versionComparator = description.getVersionComparator();
+        // Entries are refreshed before the earliest they can expire, in Timestamper units
+        this.refreshDeadline = TimeUnit.SECONDS.toMicros(expiry) - (long) (TimeUnit.SECONDS.toMicros(expiry) * settings.getExpiryJitter());
+        this.refreshWindow = (long) (TimeUnit.SECONDS.toMicros(expiry) * settings.getEarlyRefresh());
     }
 
     public boolean isTransactionAware() {
@@ -61,6 +104,175 @@ public class CouchbaseTransactionalDataRegion extends CouchbaseRegion implements
         return accessType;
     }
 
+    public LockManager getLockManager() {
+        return locks;
+    }
+
+    public HotKeys getHotKeys() {
+        return hotKeys;
+    }
+
+    /**
+     * @return up to {@code max} keys worth prefetching after a restart: the
+     *         hot keys, then the near cache's most recently used keys,
+     *         without the generation prefix
+     */
+    public List<String> getWarmKeys(int max) {
+        Set<String> keys = new LinkedHashSet<String>();
+        if (hotKeys != null) {
+            keys.addAll(hotKeys.getTopKeys().keySet());
+        }
+        if (nearCache != null) {
+            keys.addAll(nearCache.keys(max));
+        }
+
+        String prefix = generation.prefix();
+        List<String> warmKeys = new ArrayList<String>(Math.min(keys.size(), max));
+        for (String keyStr : keys) {
+            if (warmKeys.size() == max) {
+                break;
+            } else if (keyStr.startsWith(prefix)) {
+                warmKeys.add(keyStr.substring(prefix.length()));
+            }
+        }
+        return warmKeys;
+    }
+
+    /**
+     * Reads {@code keys}, saved by {@link #getWarmKeys}, in one multi-get,
+     * and keeps what's found in the near cache if there is one.
+     *
+     * @return number of entries found
+     */
+    public int prefetch(Collection<String> keys) {
+        if (bypassed()) {
+            return 0;
+        }
+        String prefix = generation.prefix();
+        List<String> keyStrs = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            keyStrs.add(prefix.concat(key));
+        }
+
+        int found = 0;
+        for (Map.Entry<String, Object> entry : client.getBulk(keyStrs).entrySet()) {
+            if (entry.getValue() instanceof CacheData) {
+                CacheData data = (CacheData) entry.getValue();
+                if (nearCache != null && data.getSchemaVersion() == schemaVersion) {
+                    nearCache.put(entry.getKey(), data);
+                }
+                found++;
+            }
+        }
+        return found;
+    }
+
+    protected void invalidateLocal(String keyStr) {
+        if (nearCache != null) {
+            nearCache.remove(keyStr);
+        }
+        if (flights != null) {
+            flights.abort(keyStr);
+        }
+        if (hotKeys != null) {
+            hotKeys.removeReplica(keyStr);
+        }
+        if (sliding != null) {
+            sliding.forget(keyStr);
+        }
+    }
+
+    /**
+     * @return what was read ahead for {@code keyStr} on this thread: a value,
+     *         {@link PrefetchBuffer#NOT_FOUND}, or null if nothing was
+     */
+    protected Object takePrefetched(String keyStr) {
+        return null;
+    }
+
+    /**
+     * @return a value another thread loaded and put after missing
+     *         {@code keyStr}, or null if this thread should load it
+     */
+    private CacheData awaitLoad(String keyStr) {
+        try {
+            return flights.join(keyStr);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Decides whether a read of {@code data} should miss so that the reader
+     * reloads it before it expires. Each read in the refresh window misses
+     * with odds that rise exponentially towards its end, so a few readers
+     * refresh an entry before it expires for everyone.
+     */
+    private boolean refreshEarly(CacheData data) {
+        if (refreshWindow <= 0 || data.getTimestamp() <= 0) {
+            return false;
+        }
+        long remaining = refreshDeadline - (nextTimestamp() - data.getTimestamp());
+        if (remaining > refreshWindow) {
+            return false;
+        }
+        double lead = -Math.log(1 - random.nextDouble()) * refreshWindow / REFRESH_STEEPNESS;
+        return lead >= remaining;
+    }
+
+    /**
+     * Extends the TTL of an entry that was just read, if it's due. A plain
+     * touch could extend a lock that replaced the entry since, so the entry
+     * is read again and written back with the new TTL only if the CAS shows
+     * it's still the same item.
+     */
+    private void slide(String keyStr, CacheData data) {
+        if (sliding == null) {
+            return;
+        }
+        int ttl = sliding.extend(keyStr, data.getTimestamp(), nextExpiry());
+        if (ttl > 0) {
+            try {
+                client.asyncGets(keyStr).addListener(new SlideListener(keyStr, ttl));
+            } catch (CacheException e) {
+                log.debugf(e, "Dropping touch of %s", keyStr);
+            }
+        }
+    }
+
+    /**
+     * @return whether putFromLoad may replace {@code v}: an older version, or,
+     *         while it's due for an early refresh, the same one loaded before
+     *         this transaction started
+     */
+    private boolean replaceable(Object v, long txTimestamp, Object version) {
+        if (!(v instanceof CacheItem)) {
+            return false;
+        } else if (((CacheItem) v).writable(txTimestamp, version, versionComparator, schemaVersion)) {
+            return true;
+        } else if (refreshWindow <= 0 || !(v instanceof CacheData)) {
+            return false;
+        }
+
+        CacheData data = (CacheData) v;
+        if (data.getTimestamp() <= 0 || data.getTimestamp() >= txTimestamp || data.getSchemaVersion() != schemaVersion
+                || refreshDeadline - (nextTimestamp() - data.getTimestamp()) > refreshWindow) {
+            return false;
+        } else if (data.getVersion() == null || version == null) {
+            return data.getVersion() == version;
+        }
+        return versionComparator != null
+                ? versionComparator.compare(data.getVersion(), version) <= 0
+                : data.getVersion().equals(version);
+    }
+
+    private void loaded(String keyStr, CacheData data) {
+        if (flights != null) {
+            flights.complete(keyStr, data);
+        }
+    }
+
     public class AccessStrategy implements RegionAccessStrategy {
         protected final AccessType accessType;
 
@@ -69,17 +281,88 @@ public class CouchbaseTransactionalDataRegion extends CouchbaseRegion implements
         }
 
         public Object get(Object key, long txTimestamp) throws CacheException {
+            if (bypassed()) {
+                stats.miss();
+                return null;
+            }
             String keyStr = keyStrFor(key);
             log.debugf("Get %s", keyStr);
-            Object value = client.get(keyStr);
+
+            if (nearCache != null) {
+                CacheData local = nearCache.get(keyStr);
+                if (local != null) {
+                    // Only this node's writes evict the local copy, so another node's
+                    // newer value or lock goes unseen until the entry expires: reads
+                    // may be stale by up to the near cache TTL
+                    if (local.getTimestamp() > txTimestamp) {
+                        stats.miss();
+                        return null;
+                    }
+                    stats.nearCacheHit();
+                    slide(keyStr, local);
+                    return local.getValue();
+                }
+            }
+
+            boolean hot = false;
+            if (hotKeys != null) {
+                hotKeys.sample(keyStr);
+                hot = hotKeys.isHot(keyStr);
+                CacheData replica = hot ? hotKeys.getReplica(keyStr) : null;
+                if (replica != null) {
+                    if (replica.getTimestamp() > txTimestamp) {
+                        stats.miss();
+                        return null;
+                    }
+                    stats.replicaHit();
+                    slide(keyStr, replica);
+                    return replica.getValue();
+                }
+            }
+
+            Object value = takePrefetched(keyStr);
+            boolean prefetched = value != null;
+            if (value == PrefetchBuffer.NOT_FOUND) {
+                value = null;
+            } else if (!prefetched) {
+                value = client.get(keyStr);
+            }
 
             if (value instanceof CacheData) {
                 CacheData data = (CacheData) value;
+                if (data.getSchemaVersion() == schemaVersion) {
+                    if (nearCache != null) {
+                        nearCache.put(keyStr, data);
+                    }
+                    if (hot) {
+                        hotKeys.putReplica(keyStr, data);
+                    }
+                }
                 if (data.getTimestamp() > txTimestamp || data.getSchemaVersion() != schemaVersion) {
+                    stats.miss();
                     return null;
                 }
+                if (refreshEarly(data)) {
+                    stats.earlyRefresh();
+                    return null;
+                }
+                if (prefetched) {
+                    stats.prefetchHit();
+                } else {
+                    stats.hit();
+                }
+                slide(keyStr, data);
                 return data.getValue();
             }
+
+            if (value == null && flights != null) {
+                CacheData loaded = awaitLoad(keyStr);
+                if (loaded != null && loaded.getTimestamp() <= txTimestamp) {
+                    stats.coalescedHit();
+                    return loaded.getValue();
+                }
+            }
+            stats.miss();
             return null;
         }
 
@@ -88,61 +371,60 @@ public class CouchbaseTransactionalDataRegion extends CouchbaseRegion implements
         }
 
         public boolean putFromLoad(Object key, Object value, long txTimestamp, Object version, boolean minimalPutOverride) throws CacheException {
+            if (bypassed()) {
+                return false;
+            }
             String keyStr = keyStrFor(key);
             log.debugf("Put from load %s", key);
 
+            if (optimisticPuts) {
+                recordPut(keyStr);
+                CacheData data = new CacheData(txTimestamp, version, value, schemaVersion);
+                client.add(keyStr, nextExpiry(), data, false).addListener(new AddListener(keyStr, data));
+                loaded(keyStr, data);
+                return true;
+            }
+
             CASValue<Object> rsp = client.gets(keyStr);
             if (rsp == null) {
-                client.add(keyStr, expiry, new CacheData(txTimestamp, version, value, schemaVersion));
+                recordPut(keyStr);
+                CacheData data = new CacheData(txTimestamp, version, value, schemaVersion);
+                client.add(keyStr, nextExpiry(), data, false);
+                loaded(keyStr, data);
                 return true;
             }
 
+            // An item that can't be decoded (e.g. missing chunks) is replaced
             Object v = rsp.getValue();
-            if (v instanceof CacheItem && ((CacheItem) v).writable(txTimestamp, version, versionComparator, schemaVersion)) {
-                client.asyncCAS(keyStr, rsp.getCas(), expiry, new CacheData(txTimestamp, version, value, schemaVersion));
+            if (v == null || replaceable(v, txTimestamp, version)) {
+                recordPut(keyStr);
+                CacheData data = new CacheData(txTimestamp, version, value, schemaVersion);
+                client.asyncCAS(keyStr, rsp.getCas(), nextExpiry(), data, false);
+                loaded(keyStr, data);
                 return true;
             }
+            if (flights != null) {
+                flights.abort(keyStr);
+            }
             return false;
         }
 
         public SoftLock lockItem(Object key, Object version) throws CacheException {
             String keyStr = keyStrFor(key);
             log.debugf("Lock %s", keyStr);
+            invalidateLocal(keyStr);
 
             if (accessType == AccessType.NONSTRICT_READ_WRITE) {
                 return null;
             } else if (accessType == AccessType.READ_ONLY) {
                 throw new UnsupportedOperationException("Can't write to a readonly object");
+            } else if (generation.skipWrite()) {
+                return null;
             }
 
-            while (true) {
-                CASValue<Object> rsp = client.gets(keyStr);
-                if (rsp == null) {
-                    if (client.add(keyStr, 0, new CacheLock(version, nextTimestamp() + getTimeout(), schemaVersion)).getStatus().isSuccess()) {
-                        return null;
-                    }
-                    continue;
-                }
-
-                CacheItem item = (CacheItem) rsp.getValue();
-                if (item instanceof CacheLock) {
-                    ((CacheLock) item).lock(nextTimestamp() + getTimeout());
-                } else {
-                    item = new CacheLock(version, nextTimestamp() + getTimeout(), schemaVersion);
-                }
-
-                switch (client.cas(keyStr, rsp.getCas(), 0, item)) {
-                case OK:
-                    return null;
-                case NOT_FOUND:
-                    if (client.add(keyStr, 0, new CacheLock(version, nextTimestamp() + getTimeout(), schemaVersion)).getStatus().isSuccess()) {
-                        return null;
-                    }
-                    break;
-                case EXISTS:
-                    break;
-                }
-            }
+            stats.lock();
+            locks.lock(keyStr, version, nextTimestamp() + getTimeout(), schemaVersion);
+            return null;
         }
 
         public SoftLock lockRegion() throws CacheException {
@@ -152,33 +434,17 @@ public class CouchbaseTransactionalDataRegion extends CouchbaseRegion implements
         public void unlockItem(Object key, SoftLock lock) throws CacheException {
             String keyStr = keyStrFor(key);
             log.debugf("Unlock %s", keyStr);
+            invalidateLocal(keyStr);
+            if (generation.skipWrite()) {
+                return;
+            }
 
             if (accessType == AccessType.NONSTRICT_READ_WRITE) {
                 client.delete(keyStrFor(key));
                 return;
             }
 
-            while (true) {
-                CASValue<Object> rsp = client.gets(keyStr);
-                if (rsp == null || rsp.getValue() == null) {
-                    return;
-                }
-
-                CacheItem item = (CacheItem) rsp.getValue();
-                if (item instanceof CacheLock) {
-                    ((CacheLock) item).unlock(nextTimestamp());
-                } else {
-                    return;
-                }
-                switch (client.cas(keyStr, rsp.getCas(), 0, item)) {
-                case OK:
-                    return;
-                case NOT_FOUND:
-                    return;
-                case EXISTS:
-                    break;
-                }
-            }
+            locks.unlock(keyStr, nextTimestamp());
         }
 
         public void unlockRegion(SoftLock lock) throws CacheException {
@@ -188,54 +454,140 @@ public class CouchbaseTransactionalDataRegion extends CouchbaseRegion implements
         }
 
         public void removeAll() throws CacheException {
-            throw new CacheException("removeAll not supported");
+            evictAll();
         }
 
         public void evict(Object key) throws CacheException {
             String keyStr = keyStrFor(key);
             log.debugf("Evict %s", keyStr);
-            client.delete(keyStr);
+            stats.evict();
+            invalidateLocal(keyStr);
+            if (!generation.skipWrite()) {
+                client.delete(keyStr);
+            }
         }
 
         public void evictAll() throws CacheException {
-            throw new CacheException("evictAll not supported");
+            log.debugf("Evict all %s", name);
+            stats.evict();
+            generation.increment();
+            if (nearCache != null) {
+                nearCache.clear();
+            }
+            if (flights != null) {
+                flights.abortAll();
+            }
+            if (hotKeys != null) {
+                hotKeys.clearReplica();
+            }
         }
 
         protected boolean afterInsert(Object key, Object value, Object version) throws CacheException {
+            if (bypassed()) {
+                return false;
+            }
             String keyStr = keyStrFor(key);
             log.debugf("Insert %s", keyStr);
-            client.add(keyStr, expiry, new CacheData(nextTimestamp(), version, value, schemaVersion));
+            recordPut(keyStr);
+            client.add(keyStr, nextExpiry(), new CacheData(nextTimestamp(), version, value, schemaVersion), false);
             return true;
         }
 
         protected boolean afterUpdate(Object key, Object value, Object version) throws CacheException {
             String keyStr = keyStrFor(key);
             log.debugf("Update %s", keyStr);
+            invalidateLocal(keyStr);
 
             if (accessType == AccessType.READ_ONLY) {
                 throw new UnsupportedOperationException("Can't write to a readonly object");
+            } else if (generation.skipWrite()) {
+                return false;
             } else if (accessType == AccessType.NONSTRICT_READ_WRITE) {
-                client.set(keyStr, expiry, new CacheData(0, version, value, schemaVersion));
+                client.set(keyStr, nextExpiry(), new CacheData(0, version, value, schemaVersion));
+            }
+
+            recordPut(keyStr);
+            return locks.update(keyStr, version, value, schemaVersion, nextExpiry());
+        }
+    }
+
+    /**
+     * Falls back to {@code gets} and {@code cas} when an optimistic
+     * {@code add} finds an existing item.
+     */
+    private class AddListener implements OperationCompletionListener {
+        private final String keyStr;
+        private final CacheData data;
+
+        AddListener(String keyStr, CacheData data) {
+            this.keyStr = keyStr;
+            this.data = data;
+        }
+
+        public void onComplete(OperationFuture<?> future) throws Exception {
+            StatusCode status = future.getStatus().getStatusCode();
+            if (status != StatusCode.ERR_EXISTS && status != StatusCode.ERR_NOT_STORED) {
+                return;
             }
 
-            while (true) {
-                CASValue<Object> rsp = client.gets(keyStr);
-                if (rsp == null) {
-                    return false;
+            try {
+                client.asyncGets(keyStr).addListener(new GetsListener(keyStr, data));
+            } catch (CacheException e) {
+                log.debugf(e, "Dropping put from load %s", keyStr);
+            }
+        }
+    }
+
+    private class GetsListener implements OperationCompletionListener {
+        private final String keyStr;
+        private final CacheData data;
+
+        GetsListener(String keyStr, CacheData data) {
+            this.keyStr = keyStr;
+            this.data = data;
+        }
+
+        public void onComplete(OperationFuture<?> future) throws Exception {
+            if (!future.getStatus().isSuccess()) {
+                return;
+            }
+
+            CASValue<?> rsp = (CASValue<?>) future.get();
+            Object v = rsp.getValue();
+            if (replaceable(v, data.getTimestamp(), data.getVersion())) {
+                try {
+                    client.asyncCAS(keyStr, rsp.getCas(), nextExpiry(), data, false);
+                } catch (CacheException e) {
+                    log.debugf(e, "Dropping put from load %s", keyStr);
                 }
+            }
+        }
+    }
 
-                CacheItem item = (CacheItem) rsp.getValue();
-                if (item instanceof CacheLock) {
-                    CacheLock lock = (CacheLock) item;
-                    if (lock.unlock(nextTimestamp())) {
-                        if (client.cas(keyStr, rsp.getCas(), expiry, new CacheData(nextTimestamp(), version, value, schemaVersion)) == CASResponse.OK) {
-                            return true;
-                        }
-                    } else if (client.cas(keyStr, rsp.getCas(), 0, lock) == CASResponse.OK) {
-                        return true;
-                    }
-                } else {
-                    return false;
+    /**
+     * Writes back an entry read for a slide with its new TTL, unless it's
+     * no longer a {@link CacheData}.
+     */
+    private class SlideListener implements OperationCompletionListener {
+        private final String keyStr;
+        private final int ttl;
+
+        SlideListener(String keyStr, int ttl) {
+            this.keyStr = keyStr;
+            this.ttl = ttl;
+        }
+
+        public void onComplete(OperationFuture<?> future) throws Exception {
+            if (!future.getStatus().isSuccess()) {
+                return;
+            }
+
+            CASValue<?> rsp = (CASValue<?>) future.get();
+            if (rsp != null && rsp.getValue() instanceof CacheData) {
+                try {
+                    client.asyncCAS(keyStr, rsp.getCas(), ttl, rsp.getValue(), false);
+                } catch (CacheException e) {
+                    log.debugf(e, "Dropping touch of %s", keyStr);
                 }
             }
         }
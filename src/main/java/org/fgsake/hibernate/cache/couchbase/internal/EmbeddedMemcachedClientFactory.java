@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import org.fgsake.hibernate.cache.couchbase.CouchbaseRegionFactory;
+import org.fgsake.hibernate.cache.couchbase.MemcachedClientFactory;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to an {@link EmbeddedMemcachedServer} instead of Couchbase, for
+ * load and latency testing without a cluster.
+ * <p>
+ * With the default port of 0, each client gets a private server that's
+ * closed along with it. With a fixed port, every client in the JVM using
+ * that port shares one server, the way nodes share a bucket, and the server
+ * is configured by whichever client starts it.
+ */
+public class EmbeddedMemcachedClientFactory implements MemcachedClientFactory {
+    private static final Logger log = Logger.getLogger(EmbeddedMemcachedClientFactory.class);
+
+    /**
+     * Port for a server shared by every client in the JVM, or 0 for a
+     * private server on any free port. Default is 0.
+     */
+    public static final String CACHE_EMBEDDED_PORT_PROPERTY = "hibernate.cache.couchbase.embedded.port";
+    /**
+     * Fixed delay before each response, in microseconds. Default is 0.
+     */
+    public static final String CACHE_EMBEDDED_LATENCY_PROPERTY = "hibernate.cache.couchbase.embedded.latency";
+    /**
+     * Most random delay added to the latency of each response, in
+     * microseconds. Default is 0.
+     */
+    public static final String CACHE_EMBEDDED_JITTER_PROPERTY = "hibernate.cache.couchbase.embedded.jitter";
+    /**
+     * Fraction of requests, between 0 and 1, answered with a temporary
+     * failure. Default is 0.
+     */
+    public static final String CACHE_EMBEDDED_FAILURE_RATE_PROPERTY = "hibernate.cache.couchbase.embedded.failure_rate";
+    /**
+     * Largest value the server accepts, in bytes. Default is 1048576, as in
+     * memcached.
+     */
+    public static final String CACHE_EMBEDDED_MAX_ITEM_SIZE_PROPERTY = "hibernate.cache.couchbase.embedded.max_item_size";
+
+    private static final ConcurrentMap<Integer, EmbeddedMemcachedServer> shared = new ConcurrentHashMap<Integer, EmbeddedMemcachedServer>();
+
+    /**
+     * @return the shared server on {@code port}, e.g. to change its latency
+     *         or failure rate during a test, or null if none was started
+     */
+    public static EmbeddedMemcachedServer getServer(int port) {
+        return shared.get(port);
+    }
+
+    public MemcachedClient create(Properties props) throws Exception {
+        int port = Integer.parseInt(props.getProperty(CACHE_EMBEDDED_PORT_PROPERTY, "0"));
+        long operationTimeout = Long.parseLong(props.getProperty(CouchbaseRegionFactory.CACHE_OPERATION_TIMEOUT_PROPERTY,
+                String.valueOf(DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT)));
+        ConnectionFactory connectionFactory = new ConnectionFactoryBuilder()
+                .setProtocol(ConnectionFactoryBuilder.Protocol.BINARY)
+                .setOpTimeout(operationTimeout)
+                .build();
+
+        if (port == 0) {
+            final EmbeddedMemcachedServer server = start(props, 0);
+            return new MemcachedClient(connectionFactory, Collections.singletonList(server.getAddress())) {
+                @Override
+                public boolean shutdown(long timeout, TimeUnit unit) {
+                    try {
+                        return super.shutdown(timeout, unit);
+                    } finally {
+                        server.close();
+                    }
+                }
+            };
+        }
+
+        InetSocketAddress address;
+        synchronized (shared) {
+            EmbeddedMemcachedServer server = shared.get(port);
+            if (server == null) {
+                server = start(props, port);
+                shared.put(port, server);
+            }
+            address = server.getAddress();
+        }
+        return new MemcachedClient(connectionFactory, Collections.singletonList(address));
+    }
+
+    private static EmbeddedMemcachedServer start(Properties props, int port) throws IOException {
+        long latency = Long.parseLong(props.getProperty(CACHE_EMBEDDED_LATENCY_PROPERTY, "0"));
+        long jitter = Long.parseLong(props.getProperty(CACHE_EMBEDDED_JITTER_PROPERTY, "0"));
+        double failureRate = Double.parseDouble(props.getProperty(CACHE_EMBEDDED_FAILURE_RATE_PROPERTY, "0"));
+        int maxItemSize = Integer.parseInt(props.getProperty(CACHE_EMBEDDED_MAX_ITEM_SIZE_PROPERTY, "1048576"));
+
+        EmbeddedMemcachedServer server = new EmbeddedMemcachedServer(port, maxItemSize);
+        server.setLatency(latency, TimeUnit.MICROSECONDS);
+        server.setJitter(jitter, TimeUnit.MICROSECONDS);
+        server.setFailureRate(failureRate);
+        log.infof("Started embedded memcached on %s with %dus latency, %dus jitter and %.2f failure rate",
+                server.getAddress(), latency, jitter, failureRate);
+        return server;
+    }
+}
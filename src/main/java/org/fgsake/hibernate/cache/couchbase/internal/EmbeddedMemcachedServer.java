@@ -0,0 +1,712 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.jboss.logging.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-JVM stand-in for memcached that speaks enough of the binary protocol
+ * for this cache: get, gets, add, set, replace, cas, delete, incr, decr,
+ * touch and get-and-touch, plus the quiet gets and noop used for bulk gets.
+ * Expiry follows memcached: 0 never expires, up to 30 days is relative, and
+ * anything larger is an absolute Unix time.
+ * <p>
+ * It's meant for load and latency testing without a cluster. Responses can
+ * be delayed by a fixed latency plus uniform random jitter; delayed
+ * responses are still sent in order, without holding up the requests behind
+ * them, much like a network round trip. A fraction of requests can be
+ * failed with a temporary failure instead of being executed. Quiet gets are
+ * never delayed or failed on their own; the noop that ends a bulk get is.
+ * <p>
+ * Each connection is served by its own thread, plus a writer thread while
+ * responses are delayed.
+ */
+public final class EmbeddedMemcachedServer {
+    private static final Logger log = Logger.getLogger(EmbeddedMemcachedServer.class);
+
+    private static final Charset KEY_CHARSET = Charset.forName("ISO-8859-1");
+    private static final byte[] VERSION_STRING = "1.4.0-embedded".getBytes(KEY_CHARSET);
+    private static final byte[] EMPTY = new byte[0];
+    private static final long RELATIVE_EXPIRY_LIMIT = TimeUnit.DAYS.toSeconds(30);
+    private static final int HEADER_LENGTH = 24;
+
+    private static final byte REQUEST = (byte) 0x80;
+    private static final byte RESPONSE = (byte) 0x81;
+
+    private static final int GET = 0x00;
+    private static final int SET = 0x01;
+    private static final int ADD = 0x02;
+    private static final int REPLACE = 0x03;
+    private static final int DELETE = 0x04;
+    private static final int INCREMENT = 0x05;
+    private static final int DECREMENT = 0x06;
+    private static final int QUIT = 0x07;
+    private static final int FLUSH = 0x08;
+    private static final int GETQ = 0x09;
+    private static final int NOOP = 0x0a;
+    private static final int VERSION = 0x0b;
+    private static final int GETK = 0x0c;
+    private static final int GETKQ = 0x0d;
+    private static final int STAT = 0x10;
+    private static final int SETQ = 0x11;
+    private static final int ADDQ = 0x12;
+    private static final int REPLACEQ = 0x13;
+    private static final int DELETEQ = 0x14;
+    private static final int INCREMENTQ = 0x15;
+    private static final int DECREMENTQ = 0x16;
+    private static final int QUITQ = 0x17;
+    private static final int FLUSHQ = 0x18;
+    private static final int TOUCH = 0x1c;
+    private static final int GAT = 0x1d;
+    private static final int GATQ = 0x1e;
+
+    private static final short NO_ERROR = 0x00;
+    private static final short KEY_NOT_FOUND = 0x01;
+    private static final short KEY_EXISTS = 0x02;
+    private static final short VALUE_TOO_LARGE = 0x03;
+    private static final short INVALID_ARGUMENTS = 0x04;
+    private static final short NON_NUMERIC = 0x06;
+    private static final short UNKNOWN_COMMAND = 0x81;
+    private static final short TEMPORARY_FAILURE = 0x86;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final int maxItemSize;
+    private final ConcurrentMap<String, Item> items = new ConcurrentHashMap<String, Item>();
+    private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicLong casCounter = new AtomicLong();
+    private final Random random = new Random();
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+    private volatile double failureRate;
+    private volatile boolean closed;
+
+    /**
+     * Starts a server on the loopback interface.
+     *
+     * @param port the port to listen on, or 0 for any free port
+     * @param maxItemSize largest value accepted, in bytes
+     */
+    public EmbeddedMemcachedServer(int port, int maxItemSize) throws IOException {
+        this.maxItemSize = maxItemSize;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        executor = Executors.newCachedThreadPool(new DaemonThreadFactory("couchbase-cache-embedded"));
+        executor.execute(new Runnable() {
+            public void run() {
+                accept();
+            }
+        });
+        log.debugf("Embedded memcached listening on %s", getAddress());
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * Sets the fixed part of the delay before each response.
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        latencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Sets the most random delay added to the latency of each response.
+     */
+    public void setJitter(long jitter, TimeUnit unit) {
+        jitterNanos = unit.toNanos(jitter);
+    }
+
+    /**
+     * Sets the fraction of requests, between 0 and 1, answered with a
+     * temporary failure.
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @return number of items stored, including any that have expired but
+     *         haven't been read since
+     */
+    public int size() {
+        return items.size();
+    }
+
+    public void flush() {
+        items.clear();
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.debugf(e, "Error closing embedded memcached");
+        }
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warnf("Embedded memcached stopped accepting connections: %s", e.getMessage());
+                }
+                return;
+            }
+
+            try {
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                executor.execute(new Connection(socket));
+            } catch (Exception e) {
+                connections.remove(socket);
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private long delayNanos() {
+        long delay = latencyNanos;
+        long jitter = jitterNanos;
+        if (jitter > 0) {
+            delay += (long) (random.nextDouble() * jitter);
+        }
+        return delay;
+    }
+
+    private boolean injectFailure() {
+        double rate = failureRate;
+        return rate > 0 && random.nextDouble() < rate;
+    }
+
+    private Item read(String key, long now) {
+        Item item = items.get(key);
+        if (item != null && item.expired(now)) {
+            items.remove(key, item);
+            return null;
+        }
+        return item;
+    }
+
+    /**
+     * Replaces {@code current}, which may be null or expired.
+     *
+     * @return false if the item changed in the meantime
+     */
+    private boolean swap(String key, Item current, Item next) {
+        if (current == null) {
+            return items.putIfAbsent(key, next) == null;
+        }
+        return next == null ? items.remove(key, current) : items.replace(key, current, next);
+    }
+
+    private long nextCas() {
+        return casCounter.incrementAndGet();
+    }
+
+    /**
+     * @return when an item stored with {@code exp} expires, in milliseconds,
+     *         or 0 if it doesn't
+     */
+    private static long expiresAt(int exp, long now) {
+        long seconds = exp & 0xffffffffL;
+        if (seconds == 0) {
+            return 0;
+        } else if (seconds > RELATIVE_EXPIRY_LIMIT) {
+            return TimeUnit.SECONDS.toMillis(seconds);
+        }
+        return now + TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    private static final class Item {
+        final byte[] value;
+        final int flags;
+        final long cas;
+        final long expires;
+
+        Item(byte[] value, int flags, long cas, long expires) {
+            this.value = value;
+            this.flags = flags;
+            this.cas = cas;
+            this.expires = expires;
+        }
+
+        boolean expired(long now) {
+            return expires != 0 && now >= expires;
+        }
+    }
+
+    private static final class Request {
+        int opcode;
+        long opaque;
+        long cas;
+        ByteBuffer extras;
+        String key;
+        byte[] keyBytes;
+        byte[] value;
+        boolean quiet;
+    }
+
+    private static final class PendingResponse {
+        static final PendingResponse CLOSE = new PendingResponse(0, null);
+
+        final long due;
+        final byte[] frame;
+
+        PendingResponse(long due, byte[] frame) {
+            this.due = due;
+            this.frame = frame;
+        }
+    }
+
+    private final class Connection implements Runnable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private BlockingQueue<PendingResponse> pending;
+        private long lastDue;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        public void run() {
+            try {
+                while (!closed) {
+                    Request req = readRequest();
+                    if (req == null || !handle(req)) {
+                        break;
+                    }
+                    if (in.available() == 0) {
+                        flushDirect();
+                    }
+                }
+            } catch (EOFException e) {
+                // Client hung up
+            } catch (SocketException e) {
+                // Closed by the client or the server
+            } catch (IOException e) {
+                log.debugf(e, "Embedded memcached connection failed");
+            } finally {
+                if (pending != null) {
+                    pending.add(PendingResponse.CLOSE);
+                } else {
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        // Already closed
+                    }
+                    connections.remove(socket);
+                    closeQuietly(socket);
+                }
+            }
+        }
+
+        private Request readRequest() throws IOException {
+            in.readFully(header);
+            ByteBuffer h = ByteBuffer.wrap(header);
+            if (h.get(0) != REQUEST) {
+                log.debugf("Closing connection after bad magic %02x", h.get(0));
+                return null;
+            }
+
+            Request req = new Request();
+            req.opcode = h.get(1) & 0xff;
+            int keyLength = h.getShort(2) & 0xffff;
+            int extrasLength = h.get(4) & 0xff;
+            int bodyLength = h.getInt(8);
+            req.opaque = h.getInt(12) & 0xffffffffL;
+            req.cas = h.getLong(16);
+
+            int valueLength = bodyLength - keyLength - extrasLength;
+            if (valueLength < 0) {
+                log.debugf("Closing connection after bad body length %d", bodyLength);
+                return null;
+            }
+
+            byte[] extras = new byte[extrasLength];
+            in.readFully(extras);
+            req.extras = ByteBuffer.wrap(extras);
+            req.keyBytes = new byte[keyLength];
+            in.readFully(req.keyBytes);
+            req.key = new String(req.keyBytes, KEY_CHARSET);
+            req.value = new byte[valueLength];
+            in.readFully(req.value);
+            return req;
+        }
+
+        /**
+         * @return false if the connection should be closed
+         */
+        private boolean handle(Request req) throws IOException {
+            int opcode = req.opcode;
+            switch (opcode) {
+            case GETQ:
+            case GETKQ:
+            case GATQ:
+            case SETQ:
+            case ADDQ:
+            case REPLACEQ:
+            case DELETEQ:
+            case INCREMENTQ:
+            case DECREMENTQ:
+            case QUITQ:
+            case FLUSHQ:
+                req.quiet = true;
+                break;
+            default:
+                break;
+            }
+
+            boolean quietGet = opcode == GETQ || opcode == GETKQ || opcode == GATQ;
+            if (!quietGet && opcode != QUIT && opcode != QUITQ && injectFailure()) {
+                respond(req, TEMPORARY_FAILURE, 0, EMPTY, EMPTY, "Temporary failure");
+                return true;
+            }
+
+            long now = System.currentTimeMillis();
+            switch (opcode) {
+            case GET:
+            case GETQ:
+            case GETK:
+            case GETKQ:
+                get(req, read(req.key, now), opcode == GETK || opcode == GETKQ);
+                return true;
+            case GAT:
+            case GATQ:
+                if (req.extras.remaining() != 4) {
+                    respond(req, INVALID_ARGUMENTS, 0, EMPTY, EMPTY, "Invalid arguments");
+                } else {
+                    get(req, touch(req.key, req.extras.getInt(0), now), false);
+                }
+                return true;
+            case TOUCH:
+                if (req.extras.remaining() != 4) {
+                    respond(req, INVALID_ARGUMENTS, 0, EMPTY, EMPTY, "Invalid arguments");
+                } else if (touch(req.key, req.extras.getInt(0), now) == null) {
+                    respond(req, KEY_NOT_FOUND, 0, EMPTY, EMPTY, "Not found");
+                } else {
+                    respond(req, NO_ERROR, 0, EMPTY, EMPTY, null);
+                }
+                return true;
+            case SET:
+            case SETQ:
+            case ADD:
+            case ADDQ:
+            case REPLACE:
+            case REPLACEQ:
+                store(req, now);
+                return true;
+            case DELETE:
+            case DELETEQ:
+                delete(req, now);
+                return true;
+            case INCREMENT:
+            case INCREMENTQ:
+            case DECREMENT:
+            case DECREMENTQ:
+                mutate(req, now);
+                return true;
+            case FLUSH:
+            case FLUSHQ:
+                items.clear();
+                respond(req, NO_ERROR, 0, EMPTY, EMPTY, null);
+                return true;
+            case NOOP:
+            case STAT:
+                respond(req, NO_ERROR, 0, EMPTY, EMPTY, null);
+                return true;
+            case VERSION:
+                respond(req, NO_ERROR, 0, EMPTY, EMPTY, VERSION_STRING);
+                return true;
+            case QUIT:
+            case QUITQ:
+                respond(req, NO_ERROR, 0, EMPTY, EMPTY, null);
+                return false;
+            default:
+                respond(req, UNKNOWN_COMMAND, 0, EMPTY, EMPTY, "Unknown command");
+                return true;
+            }
+        }
+
+        private void get(Request req, Item item, boolean withKey) throws IOException {
+            if (item == null) {
+                if (!req.quiet) {
+                    respond(req, KEY_NOT_FOUND, 0, EMPTY, withKey ? req.keyBytes : EMPTY, "Not found");
+                }
+                return;
+            }
+            byte[] extras = ByteBuffer.allocate(4).putInt(item.flags).array();
+            send(req, NO_ERROR, item.cas, extras, withKey ? req.keyBytes : EMPTY, item.value);
+        }
+
+        private Item touch(String key, int exp, long now) {
+            for (;;) {
+                Item current = read(key, now);
+                if (current == null) {
+                    return null;
+                }
+                Item next = new Item(current.value, current.flags, current.cas, expiresAt(exp, now));
+                if (swap(key, current, next)) {
+                    return next;
+                }
+            }
+        }
+
+        private void store(Request req, long now) throws IOException {
+            if (req.extras.remaining() != 8) {
+                respond(req, INVALID_ARGUMENTS, 0, EMPTY, EMPTY, "Invalid arguments");
+                return;
+            } else if (req.value.length > maxItemSize) {
+                respond(req, VALUE_TOO_LARGE, 0, EMPTY, EMPTY, "Too large");
+                return;
+            }
+
+            int flags = req.extras.getInt(0);
+            int exp = req.extras.getInt(4);
+            int opcode = req.opcode;
+            for (;;) {
+                Item current = items.get(req.key);
+                boolean live = current != null && !current.expired(now);
+                if ((opcode == ADD || opcode == ADDQ) && live) {
+                    respond(req, KEY_EXISTS, 0, EMPTY, EMPTY, "Data exists for key");
+                    return;
+                } else if ((opcode == REPLACE || opcode == REPLACEQ) && !live) {
+                    respond(req, KEY_NOT_FOUND, 0, EMPTY, EMPTY, "Not found");
+                    return;
+                } else if (req.cas != 0 && !live) {
+                    respond(req, KEY_NOT_FOUND, 0, EMPTY, EMPTY, "Not found");
+                    return;
+                } else if (req.cas != 0 && current.cas != req.cas) {
+                    respond(req, KEY_EXISTS, 0, EMPTY, EMPTY, "Data exists for key");
+                    return;
+                }
+
+                Item next = new Item(req.value, flags, nextCas(), expiresAt(exp, now));
+                if (swap(req.key, current, next)) {
+                    respond(req, NO_ERROR, next.cas, EMPTY, EMPTY, null);
+                    return;
+                }
+            }
+        }
+
+        private void delete(Request req, long now) throws IOException {
+            for (;;) {
+                Item current = read(req.key, now);
+                if (current == null) {
+                    respond(req, KEY_NOT_FOUND, 0, EMPTY, EMPTY, "Not found");
+                    return;
+                } else if (req.cas != 0 && current.cas != req.cas) {
+                    respond(req, KEY_EXISTS, 0, EMPTY, EMPTY, "Data exists for key");
+                    return;
+                }
+
+                if (swap(req.key, current, null)) {
+                    respond(req, NO_ERROR, 0, EMPTY, EMPTY, null);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Counters are stored as decimal strings, as in memcached, so they
+         * can be read back with a plain get. Decrementing stops at 0.
+         */
+        private void mutate(Request req, long now) throws IOException {
+            if (req.extras.remaining() != 20) {
+                respond(req, INVALID_ARGUMENTS, 0, EMPTY, EMPTY, "Invalid arguments");
+                return;
+            }
+
+            long delta = req.extras.getLong(0);
+            long initial = req.extras.getLong(8);
+            int exp = req.extras.getInt(16);
+            boolean increment = req.opcode == INCREMENT || req.opcode == INCREMENTQ;
+            for (;;) {
+                Item current = read(req.key, now);
+                long value;
+                Item next;
+                if (current == null) {
+                    if (exp == -1) {
+                        respond(req, KEY_NOT_FOUND, 0, EMPTY, EMPTY, "Not found");
+                        return;
+                    }
+                    value = initial;
+                    next = new Item(counterBytes(value), 0, nextCas(), expiresAt(exp, now));
+                } else {
+                    try {
+                        value = Long.parseLong(new String(current.value, KEY_CHARSET).trim());
+                    } catch (NumberFormatException e) {
+                        respond(req, NON_NUMERIC, 0, EMPTY, EMPTY, "Non-numeric server-side value for incr or decr");
+                        return;
+                    }
+                    value = increment ? value + delta : Math.max(value - delta, 0);
+                    next = new Item(counterBytes(value), current.flags, nextCas(), current.expires);
+                }
+
+                if (swap(req.key, current, next)) {
+                    respond(req, NO_ERROR, next.cas, EMPTY, EMPTY, ByteBuffer.allocate(8).putLong(value).array());
+                    return;
+                }
+            }
+        }
+
+        private byte[] counterBytes(long value) {
+            return Long.toString(value).getBytes(KEY_CHARSET);
+        }
+
+        /**
+         * Sends a response, unless it's a successful response to a quiet
+         * request.
+         */
+        private void respond(Request req, short status, long cas, byte[] extras, byte[] key, Object body) throws IOException {
+            if (req.quiet && status == NO_ERROR) {
+                return;
+            }
+            byte[] value;
+            if (body == null) {
+                value = EMPTY;
+            } else if (body instanceof String) {
+                value = ((String) body).getBytes(KEY_CHARSET);
+            } else {
+                value = (byte[]) body;
+            }
+            send(req, status, cas, extras, key, value);
+        }
+
+        private void send(Request req, short status, long cas, byte[] extras, byte[] key, byte[] value) throws IOException {
+            int bodyLength = extras.length + key.length + value.length;
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+            frame.put(RESPONSE)
+                    .put((byte) req.opcode)
+                    .putShort((short) key.length)
+                    .put((byte) extras.length)
+                    .put((byte) 0)
+                    .putShort(status)
+                    .putInt(bodyLength)
+                    .putInt((int) req.opaque)
+                    .putLong(cas)
+                    .put(extras)
+                    .put(key)
+                    .put(value);
+
+            long delay = req.quiet ? 0 : delayNanos();
+            if (delay == 0 && pending == null) {
+                out.write(frame.array());
+                return;
+            }
+
+            if (pending == null) {
+                pending = new LinkedBlockingQueue<PendingResponse>();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        writeDelayed();
+                    }
+                });
+            }
+            // Never let a response overtake an earlier one
+            long due = Math.max(System.nanoTime() + delay, lastDue);
+            lastDue = due;
+            pending.add(new PendingResponse(due, frame.array()));
+        }
+
+        private void flushDirect() throws IOException {
+            if (pending == null) {
+                out.flush();
+            }
+        }
+
+        /**
+         * Once any response has been delayed, all responses on the
+         * connection go through here to keep them in order.
+         */
+        private void writeDelayed() {
+            try {
+                for (;;) {
+                    PendingResponse rsp = pending.take();
+                    if (rsp == PendingResponse.CLOSE) {
+                        out.flush();
+                        break;
+                    }
+                    long wait = rsp.due - System.nanoTime();
+                    if (wait > 0) {
+                        out.flush();
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    out.write(rsp.frame);
+                    if (pending.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                log.debugf(e, "Embedded memcached connection failed");
+            } finally {
+                connections.remove(socket);
+                closeQuietly(socket);
+            }
+        }
+    }
+}
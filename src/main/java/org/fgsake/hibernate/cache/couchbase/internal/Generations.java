@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.hibernate.cache.CacheException;
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks each region's generation, a counter in Couchbase that's part of
+ * every key in the region. Clearing a region is a single increment: keys
+ * from earlier generations are never read again and age out on their own.
+ * <p>
+ * Generations are read once when a region is built, and all of them are
+ * refreshed together with one multi-get every {@code refreshInterval}, so
+ * other nodes keep using a cleared region's old keys for up to that long.
+ * <p>
+ * A missing counter starts at the current time in seconds rather than 0, so
+ * a counter lost to eviction or a bucket flush can't bring back an old
+ * generation's keys.
+ * <p>
+ * A generation that can't be read when its region is built, e.g. because
+ * Couchbase is unreachable, starts out unknown: the region bypasses the
+ * cache until a refresh reads it. If the region skipped any invalidating
+ * writes meanwhile, that refresh moves it to a new generation instead.
+ */
+public final class Generations {
+    private static final Logger log = Logger.getLogger(Generations.class);
+
+    private final ClientWrapper client;
+    private final ConcurrentMap<String, Generation> generations = new ConcurrentHashMap<String, Generation>();
+
+    public Generations(ClientWrapper client, ScheduledExecutorService scheduler, long refreshInterval, TimeUnit unit) {
+        this.client = client;
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        }, refreshInterval, refreshInterval, unit);
+    }
+
+    public Generation register(String regionName) {
+        Generation generation = generations.get(regionName);
+        if (generation == null) {
+            generation = new Generation(client, regionName, regionName + "@generation");
+            try {
+                generation.resolve();
+            } catch (CacheException e) {
+                log.warnf("Bypassing region %s until its generation can be read: %s", regionName, e.getMessage());
+            }
+            Generation existing = generations.putIfAbsent(regionName, generation);
+            if (existing != null) {
+                generation = existing;
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Moves every region to a new generation, e.g. after writes may have
+     * been lost.
+     */
+    public void incrementAll() {
+        for (Generation generation : generations.values()) {
+            try {
+                generation.increment();
+            } catch (CacheException e) {
+                log.warnf("Unable to clear region %s: %s", generation.regionName, e.getMessage());
+            }
+        }
+    }
+
+    void refresh() {
+        if (generations.isEmpty()) {
+            return;
+        }
+
+        List<String> keys = new ArrayList<String>(generations.size());
+        for (Generation generation : generations.values()) {
+            if (!generation.isKnown()) {
+                try {
+                    generation.resolve();
+                } catch (CacheException e) {
+                    log.debugf(e, "Unable to read generation of region %s", generation.regionName);
+                    continue;
+                }
+            }
+            keys.add(generation.key);
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        Map<String, Object> values;
+        try {
+            values = client.getBulk(keys);
+        } catch (CacheException e) {
+            log.debugf(e, "Unable to refresh %d generations", keys.size());
+            return;
+        }
+
+        for (Generation generation : generations.values()) {
+            Object value = values.get(generation.key);
+            if (value != null) {
+                generation.update(Long.parseLong(value.toString().trim()));
+            }
+        }
+    }
+
+    private static long read(ClientWrapper client, String key, int by) {
+        long value = client.incr(key, by, System.currentTimeMillis() / 1000);
+        if (value < 0) {
+            throw new CacheException("Unable to read generation " + key);
+        }
+        return value;
+    }
+
+    public static final class Generation {
+        private final ClientWrapper client;
+        private final String regionName;
+        private final String key;
+        private volatile long value = -1;
+        private volatile String prefix;
+        private volatile boolean known;
+        private int skippedWrites;
+
+        Generation(ClientWrapper client, String regionName, String key, long value) {
+            this(client, regionName, key);
+            known = true;
+            update(value);
+        }
+
+        /**
+         * Starts out unknown, with a prefix that's never written to but is as
+         * long as one read now, until {@link #resolve} reads the counter.
+         */
+        Generation(ClientWrapper client, String regionName, String key) {
+            this.client = client;
+            this.regionName = regionName;
+            this.key = key;
+            this.prefix = regionName + "@?" + Long.toString(System.currentTimeMillis() / 1000, 36) + ":";
+        }
+
+        public long get() {
+            return value;
+        }
+
+        /**
+         * @return whether the counter has been read; until it is, the region
+         *         bypasses the cache
+         */
+        public boolean isKnown() {
+            return known;
+        }
+
+        /**
+         * Skips an invalidating write while the generation is unknown, to be
+         * made up for by moving to a new generation once it's read.
+         *
+         * @return whether the write must be skipped
+         */
+        public synchronized boolean skipWrite() {
+            if (known) {
+                return false;
+            }
+            skippedWrites++;
+            return true;
+        }
+
+        /**
+         * @return the prefix of every key in the region's current generation
+         */
+        public String prefix() {
+            return prefix;
+        }
+
+        /**
+         * Moves the region to a new, empty generation.
+         */
+        public void increment() {
+            if (skipWrite()) {
+                return;
+            }
+            long next = read(client, key, 1);
+            log.debugf("Region %s now at generation %d", regionName, next);
+            update(next);
+        }
+
+        /**
+         * Reads an unknown generation, incrementing it if any writes were
+         * skipped before it's known, and again for those skipped meanwhile.
+         */
+        void resolve() {
+            int skipped;
+            do {
+                synchronized (this) {
+                    skipped = skippedWrites;
+                }
+                long next = read(client, key, skipped > 0 ? 1 : 0);
+                synchronized (this) {
+                    skippedWrites -= skipped;
+                    if (skippedWrites == 0) {
+                        known = true;
+                        update(next);
+                        log.debugf("Region %s at generation %d", regionName, next);
+                    }
+                }
+            } while (!known);
+        }
+
+        /**
+         * Ignores values older than the current one, which a refresh that
+         * raced an increment can produce, and any while still unknown.
+         */
+        private synchronized void update(long value) {
+            if (known && value > this.value) {
+                this.value = value;
+                this.prefix = regionName + "@" + Long.toString(value, 36) + ":";
+            }
+        }
+    }
+}
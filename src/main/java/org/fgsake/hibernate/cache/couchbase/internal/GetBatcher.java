@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import org.fgsake.hibernate.cache.couchbase.CacheBackend;
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces single-key gets issued by different threads at about the same
+ * time into one multi-get. A get waits at most {@code window} for others to
+ * join it, and a batch is sent early once it reaches {@code maxBatch} keys.
+ * <p>
+ * {@code timeout} bounds how long a caller waits for its batch and should
+ * match the client's operation timeout.
+ */
+public final class GetBatcher {
+    private static final Logger log = Logger.getLogger(GetBatcher.class);
+
+    private final CacheBackend client;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final long timeoutMillis;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public GetBatcher(CacheBackend client, long window, TimeUnit unit, int maxBatch, long timeoutMillis) {
+        this.client = client;
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatch = maxBatch;
+        this.timeoutMillis = timeoutMillis + TimeUnit.NANOSECONDS.toMillis(windowNanos);
+
+        flusher = new Thread(new Flusher(), "couchbase-get-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Fetches {@code key} as part of the next batch. The item is returned
+     * undecoded so that each caller decodes with its own region's transcoder.
+     *
+     * @throws OperationTimeoutException if the batch doesn't complete within the operation timeout
+     * @throws ShutdownException if the batcher is shut down before the batch is sent
+     * @throws RuntimeException any exception raised while sending the batch
+     */
+    public CachedData get(String key) {
+        if (!running) {
+            throw new ShutdownException();
+        }
+
+        Pending pending = new Pending(key);
+        queue.add(pending);
+        try {
+            if (!pending.latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new OperationTimeoutException("Timed out waiting for batched get of " + key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for batched get of " + key, e);
+        }
+
+        if (pending.error != null) {
+            throw pending.error;
+        }
+        return pending.value;
+    }
+
+    public void shutdown() {
+        running = false;
+        flusher.interrupt();
+
+        List<Pending> orphans = new ArrayList<Pending>();
+        queue.drainTo(orphans);
+        fail(orphans, new ShutdownException());
+    }
+
+    private void send(final Map<String, List<Pending>> batch) {
+        log.tracef("Sending batch of %d keys", batch.size());
+
+        final BulkFuture<Map<String, CachedData>> future;
+        try {
+            future = client.asyncGetBulk(batch.keySet(), RawTranscoder.INSTANCE);
+        } catch (RuntimeException e) {
+            for (List<Pending> waiting : batch.values()) {
+                fail(waiting, e);
+            }
+            return;
+        }
+
+        future.addListener(new BulkGetCompletionListener() {
+            public void onComplete(BulkGetFuture<?> ignored) throws Exception {
+                Map<String, CachedData> values;
+                try {
+                    values = future.get();
+                } catch (ExecutionException e) {
+                    RuntimeException error = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new RuntimeException(e.getCause());
+                    for (List<Pending> waiting : batch.values()) {
+                        fail(waiting, error);
+                    }
+                    return;
+                }
+
+                for (Map.Entry<String, List<Pending>> entry : batch.entrySet()) {
+                    CachedData value = values.get(entry.getKey());
+                    for (Pending pending : entry.getValue()) {
+                        pending.value = value;
+                        pending.latch.countDown();
+                    }
+                }
+            }
+        });
+    }
+
+    private static void fail(List<Pending> waiting, RuntimeException error) {
+        for (Pending pending : waiting) {
+            pending.error = error;
+            pending.latch.countDown();
+        }
+    }
+
+    /**
+     * Raised to callers whose get was never sent because the batcher was shut
+     * down, so it isn't mistaken for the client's command queue being full.
+     */
+    public static final class ShutdownException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        ShutdownException() {
+            super("Shutting down");
+        }
+    }
+
+    private static final class Pending {
+        final String key;
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile CachedData value;
+        volatile RuntimeException error;
+
+        Pending(String key) {
+            this.key = key;
+        }
+    }
+
+    private final class Flusher implements Runnable {
+        public void run() {
+            while (running) {
+                Map<String, List<Pending>> batch = new LinkedHashMap<String, List<Pending>>();
+                try {
+                    add(batch, queue.take());
+                    long deadline = System.nanoTime() + windowNanos;
+                    while (batch.size() < maxBatch) {
+                        Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        add(batch, next);
+                    }
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        for (List<Pending> waiting : batch.values()) {
+                            fail(waiting, new ShutdownException());
+                        }
+                        return;
+                    }
+                }
+
+                if (!batch.isEmpty()) {
+                    send(batch);
+                }
+            }
+        }
+
+        private void add(Map<String, List<Pending>> batch, Pending pending) {
+            List<Pending> waiting = batch.get(pending.key);
+            if (waiting == null) {
+                waiting = new ArrayList<Pending>(1);
+                batch.put(pending.key, waiting);
+            }
+            waiting.add(pending);
+        }
+    }
+}
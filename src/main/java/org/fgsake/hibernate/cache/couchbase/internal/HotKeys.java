@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Finds the most read keys of a region and keeps a short-lived local replica
+ * of them, so that a few very hot keys don't all land on the one node that
+ * owns them.
+ * <p>
+ * Each thread counts one of every {@code sampleRate} of its reads in a
+ * Space-Saving sketch with {@code 8 * topK} counters: a key that isn't
+ * counted takes over the counter with the lowest count, and inherits that
+ * count as its possible error. Counters are kept in buckets of equal count,
+ * linked in order of count, so both counting a read and finding the lowest
+ * counter take constant time. A sample that finds the sketch busy is
+ * skipped rather than waited for. Every second, the {@code topK} keys whose
+ * count is certain to reach {@link #MIN_SAMPLES} become the hot keys, and
+ * all counts are halved so the sketch follows recent traffic.
+ * <p>
+ * Like the near cache, the replica can be stale with respect to other nodes
+ * for at most its TTL. It's also read without looking for a lock, so it keeps
+ * serving a key another node has locked for an update until the replica
+ * expires.
+ */
+public final class HotKeys {
+    private static final int COUNTERS_PER_KEY = 8;
+    private static final int MIN_SAMPLES = 4;
+    private static final long DECAY_INTERVAL_MILLIS = 1000;
+
+    private final int topK;
+    private final int sampleRate;
+    private final int capacity;
+    private final NearCache replica;
+    private volatile Set<String> hot = Collections.emptySet();
+    private volatile Map<String, Long> report = Collections.emptyMap();
+
+    // Reads each thread has left before its next sample
+    private final ThreadLocal<int[]> untilSample = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    // The sketch, guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Counter> counters = new HashMap<String, Counter>();
+    private Bucket lowest;
+    private Bucket highest;
+
+    public HotKeys(int topK, int sampleRate, long replicaTtl, TimeUnit unit, ScheduledExecutorService scheduler) {
+        if (topK <= 0) {
+            throw new IllegalArgumentException("topK must be positive");
+        }
+        this.topK = topK;
+        this.sampleRate = Math.max(sampleRate, 1);
+        this.capacity = topK * COUNTERS_PER_KEY;
+        this.replica = new NearCache(topK, replicaTtl, unit);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        }, DECAY_INTERVAL_MILLIS, DECAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counts a read of {@code keyStr}, if it's sampled.
+     */
+    public void sample(String keyStr) {
+        if (sampleRate > 1) {
+            int[] left = untilSample.get();
+            if (--left[0] > 0) {
+                return;
+            }
+            left[0] = sampleRate;
+        }
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            Counter counter = counters.get(keyStr);
+            if (counter != null) {
+                increment(counter);
+            } else if (counters.size() < capacity) {
+                counter = new Counter(keyStr, 0);
+                counters.put(keyStr, counter);
+                if (lowest == null || lowest.count != 1) {
+                    insertAfter(null, new Bucket(1));
+                }
+                lowest.add(counter);
+            } else {
+                counter = lowest.first;
+                counters.remove(counter.keyStr);
+                counter.keyStr = keyStr;
+                counter.error = lowest.count;
+                counters.put(keyStr, counter);
+                increment(counter);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isHot(String keyStr) {
+        return hot.contains(keyStr);
+    }
+
+    public CacheData getReplica(String keyStr) {
+        return replica.get(keyStr);
+    }
+
+    public void putReplica(String keyStr, CacheData data) {
+        replica.put(keyStr, data);
+    }
+
+    public void removeReplica(String keyStr) {
+        replica.remove(keyStr);
+    }
+
+    public void clearReplica() {
+        replica.clear();
+    }
+
+    /**
+     * @return the hot keys, hottest first, with their estimated recent
+     *         reads per second
+     */
+    public Map<String, Long> getTopKeys() {
+        return report;
+    }
+
+    void refresh() {
+        Set<String> nextHot = new HashSet<String>();
+        Map<String, Long> nextReport = new LinkedHashMap<String, Long>();
+        lock.lock();
+        try {
+            // Buckets from the highest count down rank the keys
+            for (Bucket bucket = highest; bucket != null && nextHot.size() < topK; bucket = bucket.prev) {
+                for (Counter counter = bucket.first; counter != null && nextHot.size() < topK; counter = counter.next) {
+                    if (bucket.count - counter.error >= MIN_SAMPLES) {
+                        nextHot.add(counter.keyStr);
+                        // Halving every interval keeps a steady key's count at
+                        // twice its samples per interval
+                        nextReport.put(counter.keyStr, bucket.count * sampleRate * 1000 / (2 * DECAY_INTERVAL_MILLIS));
+                    }
+                }
+            }
+            decay();
+        } finally {
+            lock.unlock();
+        }
+
+        Set<String> previous = hot;
+        hot = Collections.unmodifiableSet(nextHot);
+        report = Collections.unmodifiableMap(nextReport);
+        for (String keyStr : previous) {
+            if (!nextHot.contains(keyStr)) {
+                replica.remove(keyStr);
+            }
+        }
+    }
+
+    /**
+     * Halves every count and error, merging buckets that end up with the
+     * same count and dropping the counters that reach 0.
+     */
+    private void decay() {
+        Bucket kept = null;
+        for (Bucket bucket = lowest; bucket != null; ) {
+            Bucket next = bucket.next;
+            long count = bucket.count / 2;
+            for (Counter counter = bucket.first; counter != null; counter = counter.next) {
+                counter.error /= 2;
+                if (count == 0) {
+                    counters.remove(counter.keyStr);
+                }
+            }
+            if (count == 0) {
+                unlink(bucket);
+            } else if (kept != null && kept.count == count) {
+                kept.addAll(bucket);
+                unlink(bucket);
+            } else {
+                bucket.count = count;
+                kept = bucket;
+            }
+            bucket = next;
+        }
+    }
+
+    /**
+     * Moves {@code counter} to the bucket one count higher.
+     */
+    private void increment(Counter counter) {
+        Bucket from = counter.bucket;
+        Bucket to = from.next;
+        if (to == null || to.count != from.count + 1) {
+            to = new Bucket(from.count + 1);
+            insertAfter(from, to);
+        }
+        from.remove(counter);
+        to.add(counter);
+        if (from.first == null) {
+            unlink(from);
+        }
+    }
+
+    /**
+     * Links {@code bucket} in after {@code prev}, or first if it's null.
+     */
+    private void insertAfter(Bucket prev, Bucket bucket) {
+        bucket.prev = prev;
+        bucket.next = prev != null ? prev.next : lowest;
+        if (bucket.next != null) {
+            bucket.next.prev = bucket;
+        } else {
+            highest = bucket;
+        }
+        if (prev != null) {
+            prev.next = bucket;
+        } else {
+            lowest = bucket;
+        }
+    }
+
+    private void unlink(Bucket bucket) {
+        if (bucket.prev != null) {
+            bucket.prev.next = bucket.next;
+        } else {
+            lowest = bucket.next;
+        }
+        if (bucket.next != null) {
+            bucket.next.prev = bucket.prev;
+        } else {
+            highest = bucket.prev;
+        }
+    }
+
+    private static final class Counter {
+        String keyStr;
+        long error;
+        Bucket bucket;
+        Counter prev;
+        Counter next;
+
+        Counter(String keyStr, long error) {
+            this.keyStr = keyStr;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Counters that all have the same count.
+     */
+    private static final class Bucket {
+        long count;
+        Bucket prev;
+        Bucket next;
+        Counter first;
+
+        Bucket(long count) {
+            this.count = count;
+        }
+
+        void add(Counter counter) {
+            counter.bucket = this;
+            counter.prev = null;
+            counter.next = first;
+            if (first != null) {
+                first.prev = counter;
+            }
+            first = counter;
+        }
+
+        void remove(Counter counter) {
+            if (counter.prev != null) {
+                counter.prev.next = counter.next;
+            } else {
+                first = counter.next;
+            }
+            if (counter.next != null) {
+                counter.next.prev = counter.prev;
+            }
+        }
+
+        /**
+         * Moves all of {@code other}'s counters here.
+         */
+        void addAll(Bucket other) {
+            Counter counter = other.first;
+            while (counter != null) {
+                Counter next = counter.next;
+                add(counter);
+                counter = next;
+            }
+            other.first = null;
+        }
+    }
+}
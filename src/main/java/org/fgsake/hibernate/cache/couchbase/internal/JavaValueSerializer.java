@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.fgsake.hibernate.cache.couchbase.ValueSerializer;
+import org.hibernate.internal.util.SerializationHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+
+/**
+ * {@link ValueSerializer} using Java serialization, resolving classes the way
+ * Hibernate does.
+ */
+public class JavaValueSerializer implements ValueSerializer {
+    public byte[] serialize(Object o) throws Exception {
+        return SerializationHelper.serialize((Serializable) o);
+    }
+
+    public Object deserialize(byte[] bytes, int offset, int length) throws Exception {
+        return SerializationHelper.deserialize(new ByteArrayInputStream(bytes, offset, length));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+/**
+ * Streaming 128-bit MurmurHash3 (x64 variant), for turning keys that are too
+ * long or too complex into fixed-length key strings. Not thread-safe; use one
+ * instance per hash.
+ */
+public final class KeyHasher {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] block = new byte[16];
+    private int blockLen;
+    private long length;
+    private long h1;
+    private long h2;
+
+    public static String hash(String s) {
+        return new KeyHasher().putString(s).toHex();
+    }
+
+    public KeyHasher putByte(byte b) {
+        block[blockLen++] = b;
+        if (blockLen == 16) {
+            mix(getLong(block, 0), getLong(block, 8));
+            blockLen = 0;
+        }
+        return this;
+    }
+
+    public KeyHasher putBytes(byte[] bytes) {
+        for (byte b : bytes) {
+            putByte(b);
+        }
+        return this;
+    }
+
+    public KeyHasher putBoolean(boolean b) {
+        return putByte((byte) (b ? 1 : 0));
+    }
+
+    public KeyHasher putInt(int i) {
+        putByte((byte) i);
+        putByte((byte) (i >>> 8));
+        putByte((byte) (i >>> 16));
+        return putByte((byte) (i >>> 24));
+    }
+
+    public KeyHasher putLong(long l) {
+        putInt((int) l);
+        return putInt((int) (l >>> 32));
+    }
+
+    /**
+     * Hashes the string's length and UTF-16 code units, so consecutive strings
+     * can't run into each other.
+     */
+    public KeyHasher putString(String s) {
+        int n = s.length();
+        putInt(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            putByte((byte) c);
+            putByte((byte) (c >>> 8));
+        }
+        return this;
+    }
+
+    /**
+     * Finishes the hash. The hasher can't be used afterwards.
+     *
+     * @return the hash as 32 lowercase hex digits
+     */
+    public String toHex() {
+        finish();
+        char[] out = new char[32];
+        putHex(out, 0, h1);
+        putHex(out, 16, h2);
+        return new String(out);
+    }
+
+    /**
+     * Finishes the hash. The hasher can't be used afterwards.
+     *
+     * @return the first 64 bits of the hash
+     */
+    public long toLong() {
+        finish();
+        return h1;
+    }
+
+    private void mix(long k1, long k2) {
+        length += 16;
+
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private void finish() {
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = blockLen - 1; i >= 8; i--) {
+            k2 = (k2 << 8) | (block[i] & 0xffL);
+        }
+        for (int i = Math.min(blockLen, 8) - 1; i >= 0; i--) {
+            k1 = (k1 << 8) | (block[i] & 0xffL);
+        }
+        if (blockLen > 8) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        if (blockLen > 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        length += blockLen;
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLong(byte[] b, int i) {
+        return (b[i] & 0xffL)
+                | (b[i + 1] & 0xffL) << 8
+                | (b[i + 2] & 0xffL) << 16
+                | (b[i + 3] & 0xffL) << 24
+                | (b[i + 4] & 0xffL) << 32
+                | (b[i + 5] & 0xffL) << 40
+                | (b[i + 6] & 0xffL) << 48
+                | (b[i + 7] & 0xffL) << 56;
+    }
+
+    private static void putHex(char[] out, int offset, long v) {
+        for (int i = 15; i >= 0; i--) {
+            out[offset + i] = HEX[(int) (v & 0xf)];
+            v >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds: each power of two is split
+ * into {@value #SUB_BUCKETS} equal buckets, so a recorded value is known to
+ * within 12.5%. Latencies over about 137 seconds all count as the largest
+ * bucket. Recording is two atomic increments and allocates nothing.
+ * <p>
+ * Bucket counts are striped like {@link StripedCounter}, but over only a
+ * few stripes: each stripe of threads has its own row of buckets and a
+ * running sum, padded so that rows don't share a cache line, and snapshots
+ * add the rows up. That keeps a histogram around 9 KB however many
+ * processors there are.
+ * <p>
+ * Besides the totals since it was created, a histogram reports the
+ * latencies of the last completed interval, so percentiles follow recent
+ * traffic.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXP = 36;
+    private static final long MAX_VALUE = (1L << (MAX_EXP + 1)) - 1;
+    private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_BUCKETS;
+    // Index of the running sum in a row
+    private static final int SUM = BUCKETS;
+    private static final int ROW = BUCKETS + 1 + StripedCounter.PAD;
+    private static final int STRIPES = Math.min(StripedCounter.STRIPES, 4);
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * ROW);
+    private final long intervalNanos;
+
+    // Guarded by this
+    private long intervalStart = System.nanoTime();
+    private long[] intervalBase = new long[BUCKETS + 1];
+    private LatencySnapshot lastInterval = summarize(new long[BUCKETS + 1]);
+
+    /**
+     * @param interval shortest interval {@link #intervalSnapshot()} covers
+     */
+    public LatencyHistogram(long interval, TimeUnit unit) {
+        this.intervalNanos = unit.toNanos(interval);
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int row = (StripedCounter.stripe() & (STRIPES - 1)) * ROW;
+        counts.incrementAndGet(row + bucket(nanos));
+        counts.addAndGet(row + SUM, nanos);
+    }
+
+    /**
+     * @return latencies recorded since the histogram was created
+     */
+    public LatencySnapshot snapshot() {
+        return summarize(totals());
+    }
+
+    /**
+     * Latencies recorded over the last completed interval. An interval ends
+     * at the first call made at least {@code interval} after it started, so
+     * while something polls at least that often, each interval is about that
+     * long. Until the first one ends, the snapshot is empty.
+     */
+    public synchronized LatencySnapshot intervalSnapshot() {
+        long now = System.nanoTime();
+        if (now - intervalStart >= intervalNanos) {
+            long[] totals = totals();
+            long[] interval = new long[totals.length];
+            for (int i = 0; i < totals.length; i++) {
+                interval[i] = totals[i] - intervalBase[i];
+            }
+            lastInterval = summarize(interval);
+            intervalBase = totals;
+            intervalStart = now;
+        }
+        return lastInterval;
+    }
+
+    /**
+     * @return bucket counts added up over the stripes, followed by the sum
+     */
+    private long[] totals() {
+        long[] totals = new long[BUCKETS + 1];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int i = 0; i <= SUM; i++) {
+                totals[i] += counts.get(stripe * ROW + i);
+            }
+        }
+        return totals;
+    }
+
+    private static LatencySnapshot summarize(long[] totals) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += totals[i];
+        }
+        return new LatencySnapshot(n, n == 0 ? 0 : totals[SUM] / n,
+                percentile(totals, n, 0.5), percentile(totals, n, 0.99), percentile(totals, n, 0.999));
+    }
+
+    static int bucket(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        if (v > MAX_VALUE) {
+            v = MAX_VALUE;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value that falls in {@code bucket}
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    private static long percentile(long[] counts, long total, double q) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point-in-time summary of a {@link LatencyHistogram}. Latencies are in
+ * microseconds; percentiles are bucket upper bounds.
+ */
+public final class LatencySnapshot {
+    private final long count;
+    private final double mean;
+    private final double p50;
+    private final double p99;
+    private final double p999;
+
+    LatencySnapshot(long count, long meanNanos, long p50Nanos, long p99Nanos, long p999Nanos) {
+        this(count, meanNanos / 1000.0, p50Nanos / 1000.0, p99Nanos / 1000.0, p999Nanos / 1000.0);
+    }
+
+    @ConstructorProperties({"count", "mean", "p50", "p99", "p999"})
+    public LatencySnapshot(long count, double mean, double p50, double p99, double p999) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getP999() {
+        return p999;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("LatencySnapshot{count=")
+                .append(count)
+                .append(", mean=")
+                .append(mean)
+                .append(", p50=")
+                .append(p50)
+                .append(", p99=")
+                .append(p99)
+                .append(", p999=")
+                .append(p999)
+                .append('}')
+                .toString();
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.transcoders.Transcoder;
+import org.fgsake.hibernate.cache.couchbase.CacheBackend;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores items in this JVM, with the same CAS and expiry semantics as
+ * memcached, for single-node deployments and tests. Items are encoded as
+ * they would be on the wire, so each read gets its own copy.
+ * <p>
+ * Split into independently locked segments, each evicting its least
+ * recently used items once it holds more than its share of
+ * {@code maxSize} bytes. Expired items are removed when they're next read.
+ * <p>
+ * Every client of a pool shares one store, which is cleared once the last
+ * of them shuts down.
+ */
+public final class LocalBackend implements CacheBackend {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int SEGMENTS = 16;
+    private static final int ITEM_OVERHEAD = 64;
+    private static final long MAX_RELATIVE_EXPIRY = TimeUnit.DAYS.toSeconds(30);
+
+    private static final OperationStatus SUCCESS = new OperationStatus(true, "OK", StatusCode.SUCCESS);
+    private static final OperationStatus NOT_FOUND = new OperationStatus(false, "Not found", StatusCode.ERR_NOT_FOUND);
+    private static final OperationStatus EXISTS = new OperationStatus(false, "Data exists for key", StatusCode.ERR_EXISTS);
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong casCounter = new AtomicLong();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("couchbase-cache-local"));
+    private int clients;
+
+    public LocalBackend(long maxSize) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxSize / SEGMENTS);
+        }
+    }
+
+    /**
+     * Adds a client sharing this store, which must be shut down like the
+     * others.
+     */
+    synchronized LocalBackend retain() {
+        clients++;
+        return this;
+    }
+
+    /**
+     * @return false once the last client has shut down
+     */
+    boolean isOpen() {
+        return !executor.isShutdown();
+    }
+
+    public <T> T get(String key, Transcoder<T> tc) {
+        Item item = segmentFor(key).get(key);
+        return item != null ? tc.decode(item.data) : null;
+    }
+
+    public <T> CASValue<T> gets(String key, Transcoder<T> tc) {
+        Item item = segmentFor(key).get(key);
+        return item != null ? new CASValue<T>(item.cas, tc.decode(item.data)) : null;
+    }
+
+    public <T> OperationFuture<CASValue<T>> asyncGets(String key, Transcoder<T> tc) {
+        CASValue<T> value = gets(key, tc);
+        return future(key, value, value != null ? SUCCESS : NOT_FOUND);
+    }
+
+    public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) {
+        Map<String, T> values = new HashMap<String, T>();
+        for (String key : keys) {
+            Item item = segmentFor(key).get(key);
+            if (item != null) {
+                values.put(key, tc.decode(item.data));
+            }
+        }
+        return values;
+    }
+
+    public <T> BulkFuture<Map<String, T>> asyncGetBulk(Collection<String> keys, Transcoder<T> tc) {
+        return new CompletedBulkFuture<T>(getBulk(keys, tc), executor);
+    }
+
+    public <T> OperationFuture<Boolean> add(String key, int exp, T o, Transcoder<T> tc) {
+        Item item = item(key, tc.encode(o), exp);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            if (segment.get(key) != null) {
+                return future(key, Boolean.FALSE, EXISTS);
+            }
+            segment.put(key, item);
+        }
+        return future(key, Boolean.TRUE, SUCCESS);
+    }
+
+    public <T> OperationFuture<Boolean> set(String key, int exp, T o, Transcoder<T> tc) {
+        Item item = item(key, tc.encode(o), exp);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, item);
+        }
+        return future(key, Boolean.TRUE, SUCCESS);
+    }
+
+    public <T> CASResponse cas(String key, long casId, int exp, T value, Transcoder<T> tc) {
+        Item item = item(key, tc.encode(value), exp);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Item current = segment.get(key);
+            if (current == null) {
+                return CASResponse.NOT_FOUND;
+            } else if (current.cas != casId) {
+                return CASResponse.EXISTS;
+            }
+            segment.put(key, item);
+        }
+        return CASResponse.OK;
+    }
+
+    public <T> OperationFuture<CASResponse> asyncCAS(String key, long casId, int exp, T value, Transcoder<T> tc) {
+        CASResponse rsp = cas(key, casId, exp, value, tc);
+        return future(key, rsp, rsp == CASResponse.OK ? SUCCESS : rsp == CASResponse.NOT_FOUND ? NOT_FOUND : EXISTS);
+    }
+
+    public OperationFuture<Boolean> delete(String key) {
+        Segment segment = segmentFor(key);
+        boolean deleted;
+        synchronized (segment) {
+            deleted = segment.get(key) != null;
+            if (deleted) {
+                segment.remove(key);
+            }
+        }
+        return future(key, deleted, deleted ? SUCCESS : NOT_FOUND);
+    }
+
+    public OperationFuture<Boolean> touch(String key, int exp) {
+        Segment segment = segmentFor(key);
+        boolean touched;
+        synchronized (segment) {
+            Item current = segment.get(key);
+            touched = current != null;
+            if (touched) {
+                segment.put(key, new Item(current.data, current.cas, expiresAt(exp), current.size));
+            }
+        }
+        return future(key, touched, touched ? SUCCESS : NOT_FOUND);
+    }
+
+    public long incr(String key, int by, long def, int exp) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Item current = segment.get(key);
+            if (current == null) {
+                segment.put(key, item(key, counter(def), exp));
+                return def;
+            }
+
+            long value;
+            try {
+                value = Long.parseLong(new String(current.data.getData(), ASCII)) + by;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            CachedData data = counter(value);
+            segment.put(key, new Item(data, casCounter.incrementAndGet(), current.expiresAt, size(key, data)));
+            return value;
+        }
+    }
+
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        synchronized (this) {
+            if (--clients > 0) {
+                return true;
+            }
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return number of items stored, including expired items not read since
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Item item(String key, CachedData data, int exp) {
+        return new Item(data, casCounter.incrementAndGet(), expiresAt(exp), size(key, data));
+    }
+
+    private static int size(String key, CachedData data) {
+        return 2 * key.length() + data.getData().length + ITEM_OVERHEAD;
+    }
+
+    private static CachedData counter(long value) {
+        return new CachedData(0, Long.toString(value).getBytes(ASCII), CachedData.MAX_SIZE);
+    }
+
+    /**
+     * @return when an item written now with {@code exp} expires, in
+     *         milliseconds since the epoch, or 0 for never
+     */
+    private static long expiresAt(int exp) {
+        if (exp == 0) {
+            return 0;
+        } else if (exp < 0) {
+            return 1;
+        } else if (exp <= MAX_RELATIVE_EXPIRY) {
+            return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(exp);
+        }
+        return TimeUnit.SECONDS.toMillis(exp);
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    private <T> OperationFuture<T> future(String key, T value, OperationStatus status) {
+        return new CompletedFuture<T>(key, value, status, executor);
+    }
+
+    private static final class Item {
+        final CachedData data;
+        final long cas;
+        final long expiresAt;
+        final int size;
+
+        Item(CachedData data, long cas, long expiresAt, int size) {
+            this.data = data;
+            this.cas = cas;
+            this.expiresAt = expiresAt;
+            this.size = size;
+        }
+    }
+
+    private static final class Segment {
+        private final LinkedHashMap<String, Item> items = new LinkedHashMap<String, Item>(16, 0.75f, true);
+        private final long maxSize;
+        private long size;
+
+        Segment(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @return the item, or null if there's none or it has expired
+         */
+        synchronized Item get(String key) {
+            Item item = items.get(key);
+            if (item != null && item.expiresAt != 0 && System.currentTimeMillis() >= item.expiresAt) {
+                remove(key);
+                return null;
+            }
+            return item;
+        }
+
+        synchronized void put(String key, Item item) {
+            Item previous = items.put(key, item);
+            size += item.size - (previous != null ? previous.size : 0);
+
+            Iterator<Item> eldest = items.values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                Item evicted = eldest.next();
+                if (evicted == item) {
+                    break;
+                }
+                eldest.remove();
+                size -= evicted.size;
+            }
+        }
+
+        synchronized void remove(String key) {
+            Item removed = items.remove(key);
+            if (removed != null) {
+                size -= removed.size;
+            }
+        }
+
+        synchronized void clear() {
+            items.clear();
+            size = 0;
+        }
+
+        synchronized int size() {
+            return items.size();
+        }
+    }
+}
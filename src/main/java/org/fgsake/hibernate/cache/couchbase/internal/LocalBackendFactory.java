@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.fgsake.hibernate.cache.couchbase.CacheBackend;
+import org.fgsake.hibernate.cache.couchbase.CacheBackendFactory;
+import org.jboss.logging.Logger;
+
+import java.util.Properties;
+
+/**
+ * Stores items in a {@link LocalBackend} shared by every client the region
+ * factory creates, instead of in Couchbase.
+ */
+public class LocalBackendFactory implements CacheBackendFactory {
+    private static final Logger log = Logger.getLogger(LocalBackendFactory.class);
+
+    /**
+     * Most bytes of items, keys included, kept before the least recently
+     * used are evicted. Default is 67108864.
+     */
+    public static final String CACHE_LOCAL_MAX_SIZE_PROPERTY = "hibernate.cache.couchbase.local.max_size";
+
+    private LocalBackend backend;
+
+    public synchronized CacheBackend create(Properties props) {
+        if (backend == null || !backend.isOpen()) {
+            long maxSize = Long.parseLong(props.getProperty(CACHE_LOCAL_MAX_SIZE_PROPERTY, "67108864"));
+            log.infof("Storing items in process, up to %d bytes", maxSize);
+            backend = new LocalBackend(maxSize);
+        }
+        return backend.retain();
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.internal.OperationFuture;
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-modify-write of {@link CacheLock}s with {@code gets} and {@code cas}.
+ * <p>
+ * A CAS that loses a race backs off exponentially, with full jitter, before
+ * retrying, and gives up after {@code maxRetries} retries. A lock that can't
+ * be taken is forced instead: the entry is overwritten with a lock nobody can
+ * release, which keeps it uncached until the lock times out. An unlock or
+ * update that can't be applied is dropped, and the lock it leaves behind
+ * times out the same way. Nothing is retried while the client's circuit
+ * breaker is rejecting writes.
+ * <p>
+ * Locks are stored with a TTL that runs a little past the lock timeout, so
+ * locks orphaned by a crashed node leave the bucket on their own.
+ * <p>
+ * With a {@link ReleaseBatcher}, unlocks and updates are queued and applied
+ * in batches: one pipelined wave of {@code gets} for the whole batch and one
+ * of {@code cas}. A release whose CAS lost a race goes back to the batcher,
+ * which sends it again in a later batch once its backoff has passed, so the
+ * batcher's thread never sleeps on one contended key. Each wave waits at most
+ * the client's operation timeout, and a key whose {@code gets} or {@code cas}
+ * fails or doesn't complete in time is dropped like one that ran out of
+ * retries.
+ */
+public class LockManager {
+    private static final Logger log = Logger.getLogger(LockManager.class);
+
+    private static final int LEASE_GRACE_SECONDS = 5;
+
+    private final ClientWrapper client;
+    private final int maxRetries;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final ReleaseBatcher batcher;
+    private final Random random = new Random();
+
+    private final AtomicLong contended = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong forced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public LockManager(ClientWrapper client, int maxRetries, long initialBackoff, long maxBackoff, TimeUnit unit) {
+        this(client, maxRetries, initialBackoff, maxBackoff, unit, null);
+    }
+
+    /**
+     * @param batcher queues unlocks and updates, or null to apply them right
+     *                away
+     */
+    public LockManager(ClientWrapper client, int maxRetries, long initialBackoff, long maxBackoff, TimeUnit unit, ReleaseBatcher batcher) {
+        this.client = client;
+        this.batcher = batcher;
+        this.maxRetries = maxRetries;
+        this.initialBackoffNanos = unit.toNanos(initialBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    }
+
+    /**
+     * @param timeout when the lock times out, in {@link Timestamper} units
+     */
+    public void lock(String keyStr, Object version, long timeout, int schemaVersion) {
+        int lease = lease(timeout);
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0 && !backoff(attempt)) {
+                break;
+            }
+
+            CASValue<Object> rsp = client.gets(keyStr);
+            if (rsp == null) {
+                if (add(keyStr, lease, new CacheLock(version, timeout, schemaVersion))) {
+                    return;
+                }
+                contended.incrementAndGet();
+                continue;
+            }
+
+            CacheItem item = (CacheItem) rsp.getValue();
+            if (item instanceof CacheLock) {
+                ((CacheLock) item).lock(timeout);
+            } else {
+                item = new CacheLock(version, timeout, schemaVersion);
+            }
+
+            CASResponse casRsp = client.cas(keyStr, rsp.getCas(), lease, item);
+            if (casRsp == null) {
+                return;
+            }
+            switch (casRsp) {
+            case OK:
+                return;
+            case NOT_FOUND:
+                if (add(keyStr, lease, new CacheLock(version, timeout, schemaVersion))) {
+                    return;
+                }
+                contended.incrementAndGet();
+                break;
+            default:
+                contended.incrementAndGet();
+                break;
+            }
+        }
+
+        log.debugf("Forcing lock on %s after %d retries", keyStr, maxRetries);
+        forced.incrementAndGet();
+        client.set(keyStr, lease, CacheLock.unreleasable(timeout, schemaVersion));
+    }
+
+    public void unlock(String keyStr, long txTimestamp) {
+        if (batcher != null && batcher.add(new Release(this, keyStr, txTimestamp))) {
+            return;
+        }
+
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0 && !backoff(attempt)) {
+                break;
+            }
+
+            CASValue<Object> rsp = client.gets(keyStr);
+            if (rsp == null || rsp.getValue() == null) {
+                return;
+            }
+
+            CacheItem item = (CacheItem) rsp.getValue();
+            if (!(item instanceof CacheLock)) {
+                return;
+            }
+            CacheLock lock = (CacheLock) item;
+            lock.unlock(txTimestamp);
+
+            CASResponse casRsp = client.cas(keyStr, rsp.getCas(), lease(lock.getTimeout()), lock);
+            if (casRsp == null) {
+                return;
+            }
+            switch (casRsp) {
+            case OK:
+            case NOT_FOUND:
+                return;
+            default:
+                contended.incrementAndGet();
+                break;
+            }
+        }
+
+        log.debugf("Dropping unlock of %s after %d retries", keyStr, maxRetries);
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Releases a lock taken for an update, replacing it with the new value if
+     * this was the last holder.
+     *
+     * @return whether the lock was found and released, or queued to be
+     */
+    public boolean update(String keyStr, Object version, Object value, int schemaVersion, int expiry) {
+        if (batcher != null && batcher.add(new Release(this, keyStr, version, value, schemaVersion, expiry))) {
+            return true;
+        }
+
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0 && !backoff(attempt)) {
+                break;
+            }
+
+            CASValue<Object> rsp = client.gets(keyStr);
+            if (rsp == null) {
+                return false;
+            }
+
+            CacheItem item = (CacheItem) rsp.getValue();
+            if (item instanceof CacheLock) {
+                CacheLock lock = (CacheLock) item;
+                long now = Timestamper.nextTimestamp();
+                CASResponse casRsp = lock.unlock(now)
+                        ? client.cas(keyStr, rsp.getCas(), expiry, new CacheData(now, version, value, schemaVersion))
+                        : client.cas(keyStr, rsp.getCas(), lease(lock.getTimeout()), lock);
+                if (casRsp == null) {
+                    return false;
+                }
+                switch (casRsp) {
+                case OK:
+                    return true;
+                case NOT_FOUND:
+                    return false;
+                default:
+                    contended.incrementAndGet();
+                    break;
+                }
+            } else {
+                return false;
+            }
+        }
+
+        log.debugf("Dropping update of %s after %d retries", keyStr, maxRetries);
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Applies queued unlocks and updates. Releases of the same key are
+     * applied one after another, in order; the rest go together.
+     *
+     * @return releases to send again once their {@link Release#notBefore}
+     *         has passed, in order: those whose CAS lost a race, each
+     *         followed by the releases of its key that were queued after it
+     */
+    List<Release> release(List<Release> releases) {
+        List<Release> deferred = new ArrayList<Release>();
+        Set<String> deferredKeys = new HashSet<String>();
+        List<Release> pending = releases;
+        while (!pending.isEmpty()) {
+            Set<String> keys = new HashSet<String>();
+            List<Release> round = new ArrayList<Release>(pending.size());
+            List<Release> later = new ArrayList<Release>();
+            for (Release release : pending) {
+                if (deferredKeys.contains(release.keyStr)) {
+                    deferred.add(release);
+                } else {
+                    (keys.add(release.keyStr) ? round : later).add(release);
+                }
+            }
+            for (Release release : releaseRound(round)) {
+                deferredKeys.add(release.keyStr);
+                deferred.add(release);
+            }
+            pending = later;
+        }
+        return deferred;
+    }
+
+    /**
+     * @return the releases whose CAS lost a race and that have retries left
+     */
+    private List<Release> releaseRound(List<Release> wave) {
+        List<Release> deferred = new ArrayList<Release>();
+        List<OperationFuture<CASValue<Object>>> reads = new ArrayList<OperationFuture<CASValue<Object>>>(wave.size());
+        for (Release release : wave) {
+            reads.add(client.asyncGets(release.keyStr));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(client.getOperationTimeout());
+
+        List<Release> writing = new ArrayList<Release>(wave.size());
+        List<OperationFuture<CASResponse>> writes = new ArrayList<OperationFuture<CASResponse>>(wave.size());
+        for (int i = 0; i < wave.size(); i++) {
+            Release release = wave.get(i);
+            CASValue<Object> rsp;
+            try {
+                rsp = await(reads.get(i), deadline, release);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.addAndGet(wave.size() - i);
+                return deferred;
+            }
+            if (rsp == null || !(rsp.getValue() instanceof CacheLock)) {
+                continue;
+            }
+
+            CacheLock lock = (CacheLock) rsp.getValue();
+            long now = release.update ? Timestamper.nextTimestamp() : release.txTimestamp;
+            writing.add(release);
+            if (lock.unlock(now) && release.update) {
+                writes.add(client.asyncCAS(release.keyStr, rsp.getCas(), release.expiry,
+                        new CacheData(now, release.version, release.value, release.schemaVersion)));
+            } else {
+                writes.add(client.asyncCAS(release.keyStr, rsp.getCas(), lease(lock.getTimeout()), lock));
+            }
+        }
+
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(client.getOperationTimeout());
+        for (int i = 0; i < writes.size(); i++) {
+            Release release = writing.get(i);
+            CASResponse casRsp;
+            try {
+                casRsp = await(writes.get(i), deadline, release);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.addAndGet(writes.size() - i);
+                return deferred;
+            }
+            if (casRsp != CASResponse.EXISTS) {
+                continue;
+            }
+            contended.incrementAndGet();
+            if (release.retries >= maxRetries) {
+                log.debugf("Dropping unlock or update of %s after %d retries", release.keyStr, maxRetries);
+                dropped.incrementAndGet();
+            } else {
+                retries.incrementAndGet();
+                release.retries++;
+                release.notBefore = System.nanoTime() + backoffNanos(release.retries);
+                deferred.add(release);
+            }
+        }
+        return deferred;
+    }
+
+    /**
+     * Waits for the result of a {@code gets} or {@code cas} of a release
+     * until {@code deadline}, as given by {@link System#nanoTime()}.
+     *
+     * @return the result, or null if the operation failed or timed out, in
+     *         which case the release has been dropped
+     */
+    private <T> T await(Future<T> future, long deadline, Release release) throws InterruptedException {
+        Throwable failure;
+        try {
+            return future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        } catch (TimeoutException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        log.debugf(failure, "Dropping unlock or update of %s", release.keyStr);
+        dropped.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return number of CAS or add attempts that lost a race
+     */
+    public long getContendedCount() {
+        return contended.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of locks forced after running out of retries
+     */
+    public long getForcedCount() {
+        return forced.get();
+    }
+
+    /**
+     * @return number of unlocks and updates dropped after running out of retries
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return true if the lock was added, or if the write was dropped by the
+     *         circuit breaker, in which case there's no point retrying
+     */
+    private boolean add(String keyStr, int lease, CacheLock lock) {
+        OperationFuture<Boolean> future = client.add(keyStr, lease, lock);
+        return future.getStatus().isSuccess() || ClientWrapper.isRejected(future);
+    }
+
+    /**
+     * An unlock, or an update if it has a value, waiting in a
+     * {@link ReleaseBatcher}.
+     */
+    static final class Release {
+        final LockManager locks;
+        final String keyStr;
+        final boolean update;
+        final long txTimestamp;
+        final Object version;
+        final Object value;
+        final int schemaVersion;
+        final int expiry;
+        // Only used by the batcher's thread
+        int retries;
+        /**
+         * {@link System#nanoTime()} before which this isn't to be sent again
+         */
+        long notBefore;
+
+        Release(LockManager locks, String keyStr, long txTimestamp) {
+            this.locks = locks;
+            this.keyStr = keyStr;
+            this.update = false;
+            this.txTimestamp = txTimestamp;
+            this.version = null;
+            this.value = null;
+            this.schemaVersion = 0;
+            this.expiry = 0;
+        }
+
+        Release(LockManager locks, String keyStr, Object version, Object value, int schemaVersion, int expiry) {
+            this.locks = locks;
+            this.keyStr = keyStr;
+            this.update = true;
+            this.txTimestamp = 0;
+            this.version = version;
+            this.value = value;
+            this.schemaVersion = schemaVersion;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * @return TTL in seconds for a lock that times out at {@code timeout}
+     */
+    private static int lease(long timeout) {
+        long remaining = timeout - Timestamper.nextTimestamp();
+        return (int) Math.max(TimeUnit.MICROSECONDS.toSeconds(remaining), 0) + LEASE_GRACE_SECONDS;
+    }
+
+    /**
+     * Sleeps for a random time up to the backoff for {@code attempt}.
+     *
+     * @return false if interrupted
+     */
+    private boolean backoff(int attempt) {
+        retries.incrementAndGet();
+        long nanos = backoffNanos(attempt);
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return a random time up to the backoff for {@code attempt}
+     */
+    private long backoffNanos(int attempt) {
+        long ceiling = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(attempt - 1, 30));
+        return (long) (random.nextDouble() * ceiling);
+    }
+}
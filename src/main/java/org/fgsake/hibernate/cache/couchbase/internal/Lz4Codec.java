@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Greedy LZ4 block compressor. Trades ratio for speed: a single hash probe
+ * per position, and the scan speeds up over incompressible input.
+ * <p>
+ * Output is the uncompressed length as a big-endian int followed by one LZ4
+ * block.
+ */
+final class Lz4Codec extends CompressionCodec {
+    private static final int HASH_BITS = 12;
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int SKIP_TRIGGER = 6;
+    private static final int MAX_EXPANSION = 255;
+
+    Lz4Codec() {
+        super("lz4", 0x100000);
+    }
+
+    public byte[] compress(byte[] src) {
+        int n = src.length;
+        byte[] dst = new byte[4 + n + n / 255 + 16];
+        dst[0] = (byte) (n >>> 24);
+        dst[1] = (byte) (n >>> 16);
+        dst[2] = (byte) (n >>> 8);
+        dst[3] = (byte) n;
+        int dp = 4;
+
+        int anchor = 0;
+        if (n > MF_LIMIT) {
+            int[] table = new int[1 << HASH_BITS];
+            int limit = n - MF_LIMIT;
+            int matchLimit = n - LAST_LITERALS;
+            int ip = 0;
+            int misses = 0;
+
+            while (ip < limit) {
+                int seq = readInt(src, ip);
+                int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+                int ref = table[h] - 1;
+                table[h] = ip + 1;
+
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                    ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                    continue;
+                }
+                misses = 0;
+
+                while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLen = MIN_MATCH;
+                while (ip + matchLen < matchLimit && src[ip + matchLen] == src[ref + matchLen]) {
+                    matchLen++;
+                }
+
+                int token = dp++;
+                dp = writeLiterals(dst, token, dp, src, anchor, ip - anchor);
+                int offset = ip - ref;
+                dst[dp++] = (byte) offset;
+                dst[dp++] = (byte) (offset >>> 8);
+                int extra = matchLen - MIN_MATCH;
+                if (extra >= 15) {
+                    dst[token] |= 0x0f;
+                    dp = writeLength(dst, dp, extra - 15);
+                } else {
+                    dst[token] |= (byte) extra;
+                }
+
+                ip += matchLen;
+                anchor = ip;
+            }
+        }
+
+        int token = dp++;
+        dp = writeLiterals(dst, token, dp, src, anchor, n - anchor);
+        return Arrays.copyOf(dst, dp);
+    }
+
+    public byte[] decompress(byte[] src) throws IOException {
+        if (src.length < 4) {
+            throw new IOException("Corrupt LZ4 block: truncated length");
+        }
+        int n = ((src[0] & 0xff) << 24) | ((src[1] & 0xff) << 16) | ((src[2] & 0xff) << 8) | (src[3] & 0xff);
+        // Each block byte expands to at most MAX_EXPANSION bytes, so check the
+        // length before trusting it with an allocation
+        if (n < 0 || n > (long) (src.length - 4) * MAX_EXPANSION) {
+            throw new IOException("Corrupt LZ4 block: bad length " + n);
+        }
+        byte[] dst = new byte[n];
+        int sp = 4;
+        int dp = 0;
+
+        try {
+            while (true) {
+                int token = src[sp++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, sp, dst, dp, literals);
+                sp += literals;
+                dp += literals;
+                if (dp == n) {
+                    break;
+                }
+
+                int offset = (src[sp++] & 0xff) | ((src[sp++] & 0xff) << 8);
+                int matchLen = token & 0x0f;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+
+                int ref = dp - offset;
+                if (offset == 0 || ref < 0) {
+                    throw new IOException("Corrupt LZ4 block: bad offset " + offset);
+                }
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, dp, matchLen);
+                } else {
+                    for (int i = 0; i < matchLen; i++) {
+                        dst[dp + i] = dst[ref + i];
+                    }
+                }
+                dp += matchLen;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZ4 block", e);
+        }
+
+        if (sp != src.length) {
+            throw new IOException("Corrupt LZ4 block: trailing bytes");
+        }
+        return dst;
+    }
+
+    private static int writeLiterals(byte[] dst, int token, int dp, byte[] src, int start, int length) {
+        if (length >= 15) {
+            dst[token] = (byte) 0xf0;
+            dp = writeLength(dst, dp, length - 15);
+        } else {
+            dst[token] = (byte) (length << 4);
+        }
+        System.arraycopy(src, start, dst, dp, length);
+        return dp + length;
+    }
+
+    private static int writeLength(byte[] dst, int dp, int length) {
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+    }
+}
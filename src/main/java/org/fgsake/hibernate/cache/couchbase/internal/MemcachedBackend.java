@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.transcoders.Transcoder;
+import org.fgsake.hibernate.cache.couchbase.CacheBackend;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores items in Couchbase, or any memcached server, through a
+ * {@link MemcachedClient}.
+ */
+public final class MemcachedBackend implements CacheBackend {
+    private final MemcachedClient client;
+
+    public MemcachedBackend(MemcachedClient client) {
+        this.client = client;
+    }
+
+    public <T> T get(String key, Transcoder<T> tc) {
+        return client.get(key, tc);
+    }
+
+    public <T> CASValue<T> gets(String key, Transcoder<T> tc) {
+        return client.gets(key, tc);
+    }
+
+    public <T> OperationFuture<CASValue<T>> asyncGets(String key, Transcoder<T> tc) {
+        return client.asyncGets(key, tc);
+    }
+
+    public <T> Map<String, T> getBulk(Collection<String> keys, Transcoder<T> tc) {
+        return client.getBulk(keys, tc);
+    }
+
+    public <T> BulkFuture<Map<String, T>> asyncGetBulk(Collection<String> keys, Transcoder<T> tc) {
+        return client.asyncGetBulk(keys, tc);
+    }
+
+    public <T> OperationFuture<Boolean> add(String key, int exp, T o, Transcoder<T> tc) {
+        return client.add(key, exp, o, tc);
+    }
+
+    public <T> OperationFuture<Boolean> set(String key, int exp, T o, Transcoder<T> tc) {
+        return client.set(key, exp, o, tc);
+    }
+
+    public <T> CASResponse cas(String key, long casId, int exp, T value, Transcoder<T> tc) {
+        return client.cas(key, casId, exp, value, tc);
+    }
+
+    public <T> OperationFuture<CASResponse> asyncCAS(String key, long casId, int exp, T value, Transcoder<T> tc) {
+        return client.asyncCAS(key, casId, exp, value, tc);
+    }
+
+    public OperationFuture<Boolean> delete(String key) {
+        return client.delete(key);
+    }
+
+    public OperationFuture<Boolean> touch(String key, int exp) {
+        return client.touch(key, exp);
+    }
+
+    public long incr(String key, int by, long def, int exp) {
+        return client.incr(key, by, def, exp);
+    }
+
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        return client.shutdown(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return "MemcachedBackend{" + client + "}";
+    }
+}
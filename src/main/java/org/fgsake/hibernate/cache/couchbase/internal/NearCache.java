@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-process cache of {@link CacheData} read from Couchbase, keyed by
+ * the full key string. Entries are evicted in LRU order once there are too
+ * many of them or they take too many bytes, and expire after a fixed TTL,
+ * which bounds how stale a node can be with respect to writes made by other
+ * nodes.
+ * <p>
+ * Each entry is charged the size of the item it was decoded from plus a
+ * fixed overhead, which tracks the size of the decoded value closely enough
+ * for a budget.
+ * <p>
+ * Split into independently locked segments so readers of different keys
+ * don't contend.
+ */
+public final class NearCache {
+    private static final int MAX_SEGMENTS = 16;
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Segment[] segments;
+    private final long ttlNanos;
+
+    public NearCache(int maxEntries, long ttl, TimeUnit unit) {
+        this(maxEntries, 0, ttl, unit);
+    }
+
+    /**
+     * @param maxBytes most bytes charged to the entries, or 0 for no limit
+     *                 other than {@code maxEntries}
+     */
+    public NearCache(int maxEntries, long maxBytes, long ttl, TimeUnit unit) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxEntries));
+        int perSegment = (maxEntries + segmentCount - 1) / segmentCount;
+        long bytesPerSegment = maxBytes > 0 ? Math.max(maxBytes / segmentCount, 1) : Long.MAX_VALUE;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(perSegment, bytesPerSegment);
+        }
+        ttlNanos = unit.toNanos(ttl);
+    }
+
+    public CacheData get(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry == null) {
+                return null;
+            } else if (System.nanoTime() - entry.expiresAt >= 0) {
+                segment.remove(key);
+                return null;
+            }
+            return entry.data;
+        }
+    }
+
+    public void put(String key, CacheData data) {
+        Entry entry = new Entry(data, System.nanoTime() + ttlNanos);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, entry);
+            segment.trim();
+        }
+    }
+
+    public void remove(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * @return up to {@code max} keys, roughly from most to least recently
+     *         used: each segment is in order, and segments are interleaved
+     */
+    public List<String> keys(int max) {
+        List<List<String>> bySegment = new ArrayList<List<String>>(segments.length);
+        for (Segment segment : segments) {
+            List<String> keys;
+            synchronized (segment) {
+                keys = new ArrayList<String>(segment.keySet());
+            }
+            Collections.reverse(keys);
+            bySegment.add(keys);
+        }
+
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; keys.size() < max; i++) {
+            boolean more = false;
+            for (List<String> segmentKeys : bySegment) {
+                if (i < segmentKeys.size() && keys.size() < max) {
+                    keys.add(segmentKeys.get(i));
+                    more = true;
+                }
+            }
+            if (!more) {
+                break;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return bytes charged to the entries
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static final class Entry {
+        final CacheData data;
+        final long expiresAt;
+        final int charge;
+
+        Entry(CacheData data, long expiresAt) {
+            this.data = data;
+            this.expiresAt = expiresAt;
+            this.charge = data.getEncodedSize() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Keeps count of the bytes charged to its entries. Only used while
+     * synchronized on itself.
+     */
+    private static final class Segment extends LinkedHashMap<String, NearCache.Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+        private final long maxBytes;
+        long bytes;
+
+        Segment(int maxEntries, long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public NearCache.Entry put(String key, NearCache.Entry entry) {
+            NearCache.Entry previous = super.put(key, entry);
+            bytes += entry.charge - (previous != null ? previous.charge : 0);
+            return previous;
+        }
+
+        @Override
+        public NearCache.Entry remove(Object key) {
+            NearCache.Entry previous = super.remove(key);
+            if (previous != null) {
+                bytes -= previous.charge;
+            }
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            bytes = 0;
+        }
+
+        /**
+         * Evicts the least recently used entries until the rest fit the
+         * byte budget. The last entry is kept even if it alone doesn't.
+         */
+        void trim() {
+            Iterator<NearCache.Entry> it = values().iterator();
+            while (bytes > maxBytes && size() > 1) {
+                bytes -= it.next().charge;
+                it.remove();
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NearCache.Entry> eldest) {
+            if (size() > maxEntries) {
+                bytes -= eldest.getValue().charge;
+                return true;
+            }
+            return false;
+        }
+    }
+}
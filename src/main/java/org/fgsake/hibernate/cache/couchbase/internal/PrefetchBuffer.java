@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entries of an entity region read ahead for the current thread, which its
+ * next gets take instead of going to Couchbase. Each entry is taken at most
+ * once and only shortly after it was read, so it's no staler than the read
+ * Hibernate would have made itself a moment later.
+ * <p>
+ * Expired entries are dropped whenever the thread puts or takes, and the
+ * thread's map is released as soon as it's empty, so a pooled thread
+ * doesn't keep values reachable for longer than its next use of the buffer.
+ */
+public final class PrefetchBuffer {
+    /**
+     * Taken for a key that was read ahead and isn't in Couchbase.
+     */
+    public static final Object NOT_FOUND = new Object();
+
+    private static final int MAX_ENTRIES = 4096;
+
+    private final long ttlNanos;
+    private final ThreadLocal<Map<String, PrefetchBuffer.Entry>> entries = new ThreadLocal<Map<String, PrefetchBuffer.Entry>>();
+    // Spares threads of regions nothing is ever prefetched into the thread local lookup
+    private volatile boolean used;
+
+    public PrefetchBuffer(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Holds the result of reading {@code keys} for this thread, replacing
+     * what it held for any of them.
+     *
+     * @param values the values found, by key
+     */
+    public void put(Collection<String> keys, Map<String, Object> values) {
+        long now = System.nanoTime();
+        Map<String, PrefetchBuffer.Entry> held = entries.get();
+        if (held == null) {
+            held = new LinkedHashMap<String, PrefetchBuffer.Entry>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PrefetchBuffer.Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+            entries.set(held);
+            used = true;
+        } else {
+            purge(held, now);
+        }
+
+        long expiresAt = now + ttlNanos;
+        for (String key : keys) {
+            Object value = values.get(key);
+            // Reinserted so the newest entries are the last to go
+            held.remove(key);
+            held.put(key, new Entry(value != null ? value : NOT_FOUND, expiresAt));
+        }
+    }
+
+    /**
+     * Removes and returns what this thread holds for {@code key}.
+     *
+     * @return the value read ahead, {@link #NOT_FOUND}, or null if nothing
+     *         was read ahead or it's too old
+     */
+    public Object take(String key) {
+        if (!used) {
+            return null;
+        }
+        Map<String, PrefetchBuffer.Entry> held = entries.get();
+        if (held == null) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        PrefetchBuffer.Entry entry = held.remove(key);
+        purge(held, now);
+        if (held.isEmpty()) {
+            entries.remove();
+        }
+        if (entry == null || now - entry.expiresAt >= 0) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Forgets what this thread holds for {@code key}, e.g. because it's
+     * about to write it.
+     */
+    public void remove(String key) {
+        take(key);
+    }
+
+    /**
+     * Drops expired entries. Entries are kept in the order they were put,
+     * which is also the order they expire in.
+     */
+    private static void purge(Map<String, PrefetchBuffer.Entry> held, long now) {
+        Iterator<PrefetchBuffer.Entry> it = held.values().iterator();
+        while (it.hasNext() && now - it.next().expiresAt >= 0) {
+            it.remove();
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.hibernate.cache.spi.entry.CollectionCacheEntry;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads ahead, in one multi-get, the entities that a collection or query
+ * results hit refers to. Hibernate resolves each of them through the entity
+ * region right after the hit, and then finds them in the entity region's
+ * {@link PrefetchBuffer} instead of making a round trip for each.
+ * <p>
+ * Ids are taken from the cached state as Hibernate disassembled it: the
+ * elements of a {@link CollectionCacheEntry}, and the values in each row of
+ * a query result. Anything that isn't an id of the entity just misses.
+ */
+public final class Prefetcher {
+    private final String entityName;
+    private final String regionName;
+    private final Map<String, CouchbaseEntityRegion> entityRegions;
+    private final int maxKeys;
+
+    /**
+     * @param entityName    root entity name the entity region's keys start
+     *                      with
+     * @param regionName    name of the entity region to read from
+     * @param entityRegions the entity regions built so far, by name; the
+     *                      entity region is looked up on each hit, since it
+     *                      may be built after this one
+     * @param maxKeys       most entities read ahead for one hit
+     */
+    public Prefetcher(String entityName, String regionName, Map<String, CouchbaseEntityRegion> entityRegions, int maxKeys) {
+        this.entityName = entityName;
+        this.regionName = regionName;
+        this.entityRegions = entityRegions;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Reads ahead the entities referred to by {@code value}, a collection
+     * cache entry or a cached query result.
+     */
+    public void prefetch(Object value) {
+        CouchbaseEntityRegion region = entityRegions.get(regionName);
+        if (region == null) {
+            return;
+        }
+
+        Set<String> keys = new LinkedHashSet<String>();
+        if (value instanceof CollectionCacheEntry) {
+            addIds(keys, ((CollectionCacheEntry) value).getState());
+        } else if (value instanceof List) {
+            List<?> rows = (List<?>) value;
+            // The first element is the time the result was cached
+            for (int i = 1; i < rows.size(); i++) {
+                Object row = rows.get(i);
+                if (row instanceof Object[]) {
+                    addIds(keys, (Object[]) row);
+                } else {
+                    addId(keys, row);
+                }
+            }
+        }
+
+        if (!keys.isEmpty()) {
+            region.prefetchForThread(keys);
+        }
+    }
+
+    private void addIds(Set<String> keys, Object[] ids) {
+        for (Object id : ids) {
+            addId(keys, id);
+        }
+    }
+
+    private void addId(Set<String> keys, Object id) {
+        // Keyed the way CacheKey.toString() keys an entity
+        if (id != null && keys.size() < maxKeys) {
+            keys.add(entityName + '#' + id);
+        }
+    }
+}
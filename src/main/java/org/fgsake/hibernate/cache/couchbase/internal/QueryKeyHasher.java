@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.hibernate.cache.spi.FilterKey;
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.internal.util.SerializationHelper;
+import org.hibernate.transform.CacheableResultTransformer;
+import org.hibernate.type.Type;
+import org.jboss.logging.Logger;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hashes a {@link QueryKey} field by field. {@code QueryKey} has no accessors
+ * for most of what makes it unique and its {@code toString} leaves out the
+ * result transformer, so the fields are read reflectively. If they can't be
+ * (a Hibernate version with a different {@code QueryKey}), the whole key is
+ * Java-serialized and hashed instead.
+ * <p>
+ * Unordered parts of the key (named parameters, filters) are hashed in a
+ * canonical order so equal keys always hash the same.
+ */
+final class QueryKeyHasher {
+    private static final Logger log = Logger.getLogger(QueryKeyHasher.class);
+
+    private static final Field SQL_QUERY_STRING;
+    private static final Field POSITIONAL_PARAMETER_TYPES;
+    private static final Field POSITIONAL_PARAMETER_VALUES;
+    private static final Field NAMED_PARAMETERS;
+    private static final Field FIRST_ROW;
+    private static final Field MAX_ROWS;
+    private static final Field TENANT_IDENTIFIER;
+    private static final Field FILTER_KEYS;
+    private static final Field CUSTOM_TRANSFORMER;
+    private static final Field FILTER_NAME;
+    private static final Field FILTER_PARAMETERS;
+    private static final Field TUPLE_LENGTH;
+    private static final Field TUPLE_SUBSET_LENGTH;
+    private static final Field INCLUDE_IN_TUPLE;
+    private static final Field INCLUDE_IN_TRANSFORM_INDEX;
+    private static final boolean REFLECTIVE;
+
+    static {
+        Field[] fields = fields(QueryKey.class, FilterKey.class, CacheableResultTransformer.class);
+        REFLECTIVE = fields != null;
+        if (fields == null) {
+            fields = new Field[15];
+        }
+        SQL_QUERY_STRING = fields[0];
+        POSITIONAL_PARAMETER_TYPES = fields[1];
+        POSITIONAL_PARAMETER_VALUES = fields[2];
+        NAMED_PARAMETERS = fields[3];
+        FIRST_ROW = fields[4];
+        MAX_ROWS = fields[5];
+        TENANT_IDENTIFIER = fields[6];
+        FILTER_KEYS = fields[7];
+        CUSTOM_TRANSFORMER = fields[8];
+        FILTER_NAME = fields[9];
+        FILTER_PARAMETERS = fields[10];
+        TUPLE_LENGTH = fields[11];
+        TUPLE_SUBSET_LENGTH = fields[12];
+        INCLUDE_IN_TUPLE = fields[13];
+        INCLUDE_IN_TRANSFORM_INDEX = fields[14];
+    }
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte SHORT = 4;
+    private static final byte BYTE = 5;
+    private static final byte BOOLEAN = 6;
+    private static final byte CHARACTER = 7;
+    private static final byte DATE = 8;
+    private static final byte ENUM = 9;
+    private static final byte SERIALIZED = 10;
+
+    private QueryKeyHasher() {}
+
+    static String hash(QueryKey key) {
+        return REFLECTIVE ? reflectiveHash(key) : serializedHash(key);
+    }
+
+    static String serializedHash(QueryKey key) {
+        return new KeyHasher().putBytes(SerializationHelper.serialize(key)).toHex();
+    }
+
+    private static String reflectiveHash(QueryKey key) {
+        try {
+            KeyHasher h = new KeyHasher();
+            h.putString((String) SQL_QUERY_STRING.get(key));
+
+            Type[] types = (Type[]) POSITIONAL_PARAMETER_TYPES.get(key);
+            Object[] values = (Object[]) POSITIONAL_PARAMETER_VALUES.get(key);
+            int n = types == null ? 0 : types.length;
+            h.putInt(n);
+            for (int i = 0; i < n; i++) {
+                h.putString(types[i].getName());
+                putValue(h, values[i]);
+            }
+
+            putTypedValues(h, (Map<?, ?>) NAMED_PARAMETERS.get(key));
+            putValue(h, FIRST_ROW.get(key));
+            putValue(h, MAX_ROWS.get(key));
+            putValue(h, TENANT_IDENTIFIER.get(key));
+
+            Collection<?> filterKeys = (Collection<?>) FILTER_KEYS.get(key);
+            if (filterKeys == null) {
+                h.putInt(-1);
+            } else {
+                TreeMap<String, Map<?, ?>> filters = new TreeMap<String, Map<?, ?>>();
+                for (Object filterKey : filterKeys) {
+                    filters.put((String) FILTER_NAME.get(filterKey), (Map<?, ?>) FILTER_PARAMETERS.get(filterKey));
+                }
+                h.putInt(filters.size());
+                for (Map.Entry<String, Map<?, ?>> filter : filters.entrySet()) {
+                    h.putString(filter.getKey());
+                    putTypedValues(h, filter.getValue());
+                }
+            }
+
+            Object transformer = CUSTOM_TRANSFORMER.get(key);
+            h.putBoolean(transformer != null);
+            if (transformer != null) {
+                h.putInt(TUPLE_LENGTH.getInt(transformer));
+                h.putInt(TUPLE_SUBSET_LENGTH.getInt(transformer));
+                boolean[] includeInTuple = (boolean[]) INCLUDE_IN_TUPLE.get(transformer);
+                h.putInt(includeInTuple == null ? -1 : includeInTuple.length);
+                if (includeInTuple != null) {
+                    for (boolean b : includeInTuple) {
+                        h.putBoolean(b);
+                    }
+                }
+                int[] includeInTransformIndex = (int[]) INCLUDE_IN_TRANSFORM_INDEX.get(transformer);
+                h.putInt(includeInTransformIndex == null ? -1 : includeInTransformIndex.length);
+                if (includeInTransformIndex != null) {
+                    for (int i : includeInTransformIndex) {
+                        h.putInt(i);
+                    }
+                }
+            }
+
+            return h.toHex();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void putTypedValues(KeyHasher h, Map<?, ?> params) {
+        if (params == null) {
+            h.putInt(-1);
+            return;
+        }
+
+        TreeMap<String, TypedValue> sorted = new TreeMap<String, TypedValue>();
+        for (Map.Entry<?, ?> param : params.entrySet()) {
+            sorted.put((String) param.getKey(), (TypedValue) param.getValue());
+        }
+        h.putInt(sorted.size());
+        for (Map.Entry<String, TypedValue> param : sorted.entrySet()) {
+            h.putString(param.getKey());
+            TypedValue typedValue = param.getValue();
+            h.putString(typedValue.getType().getName());
+            putValue(h, typedValue.getValue());
+        }
+    }
+
+    private static void putValue(KeyHasher h, Object v) {
+        if (v == null) {
+            h.putByte(NULL);
+            return;
+        }
+
+        Class<?> c = v.getClass();
+        if (c == String.class) {
+            h.putByte(STRING).putString((String) v);
+        } else if (c == Integer.class) {
+            h.putByte(INTEGER).putInt((Integer) v);
+        } else if (c == Long.class) {
+            h.putByte(LONG).putLong((Long) v);
+        } else if (c == Short.class) {
+            h.putByte(SHORT).putInt((Short) v);
+        } else if (c == Byte.class) {
+            h.putByte(BYTE).putByte((Byte) v);
+        } else if (c == Boolean.class) {
+            h.putByte(BOOLEAN).putBoolean((Boolean) v);
+        } else if (c == Character.class) {
+            h.putByte(CHARACTER).putInt((Character) v);
+        } else if (v instanceof Date) {
+            // Subclasses (Timestamp, sql.Date) differ in precision and equality, so include the class
+            h.putByte(DATE).putString(c.getName()).putLong(((Date) v).getTime());
+            if (v instanceof java.sql.Timestamp) {
+                h.putInt(((java.sql.Timestamp) v).getNanos());
+            }
+        } else if (v instanceof Enum) {
+            h.putByte(ENUM).putString(((Enum<?>) v).getDeclaringClass().getName()).putString(((Enum<?>) v).name());
+        } else {
+            h.putByte(SERIALIZED).putBytes(SerializationHelper.serialize((Serializable) v));
+        }
+    }
+
+    /**
+     * Looks up the fields {@link #hash} reads, or returns null if any of them
+     * is missing from the given classes.
+     */
+    static Field[] fields(Class<?> queryKey, Class<?> filterKey, Class<?> transformer) {
+        try {
+            return new Field[] {
+                    field(queryKey, "sqlQueryString"),
+                    field(queryKey, "positionalParameterTypes"),
+                    field(queryKey, "positionalParameterValues"),
+                    field(queryKey, "namedParameters"),
+                    field(queryKey, "firstRow"),
+                    field(queryKey, "maxRows"),
+                    field(queryKey, "tenantIdentifier"),
+                    field(queryKey, "filterKeys"),
+                    field(queryKey, "customTransformer"),
+                    field(filterKey, "filterName"),
+                    field(filterKey, "filterParameters"),
+                    field(transformer, "tupleLength"),
+                    field(transformer, "tupleSubsetLength"),
+                    field(transformer, "includeInTuple"),
+                    field(transformer, "includeInTransformIndex")
+            };
+        } catch (Exception e) {
+            log.infof("Can't read QueryKey fields, falling back to serialization: %s", e);
+            return null;
+        }
+    }
+
+    private static Field field(Class<?> c, String name) throws NoSuchFieldException {
+        Field f = c.getDeclaredField(name);
+        f.setAccessible(true);
+        return f;
+    }
+}
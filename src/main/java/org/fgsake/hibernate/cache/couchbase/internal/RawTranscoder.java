@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Passes items through untouched, for code that decodes them itself.
+ */
+public final class RawTranscoder implements Transcoder<CachedData> {
+    public static final RawTranscoder INSTANCE = new RawTranscoder();
+
+    private RawTranscoder() {}
+
+    public boolean asyncDecode(CachedData d) {
+        return false;
+    }
+
+    public CachedData encode(CachedData o) {
+        return o;
+    }
+
+    public CachedData decode(CachedData d) {
+        return d;
+    }
+
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+}
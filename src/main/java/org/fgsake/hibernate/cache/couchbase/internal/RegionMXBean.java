@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.Map;
+
+/**
+ * Management interface of a region, registered as
+ * <code>org.fgsake.hibernate.cache.couchbase:type=Region,name=&lt;region name&gt;</code>.
+ * Latencies are in microseconds.
+ */
+public interface RegionMXBean {
+    String getRegionName();
+
+    long getHitCount();
+
+    long getNearCacheHitCount();
+
+    long getCoalescedHitCount();
+
+    long getReplicaHitCount();
+
+    long getPrefetchHitCount();
+
+    long getMissCount();
+
+    long getEarlyRefreshCount();
+
+    long getPutCount();
+
+    long getLockCount();
+
+    long getCasConflictCount();
+
+    long getLockRetryCount();
+
+    long getForcedLockCount();
+
+    long getDroppedUnlockCount();
+
+    long getEvictCount();
+
+    long getTimeoutCount();
+
+    long getQueueFullCount();
+
+    /**
+     * @return the circuit breaker's state, or null if it's disabled
+     */
+    String getCircuitBreakerState();
+
+    long getCircuitBreakerTripCount();
+
+    long getCircuitBreakerRejectedCount();
+
+    long getCompressedCount();
+
+    long getCompressionBytesSaved();
+
+    long getChunkedWriteCount();
+
+    long getChunkedReadCount();
+
+    long getIncompleteChunkedReadCount();
+
+    /**
+     * @return latencies since startup, by operation
+     */
+    Map<String, LatencySnapshot> getLatencies();
+
+    /**
+     * @return latencies over the last completed interval of a minute or
+     *         more, by operation
+     */
+    Map<String, LatencySnapshot> getRecentLatencies();
+
+    /**
+     * @return the hot keys, hottest first, with their estimated reads per
+     *         second, or an empty map if hot key detection is disabled
+     */
+    Map<String, Long> getHotKeys();
+
+    /**
+     * @return estimated number of the region's entries, across all nodes
+     */
+    long getElementCountEstimate();
+
+    /**
+     * @return estimated bytes taken by the region's entries, across all
+     *         nodes
+     */
+    long getSizeEstimate();
+}
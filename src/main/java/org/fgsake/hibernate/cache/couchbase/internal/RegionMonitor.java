@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.Collections;
+import java.util.Map;
+
+public class RegionMonitor implements RegionMXBean {
+    private final CouchbaseRegion region;
+    private final LockManager locks;
+    private final HotKeys hotKeys;
+
+    public RegionMonitor(CouchbaseRegion region) {
+        this.region = region;
+        this.locks = region instanceof CouchbaseTransactionalDataRegion
+                ? ((CouchbaseTransactionalDataRegion) region).getLockManager()
+                : null;
+        this.hotKeys = region instanceof CouchbaseTransactionalDataRegion
+                ? ((CouchbaseTransactionalDataRegion) region).getHotKeys()
+                : null;
+    }
+
+    public String getRegionName() {
+        return region.getName();
+    }
+
+    public long getHitCount() {
+        return region.getStats().getHitCount();
+    }
+
+    public long getNearCacheHitCount() {
+        return region.getStats().getNearCacheHitCount();
+    }
+
+    public long getCoalescedHitCount() {
+        return region.getStats().getCoalescedHitCount();
+    }
+
+    public long getReplicaHitCount() {
+        return region.getStats().getReplicaHitCount();
+    }
+
+    public long getPrefetchHitCount() {
+        return region.getStats().getPrefetchHitCount();
+    }
+
+    public long getMissCount() {
+        return region.getStats().getMissCount();
+    }
+
+    public long getEarlyRefreshCount() {
+        return region.getStats().getEarlyRefreshCount();
+    }
+
+    public long getPutCount() {
+        return region.getStats().getPutCount();
+    }
+
+    public long getLockCount() {
+        return region.getStats().getLockCount();
+    }
+
+    public long getCasConflictCount() {
+        return locks != null ? locks.getContendedCount() : 0;
+    }
+
+    public long getLockRetryCount() {
+        return locks != null ? locks.getRetryCount() : 0;
+    }
+
+    public long getForcedLockCount() {
+        return locks != null ? locks.getForcedCount() : 0;
+    }
+
+    public long getDroppedUnlockCount() {
+        return locks != null ? locks.getDroppedCount() : 0;
+    }
+
+    public long getEvictCount() {
+        return region.getStats().getEvictCount();
+    }
+
+    public long getTimeoutCount() {
+        return region.getClientStats().getTimeoutCount();
+    }
+
+    public long getQueueFullCount() {
+        return region.getClientStats().getQueueFullCount();
+    }
+
+    public String getCircuitBreakerState() {
+        CircuitBreaker breaker = region.getCircuitBreaker();
+        return breaker != null ? breaker.getState().name() : null;
+    }
+
+    public long getCircuitBreakerTripCount() {
+        CircuitBreaker breaker = region.getCircuitBreaker();
+        return breaker != null ? breaker.getTripCount() : 0;
+    }
+
+    public long getCircuitBreakerRejectedCount() {
+        CircuitBreaker breaker = region.getCircuitBreaker();
+        return breaker != null ? breaker.getRejectedCount() : 0;
+    }
+
+    public long getCompressedCount() {
+        return region.getCompressionStats().getCompressedCount();
+    }
+
+    public long getCompressionBytesSaved() {
+        return region.getCompressionStats().getBytesSaved();
+    }
+
+    public long getChunkedWriteCount() {
+        return region.getClientStats().getChunkedWriteCount();
+    }
+
+    public long getChunkedReadCount() {
+        return region.getClientStats().getChunkedReadCount();
+    }
+
+    public long getIncompleteChunkedReadCount() {
+        return region.getClientStats().getIncompleteChunkedReadCount();
+    }
+
+    public Map<String, LatencySnapshot> getLatencies() {
+        return region.getClientStats().getLatencies();
+    }
+
+    public Map<String, LatencySnapshot> getRecentLatencies() {
+        return region.getClientStats().getRecentLatencies();
+    }
+
+    public Map<String, Long> getHotKeys() {
+        return hotKeys != null ? hotKeys.getTopKeys() : Collections.<String, Long>emptyMap();
+    }
+
+    public long getElementCountEstimate() {
+        return region.getElementCountInMemory();
+    }
+
+    public long getSizeEstimate() {
+        return region.getSizeInMemory();
+    }
+}
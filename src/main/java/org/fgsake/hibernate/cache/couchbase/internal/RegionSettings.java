@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+/**
+ * Settings of one region, after applying any region-level overrides.
+ */
+public final class RegionSettings {
+    private final int expiry;
+    private final int lockTimeout;
+    private final boolean ignoreNonstrict;
+    private final int schemaVersion;
+    private final boolean optimisticPuts;
+    private final double expiryJitter;
+    private final double earlyRefresh;
+
+    /**
+     * @param expiry         entry TTL in seconds, 0 for none
+     * @param lockTimeout    how long a lock is held at most, in
+     *                       {@link Timestamper} units
+     * @param optimisticPuts whether {@code putFromLoad} tries an {@code add}
+     *                       first, without waiting for the result, instead of
+     *                       reading the current item
+     * @param expiryJitter   share of {@code expiry}, between 0 and 1, by which
+     *                       each write's TTL is randomly shortened
+     * @param earlyRefresh   share of {@code expiry}, between 0 and 1, before
+     *                       the earliest an entry can expire during which
+     *                       reads may miss to reload it early
+     */
+    public RegionSettings(int expiry, int lockTimeout, boolean ignoreNonstrict, int schemaVersion, boolean optimisticPuts, double expiryJitter, double earlyRefresh) {
+        this.expiry = expiry;
+        this.lockTimeout = lockTimeout;
+        this.ignoreNonstrict = ignoreNonstrict;
+        this.schemaVersion = schemaVersion;
+        this.optimisticPuts = optimisticPuts;
+        this.expiryJitter = expiryJitter;
+        this.earlyRefresh = earlyRefresh;
+    }
+
+    public int getExpiry() {
+        return expiry;
+    }
+
+    public int getLockTimeout() {
+        return lockTimeout;
+    }
+
+    public boolean isIgnoreNonstrict() {
+        return ignoreNonstrict;
+    }
+
+    public int getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    public boolean isOptimisticPuts() {
+        return optimisticPuts;
+    }
+
+    public double getExpiryJitter() {
+        return expiryJitter;
+    }
+
+    public double getEarlyRefresh() {
+        return earlyRefresh;
+    }
+
+    /**
+     * @return these settings with a different expiry
+     */
+    public RegionSettings withExpiry(int expiry) {
+        return new RegionSettings(expiry, lockTimeout, ignoreNonstrict, schemaVersion, optimisticPuts, expiryJitter, earlyRefresh);
+    }
+
+    @Override
+    public String toString() {
+        return "RegionSettings{expiry=" + expiry + ", lockTimeout=" + lockTimeout + ", ignoreNonstrict=" + ignoreNonstrict
+                + ", schemaVersion=" + schemaVersion + ", optimisticPuts=" + optimisticPuts + ", expiryJitter=" + expiryJitter
+                + ", earlyRefresh=" + earlyRefresh + "}";
+    }
+}
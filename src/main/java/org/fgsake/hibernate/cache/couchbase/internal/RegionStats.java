@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+/**
+ * Access counts for one region.
+ */
+public final class RegionStats {
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter nearCacheHits = new StripedCounter();
+    private final StripedCounter coalescedHits = new StripedCounter();
+    private final StripedCounter replicaHits = new StripedCounter();
+    private final StripedCounter prefetchHits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter earlyRefreshes = new StripedCounter();
+    private final StripedCounter puts = new StripedCounter();
+    private final StripedCounter locks = new StripedCounter();
+    private final StripedCounter evicts = new StripedCounter();
+
+    public void hit() {
+        hits.increment();
+    }
+
+    public void nearCacheHit() {
+        hits.increment();
+        nearCacheHits.increment();
+    }
+
+    /**
+     * A miss answered with a value another thread loaded.
+     */
+    public void coalescedHit() {
+        hits.increment();
+        coalescedHits.increment();
+    }
+
+    /**
+     * A hit on the local replica of a hot key.
+     */
+    public void replicaHit() {
+        hits.increment();
+        replicaHits.increment();
+    }
+
+    /**
+     * A hit on an entry read ahead with others in one multi-get.
+     */
+    public void prefetchHit() {
+        hits.increment();
+        prefetchHits.increment();
+    }
+
+    public void miss() {
+        misses.increment();
+    }
+
+    /**
+     * A miss on an entry that's about to expire, so that it's reloaded early.
+     */
+    public void earlyRefresh() {
+        misses.increment();
+        earlyRefreshes.increment();
+    }
+
+    public void put() {
+        puts.increment();
+    }
+
+    public void lock() {
+        locks.increment();
+    }
+
+    public void evict() {
+        evicts.increment();
+    }
+
+    /**
+     * @return number of hits, including near cache, coalesced, replica and
+     *         prefetch hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getNearCacheHitCount() {
+        return nearCacheHits.get();
+    }
+
+    public long getCoalescedHitCount() {
+        return coalescedHits.get();
+    }
+
+    public long getReplicaHitCount() {
+        return replicaHits.get();
+    }
+
+    public long getPrefetchHitCount() {
+        return prefetchHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEarlyRefreshCount() {
+        return earlyRefreshes.get();
+    }
+
+    public long getPutCount() {
+        return puts.get();
+    }
+
+    public long getLockCount() {
+        return locks.get();
+    }
+
+    public long getEvictCount() {
+        return evicts.get();
+    }
+}
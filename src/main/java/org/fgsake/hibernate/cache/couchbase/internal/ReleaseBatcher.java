@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the unlocks and updates that follow a commit and applies them in
+ * batches, off the committing thread. Hibernate releases the locks of a
+ * transaction one after another as it completes, so waiting at most
+ * {@code window} after the first release gathers the rest of them, and those
+ * of concurrent transactions, into one batch. A batch is sent early once it
+ * reaches {@code maxBatch} releases.
+ * <p>
+ * Until its batch is applied, a lock stays in place and the item keeps
+ * missing, as it does while the transaction is in flight.
+ * <p>
+ * A release whose CAS lost a race is held back until its backoff has passed
+ * and then goes out with a later batch, along with any releases of the same
+ * key queued after it, so releases of a key are still applied in order.
+ */
+public final class ReleaseBatcher {
+    private static final Logger log = Logger.getLogger(ReleaseBatcher.class);
+
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final long windowNanos;
+    private final int maxBatch;
+    private final BlockingQueue<LockManager.Release> queue = new LinkedBlockingQueue<LockManager.Release>();
+    // Held back after losing a race, in order; only used by the flusher
+    private final List<LockManager.Release> deferred = new ArrayList<LockManager.Release>();
+    private volatile int deferredCount;
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public ReleaseBatcher(long window, TimeUnit unit, int maxBatch) {
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatch = maxBatch;
+
+        flusher = new Thread(new Flusher(), "couchbase-release-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues {@code release} for the next batch.
+     *
+     * @return false if shutting down, in which case the caller should apply
+     *         it itself
+     */
+    boolean add(LockManager.Release release) {
+        if (!running) {
+            return false;
+        }
+        queue.add(release);
+        return true;
+    }
+
+    /**
+     * @return number of releases waiting for a batch, including those held
+     *         back after losing a race
+     */
+    public int size() {
+        return queue.size() + deferredCount;
+    }
+
+    /**
+     * Applies the releases still queued, waiting at most {@code timeout} for
+     * them.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        try {
+            unit.timedJoin(flusher, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (size() > 0) {
+            log.warnf("Dropping %d lock releases on shutdown", size());
+        }
+    }
+
+    private void send(List<LockManager.Release> batch) {
+        log.tracef("Sending batch of %d releases", batch.size());
+
+        Map<LockManager, List<LockManager.Release>> byRegion = new LinkedHashMap<LockManager, List<LockManager.Release>>();
+        for (LockManager.Release release : batch) {
+            List<LockManager.Release> releases = byRegion.get(release.locks);
+            if (releases == null) {
+                releases = new ArrayList<LockManager.Release>();
+                byRegion.put(release.locks, releases);
+            }
+            releases.add(release);
+        }
+
+        for (Map.Entry<LockManager, List<LockManager.Release>> entry : byRegion.entrySet()) {
+            try {
+                deferred.addAll(entry.getKey().release(entry.getValue()));
+            } catch (RuntimeException e) {
+                log.warnf(e, "Failed to apply %d lock releases", entry.getValue().size());
+            }
+        }
+    }
+
+    /**
+     * Moves the held back releases that may be sent by {@code now} to
+     * {@code batch}. A release stays behind an earlier one of its key that
+     * has to wait.
+     *
+     * @return keys of the releases still held back
+     */
+    private Set<String> takeDeferred(List<LockManager.Release> batch, long now) {
+        Set<String> waiting = new HashSet<String>();
+        for (Iterator<LockManager.Release> it = deferred.iterator(); it.hasNext(); ) {
+            LockManager.Release release = it.next();
+            if (waiting.contains(release.keyStr) || release.notBefore - now > 0) {
+                waiting.add(release.keyStr);
+            } else {
+                batch.add(release);
+                it.remove();
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * @return how long to wait for a first release, in nanoseconds: until the
+     *         earliest held back release may be sent, but no longer than the
+     *         idle poll
+     */
+    private long idleWait(long now) {
+        long wait = TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MILLIS);
+        for (LockManager.Release release : deferred) {
+            wait = Math.min(wait, Math.max(release.notBefore - now, 0));
+        }
+        return wait;
+    }
+
+    private final class Flusher implements Runnable {
+        public void run() {
+            // Once shut down, apply whatever is left without waiting for more
+            while (running || !queue.isEmpty() || !deferred.isEmpty()) {
+                List<LockManager.Release> batch = new ArrayList<LockManager.Release>();
+                long now = System.nanoTime();
+                Set<String> waiting = takeDeferred(batch, now);
+                try {
+                    if (batch.isEmpty()) {
+                        LockManager.Release first = queue.poll(idleWait(now), TimeUnit.NANOSECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        accept(first, batch, waiting);
+                    }
+                    long deadline = System.nanoTime() + (running ? windowNanos : 0);
+                    while (batch.size() < maxBatch) {
+                        LockManager.Release next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        accept(next, batch, waiting);
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+
+                if (!batch.isEmpty()) {
+                    send(batch);
+                }
+                deferredCount = deferred.size();
+            }
+        }
+
+        /**
+         * Adds a newly queued release to {@code batch}, or holds it back
+         * behind an earlier release of its key that's waiting.
+         */
+        private void accept(LockManager.Release release, List<LockManager.Release> batch, Set<String> waiting) {
+            if (waiting.contains(release.keyStr)) {
+                deferred.add(release);
+            } else {
+                batch.add(release);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces concurrent misses on the same key within a JVM. The first
+ * thread to miss a key leads: it gets a miss, loads the value from the
+ * database and hands it over with {@link #complete} when it's put. Threads
+ * that miss the same key meanwhile wait for that value instead of loading
+ * it themselves, and then miss as usual.
+ * <p>
+ * The leader holds a lease of {@code timeout}, which should be about as
+ * long as a load takes: Hibernate doesn't say when a load ends without a
+ * put (e.g. the row doesn't exist, the session only reads from the cache,
+ * or the load failed), so waiters can't tell a slow leader from one that
+ * will never put. When the lease runs out they miss, and the next thread
+ * to miss takes over. A load is abandoned early if its key is written or
+ * evicted before it's put, since the value loaded may already be stale,
+ * or if the leader finds it can't put it.
+ */
+public final class SingleFlight {
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private final long timeoutNanos;
+
+    public SingleFlight(long timeout, TimeUnit unit, ScheduledExecutorService scheduler) {
+        this.timeoutNanos = unit.toNanos(timeout);
+        long purgeInterval = Math.max(timeoutNanos, TimeUnit.SECONDS.toNanos(1));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                purge();
+            }
+        }, purgeInterval, purgeInterval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Called after a miss. Returns right away if no other thread is loading
+     * {@code keyStr}, in which case the caller should load it and call
+     * {@link #complete} or {@link #abort}.
+     *
+     * @return the value another thread loaded, or null if the caller should
+     *         load it
+     */
+    public CacheData join(String keyStr) throws InterruptedException {
+        Thread current = Thread.currentThread();
+        for (;;) {
+            long now = System.nanoTime();
+            Flight flight = flights.get(keyStr);
+            if (flight == null) {
+                if (flights.putIfAbsent(keyStr, new Flight(current, now + timeoutNanos)) == null) {
+                    return null;
+                }
+                continue;
+            }
+
+            if (flight.leader == current) {
+                return null;
+            }
+            long remaining = flight.deadline - now;
+            if (remaining <= 0) {
+                // The leader never finished, take over
+                if (flights.replace(keyStr, flight, new Flight(current, now + timeoutNanos))) {
+                    return null;
+                }
+                continue;
+            }
+
+            if (!flight.done.await(remaining, TimeUnit.NANOSECONDS)) {
+                flights.remove(keyStr, flight);
+            }
+            return flight.value;
+        }
+    }
+
+    /**
+     * Hands {@code data}, which was just put, to any threads waiting for
+     * {@code keyStr}.
+     */
+    public void complete(String keyStr, CacheData data) {
+        Flight flight = flights.remove(keyStr);
+        if (flight != null) {
+            flight.value = data;
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * Lets any threads waiting for {@code keyStr} miss.
+     */
+    public void abort(String keyStr) {
+        Flight flight = flights.remove(keyStr);
+        if (flight != null) {
+            flight.done.countDown();
+        }
+    }
+
+    public void abortAll() {
+        Iterator<Flight> it = flights.values().iterator();
+        while (it.hasNext()) {
+            Flight flight = it.next();
+            it.remove();
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * @return number of keys being loaded
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    void purge() {
+        long now = System.nanoTime();
+        Iterator<Flight> it = flights.values().iterator();
+        while (it.hasNext()) {
+            Flight flight = it.next();
+            if (flight.deadline - now <= 0) {
+                it.remove();
+                flight.done.countDown();
+            }
+        }
+    }
+
+    private static final class Flight {
+        final Thread leader;
+        final long deadline;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile CacheData value;
+
+        Flight(Thread leader, long deadline) {
+            this.leader = leader;
+            this.deadline = deadline;
+        }
+    }
+}
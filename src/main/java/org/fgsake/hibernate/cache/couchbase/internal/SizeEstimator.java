@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import org.hibernate.cache.CacheException;
+import org.jboss.logging.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Estimates how many entries a region holds and how many bytes they take,
+ * from what's written to it: a HyperLogLog sketch of the distinct keys
+ * written, and the count and bytes of the values encoded.
+ * <p>
+ * Each node only sees its own writes, so {@link #publish} merges this node's
+ * sketch into one shared in Couchbase, and adds the values and bytes encoded
+ * since it last did. The estimates are then taken from the shared sketch.
+ * <p>
+ * There's a sketch per region generation, so clearing a region starts over.
+ * Keys are counted from when they're written, not until they expire or are
+ * evicted, so the estimates are high for a region whose keys are mostly
+ * written once and left to expire.
+ */
+public final class SizeEstimator {
+    private static final Logger log = Logger.getLogger(SizeEstimator.class);
+
+    // 4096 registers, for a standard error of about 1.6%
+    private static final int PRECISION = 12;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private static final String SKETCH_KEY = "@sizes";
+    private static final byte FORMAT = 1;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final SerializingTranscoder BYTES = new SerializingTranscoder();
+
+    private final ClientWrapper client;
+    private final Generations.Generation generation;
+    private final int expiry;
+    private volatile Sketch sketch;
+
+    /**
+     * @param expiry TTL of the shared sketch, in seconds
+     */
+    public SizeEstimator(ClientWrapper client, Generations.Generation generation, int expiry) {
+        this.client = client;
+        this.generation = generation;
+        this.expiry = expiry;
+        this.sketch = new Sketch(generation.prefix(), client.getCompressionStats());
+    }
+
+    /**
+     * Counts a write of {@code keyStr}.
+     */
+    public void add(String keyStr) {
+        Sketch s = current();
+        if (!keyStr.startsWith(s.prefix)) {
+            // Written just before a change of generation
+            return;
+        }
+
+        long hash = new KeyHasher().putString(keyStr).toLong();
+        int index = (int) (hash >>> (64 - PRECISION));
+        // The marker bit caps the rank at 64 - PRECISION + 1
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        s.raise(index, rank);
+    }
+
+    /**
+     * @return estimated number of distinct keys written in the region's
+     *         generation
+     */
+    public long getElementCount() {
+        Sketch s = current();
+        Estimate shared = s.shared;
+        return shared != null ? shared.elementCount : cardinality(s.registers());
+    }
+
+    /**
+     * @return estimated bytes taken by the region's entries: the number of
+     *         entries times the average size of the values written
+     */
+    public long getSizeInBytes() {
+        Sketch s = current();
+        Estimate shared = s.shared;
+        if (shared != null) {
+            return shared.sizeInBytes();
+        }
+        CompressionStats encoding = client.getCompressionStats();
+        return new Estimate(cardinality(s.registers()),
+                encoding.getEncodedCount() - s.publishedValues,
+                encoding.getEncodedBytes() - s.publishedBytes).sizeInBytes();
+    }
+
+    /**
+     * Merges this node's sketch, values and bytes into the shared ones and
+     * takes the estimates from the result. Called from a single thread.
+     */
+    public void publish() {
+        if (!generation.isKnown()) {
+            return;
+        }
+        Sketch s = current();
+        CompressionStats encoding = client.getCompressionStats();
+        long values = encoding.getEncodedCount();
+        long bytes = encoding.getEncodedBytes();
+        int[] local = s.registers();
+        String key = s.prefix + SKETCH_KEY;
+
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                CASValue<Object> rsp = client.gets(key);
+                Shared merged = rsp != null ? Shared.decode(rsp.getValue()) : null;
+                if (merged == null) {
+                    merged = new Shared(new int[REGISTERS], 0, 0);
+                }
+                merged.merge(local, values - s.publishedValues, bytes - s.publishedBytes);
+
+                CachedData data = BYTES.encode(merged.encode());
+                boolean stored = rsp == null
+                        ? add(key, data)
+                        : client.cas(key, rsp.getCas(), expiry, data, false) == CASResponse.OK;
+                if (stored) {
+                    s.publishedValues = values;
+                    s.publishedBytes = bytes;
+                    for (int i = 0; i < REGISTERS; i++) {
+                        s.raise(i, merged.registers[i]);
+                    }
+                    s.shared = new Estimate(cardinality(merged.registers), merged.values, merged.bytes);
+                    log.tracef("Published %s: %d entries, %d bytes", key, s.shared.elementCount, s.shared.sizeInBytes());
+                    return;
+                }
+            }
+            log.debugf("Unable to publish %s after %d attempts", key, MAX_ATTEMPTS);
+        } catch (CacheException e) {
+            log.debugf(e, "Unable to publish %s", key);
+        }
+    }
+
+    private boolean add(String key, CachedData data) {
+        try {
+            return client.add(key, expiry, data, false).get(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the sketch of the current generation, starting a new one if
+     *         the generation changed
+     */
+    private Sketch current() {
+        Sketch s = sketch;
+        String prefix = generation.prefix();
+        if (s.prefix.equals(prefix)) {
+            return s;
+        }
+        synchronized (this) {
+            if (!sketch.prefix.equals(prefix)) {
+                sketch = new Sketch(prefix, client.getCompressionStats());
+            }
+            return sketch;
+        }
+    }
+
+    private static long cardinality(int[] registers) {
+        double sum = 0;
+        int zeros = 0;
+        for (int register : registers) {
+            sum += Math.scalb(1.0, -register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // Linear counting is more accurate while many registers are empty
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    private static final class Sketch {
+        final String prefix;
+        private final AtomicIntegerArray registers = new AtomicIntegerArray(REGISTERS);
+        // Encoding totals already in the shared sketch, only touched by publish
+        volatile long publishedValues;
+        volatile long publishedBytes;
+        volatile Estimate shared;
+
+        Sketch(String prefix, CompressionStats encoding) {
+            this.prefix = prefix;
+            this.publishedValues = encoding.getEncodedCount();
+            this.publishedBytes = encoding.getEncodedBytes();
+        }
+
+        void raise(int index, int rank) {
+            for (;;) {
+                int current = registers.get(index);
+                if (rank <= current || registers.compareAndSet(index, current, rank)) {
+                    return;
+                }
+            }
+        }
+
+        int[] registers() {
+            int[] copy = new int[REGISTERS];
+            for (int i = 0; i < REGISTERS; i++) {
+                copy[i] = registers.get(i);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * The sketch, values and bytes of all nodes, as stored in Couchbase.
+     */
+    private static final class Shared {
+        final int[] registers;
+        long values;
+        long bytes;
+
+        Shared(int[] registers, long values, long bytes) {
+            this.registers = registers;
+            this.values = values;
+            this.bytes = bytes;
+        }
+
+        void merge(int[] local, long newValues, long newBytes) {
+            for (int i = 0; i < REGISTERS; i++) {
+                registers[i] = Math.max(registers[i], local[i]);
+            }
+            values += newValues;
+            bytes += newBytes;
+        }
+
+        byte[] encode() {
+            ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 8 + REGISTERS);
+            buf.put(FORMAT).putLong(values).putLong(bytes);
+            for (int register : registers) {
+                buf.put((byte) register);
+            }
+            return buf.array();
+        }
+
+        /**
+         * @return the decoded sketch, or null if {@code value} isn't one,
+         *         in which case it's overwritten
+         */
+        static Shared decode(Object value) {
+            if (!(value instanceof byte[]) || ((byte[]) value).length != 1 + 8 + 8 + REGISTERS) {
+                return null;
+            }
+            ByteBuffer buf = ByteBuffer.wrap((byte[]) value);
+            if (buf.get() != FORMAT) {
+                return null;
+            }
+            long values = buf.getLong();
+            long bytes = buf.getLong();
+            int[] registers = new int[REGISTERS];
+            for (int i = 0; i < REGISTERS; i++) {
+                registers[i] = buf.get();
+            }
+            return new Shared(registers, values, bytes);
+        }
+    }
+
+    private static final class Estimate {
+        final long elementCount;
+        final long values;
+        final long bytes;
+
+        Estimate(long elementCount, long values, long bytes) {
+            this.elementCount = elementCount;
+            this.values = values;
+            this.bytes = bytes;
+        }
+
+        long sizeInBytes() {
+            return values > 0 ? Math.round((double) elementCount * bytes / values) : 0;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a hit should extend its entry's TTL. Each key is touched at
+ * most once per {@code interval}, so that reads of a hot entry don't each
+ * cost a write, and never past {@code maxLifetime} after it was written,
+ * so that an entry read often enough is still reloaded eventually.
+ * <p>
+ * Keys touched recently are remembered locally, and forgotten all at once
+ * when there are too many of them; the worst that does is an extra touch.
+ * <p>
+ * A touch is a {@code gets} and a {@code cas} of the same value with the
+ * new TTL, so it can't extend a lock that took the entry's place. Items
+ * split into chunks aren't slid at all: their chunks would expire under
+ * them anyway, so they reload on schedule.
+ */
+public final class SlidingExpiry {
+    private static final int MAX_TRACKED_KEYS = 10000;
+
+    private final ConcurrentMap<String, Long> touched = new ConcurrentHashMap<String, Long>();
+    private final long intervalNanos;
+    private final long maxLifetime;
+
+    public SlidingExpiry(long interval, long maxLifetime, TimeUnit unit) {
+        this.intervalNanos = unit.toNanos(interval);
+        this.maxLifetime = unit.toMicros(maxLifetime);
+    }
+
+    /**
+     * @param timestamp when the entry was written, in {@link Timestamper} units
+     * @param expiry    TTL of an entry written now, in seconds
+     * @return the TTL to touch {@code keyStr} with, or 0 if it shouldn't be
+     *         touched now
+     */
+    public int extend(String keyStr, long timestamp, int expiry) {
+        if (expiry <= 0 || timestamp <= 0) {
+            return 0;
+        }
+        long remaining = TimeUnit.MICROSECONDS.toSeconds(maxLifetime - (Timestamper.nextTimestamp() - timestamp));
+        if (remaining <= 0) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        Long last = touched.get(keyStr);
+        if (last != null && now - last < intervalNanos) {
+            return 0;
+        }
+        if (touched.size() >= MAX_TRACKED_KEYS) {
+            touched.clear();
+        }
+        touched.put(keyStr, now);
+        return (int) Math.min(expiry, remaining);
+    }
+
+    public void forget(String keyStr) {
+        touched.remove(keyStr);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads updates from different threads over separate cache
+ * lines, so hot counters don't serialize the threads updating them. Reads
+ * add up the stripes and aren't atomic with respect to concurrent updates.
+ */
+public final class StripedCounter {
+    static final int STRIPES = stripes();
+    // Longs per 64-byte cache line
+    static final int PAD = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long x) {
+        cells.getAndAdd(index(), x);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    /**
+     * Zeroes the counter. Updates made concurrently may or may not survive.
+     */
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PAD, 0);
+        }
+    }
+
+    private static int index() {
+        return stripe() * PAD;
+    }
+
+    /**
+     * @return the stripe, below {@link #STRIPES}, the current thread updates
+     */
+    static int stripe() {
+        // Thread IDs are handed out sequentially, so the low bits spread well
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    /**
+     * @return the number of processors rounded up to a power of two, at most 64
+     */
+    private static int stripes() {
+        int n = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.jboss.logging.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Shortens the run of misses after a restart. On shutdown, each region's
+ * {@linkplain CouchbaseTransactionalDataRegion#getWarmKeys warm keys} are
+ * saved to a file; on startup, each region built prefetches the keys saved
+ * for it in the background, in multi-gets of {@value #BATCH_SIZE} keys at
+ * no more than {@code rate} keys per second.
+ * <p>
+ * Prefetched entries go to the region's near cache if it has one. Either
+ * way, the prefetch opens and warms the connections to every node before
+ * the application needs them.
+ */
+public final class WarmStart {
+    private static final Logger log = Logger.getLogger(WarmStart.class);
+
+    private static final int FORMAT = 1;
+    private static final int BATCH_SIZE = 100;
+
+    private final File file;
+    private final int maxKeys;
+    private final int rate;
+    private final Map<String, List<String>> saved;
+    private final List<CouchbaseTransactionalDataRegion> regions = new ArrayList<CouchbaseTransactionalDataRegion>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("couchbase-cache-warm-start"));
+
+    /**
+     * @param maxKeys most keys saved per region
+     * @param rate    most keys prefetched per second
+     */
+    public WarmStart(File file, int maxKeys, int rate) {
+        this.file = file;
+        this.maxKeys = maxKeys;
+        this.rate = rate;
+        this.saved = read(file);
+    }
+
+    /**
+     * Prefetches the keys saved for {@code region}, and saves its keys on
+     * shutdown.
+     */
+    public void track(final CouchbaseTransactionalDataRegion region) {
+        synchronized (regions) {
+            regions.add(region);
+        }
+
+        final List<String> keys = saved.get(region.getName());
+        if (keys == null || keys.isEmpty()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                prefetch(region, keys);
+            }
+        });
+    }
+
+    /**
+     * Stops prefetching and saves the keys of every region tracked.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+
+        Map<String, List<String>> keys = new HashMap<String, List<String>>();
+        synchronized (regions) {
+            for (CouchbaseTransactionalDataRegion region : regions) {
+                List<String> warmKeys = region.getWarmKeys(maxKeys);
+                if (!warmKeys.isEmpty()) {
+                    keys.put(region.getName(), warmKeys);
+                }
+            }
+        }
+        write(file, keys);
+    }
+
+    private void prefetch(CouchbaseTransactionalDataRegion region, List<String> keys) {
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < keys.size() && !Thread.currentThread().isInterrupted(); i += BATCH_SIZE) {
+            try {
+                found += region.prefetch(keys.subList(i, Math.min(i + BATCH_SIZE, keys.size())));
+            } catch (RuntimeException e) {
+                log.debugf(e, "Stopping prefetch of region %s", region.getName());
+                return;
+            }
+
+            long due = start + TimeUnit.SECONDS.toNanos(i + BATCH_SIZE) / rate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        log.debugf("Prefetched %d of %d keys of region %s in %dms", found, keys.size(), region.getName(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private static Map<String, List<String>> read(File file) {
+        if (!file.exists()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, List<String>> saved = new HashMap<String, List<String>>();
+        try {
+            DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+            try {
+                int format = in.readByte();
+                if (format != FORMAT) {
+                    log.warnf("Ignoring warm start file %s in unknown format %d", file, format);
+                    return Collections.emptyMap();
+                }
+                int regionCount = in.readInt();
+                for (int i = 0; i < regionCount; i++) {
+                    String regionName = in.readUTF();
+                    int keyCount = in.readInt();
+                    List<String> keys = new ArrayList<String>(keyCount);
+                    for (int j = 0; j < keyCount; j++) {
+                        keys.add(in.readUTF());
+                    }
+                    saved.put(regionName, keys);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warnf("Unable to read warm start file %s: %s", file, e);
+            return Collections.emptyMap();
+        }
+        log.debugf("Read keys of %d regions from %s", saved.size(), file);
+        return saved;
+    }
+
+    private static void write(File file, Map<String, List<String>> keys) {
+        // Written aside and renamed, so a crash never leaves half a file
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))));
+            try {
+                out.writeByte(FORMAT);
+                out.writeInt(keys.size());
+                for (Map.Entry<String, List<String>> entry : keys.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (String key : entry.getValue()) {
+                        out.writeUTF(key);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            log.warnf("Unable to write warm start file %s: %s", file, e);
+            return;
+        }
+        log.debugf("Saved keys of %d regions to %s", keys.size(), file);
+    }
+}
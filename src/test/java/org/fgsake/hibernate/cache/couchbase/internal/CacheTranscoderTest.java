@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheTranscoderTest {
+    private final CacheTranscoder compact = new CacheTranscoder(new JavaValueSerializer(), true, null, 0);
+    private final CacheTranscoder serialized = new CacheTranscoder(new JavaValueSerializer(), false, null, 0);
+
+    @Test
+    public void roundTripsCacheData() {
+        CacheData data = (CacheData) compact.decode(compact.encode(new CacheData(1234, 7, "value", 3)));
+        assertEquals(1234, data.getTimestamp());
+        assertEquals(7, data.getVersion());
+        assertEquals("value", data.getValue());
+        assertEquals(3, data.getSchemaVersion());
+    }
+
+    @Test
+    public void tagsCacheDataInFlags() {
+        CachedData encoded = compact.encode(new CacheData(1, null, "value", 0));
+        assertEquals(CacheTranscoder.TYPE_DATA, encoded.getFlags() & CacheTranscoder.TYPE_MASK);
+    }
+
+    @Test
+    public void roundTripsNullValue() {
+        CacheData data = (CacheData) compact.decode(compact.encode(new CacheData(1, null, null, 0)));
+        assertNull(data.getValue());
+        assertNull(data.getVersion());
+    }
+
+    @Test
+    public void roundTripsEveryVersionType() {
+        List<Object> versions = Arrays.<Object>asList(null, 42, 42L, (short) 42, new Timestamp(1234567890123L),
+                new Date(1234567890123L), new BigDecimal("4.2"));
+        for (Object version : versions) {
+            CacheData data = (CacheData) compact.decode(compact.encode(new CacheData(1, version, "value", 0)));
+            assertEquals(version, data.getVersion());
+            if (version != null) {
+                assertEquals(version.getClass(), data.getVersion().getClass());
+            }
+        }
+    }
+
+    @Test
+    public void keepsTimestampNanos() {
+        Timestamp version = new Timestamp(1234567890000L);
+        version.setNanos(123456789);
+        CacheData data = (CacheData) compact.decode(compact.encode(new CacheData(1, version, "value", 0)));
+        assertEquals(version, data.getVersion());
+    }
+
+    @Test
+    public void roundTripsCacheLock() {
+        CacheLock lock = new CacheLock(5L, 1000, 2);
+        lock.lock(2000);
+        lock.unlock(3000);
+        CacheLock decoded = (CacheLock) compact.decode(compact.encode(lock));
+        assertEquals(lock.getCount(), decoded.getCount());
+        assertEquals(lock.isConcurrent(), decoded.isConcurrent());
+        assertEquals(lock.getUnlockTimestamp(), decoded.getUnlockTimestamp());
+        assertEquals(lock.getTimeout(), decoded.getTimeout());
+        assertEquals(2, decoded.getSchemaVersion());
+        assertEquals(5L, decoded.getVersion());
+    }
+
+    @Test
+    public void readsSerializedItems() {
+        CachedData encoded = serialized.encode(new CacheData(1234, 7, "value", 3));
+        assertEquals(0, encoded.getFlags() & CacheTranscoder.TYPE_MASK);
+        CacheData data = (CacheData) compact.decode(encoded);
+        assertEquals(1234, data.getTimestamp());
+        assertEquals("value", data.getValue());
+
+        CacheLock lock = (CacheLock) compact.decode(serialized.encode(new CacheLock(5L, 1000, 2)));
+        assertEquals(5L, lock.getVersion());
+    }
+
+    @Test
+    public void serializedTranscoderReadsCompactItems() {
+        CacheData data = (CacheData) serialized.decode(compact.encode(new CacheData(1234, 7, "value", 3)));
+        assertEquals("value", data.getValue());
+    }
+
+    @Test
+    public void passesOtherObjectsToSerializingTranscoder() {
+        assertEquals("plain", compact.decode(compact.encode("plain")));
+        assertEquals(42L, compact.decode(compact.encode(42L)));
+    }
+
+    @Test
+    public void writesEncodedItemsAsIs() {
+        CachedData raw = new CachedData(CacheTranscoder.TYPE_DATA, new byte[] {1, 2, 3}, CachedData.MAX_SIZE);
+        assertTrue(raw == compact.encode(raw));
+    }
+
+    @Test
+    public void recordsEncodedSize() {
+        CachedData encoded = compact.encode(new CacheData(1, null, "value", 0));
+        CacheData data = (CacheData) compact.decode(encoded);
+        assertEquals(encoded.getData().length, data.getEncodedSize());
+    }
+
+    @Test
+    public void undecodableItemIsNull() {
+        CachedData encoded = compact.encode(new CacheData(1, null, "value", 0));
+        byte[] data = encoded.getData().clone();
+        data[0] = 99;
+        assertNull(compact.decode(new CachedData(encoded.getFlags(), data, CachedData.MAX_SIZE)));
+    }
+
+    @Test
+    public void compressesAboveThreshold() {
+        for (CompressionCodec codec : Arrays.asList(CompressionCodec.GZIP, CompressionCodec.LZ4)) {
+            CacheTranscoder transcoder = new CacheTranscoder(new JavaValueSerializer(), true, codec, 100);
+            String value = repeat("compressible ", 100);
+            CachedData encoded = transcoder.encode(new CacheData(1, null, value, 0));
+            assertEquals(codec, CompressionCodec.forFlags(encoded.getFlags()));
+            assertEquals(value, ((CacheData) transcoder.decode(encoded)).getValue());
+            assertEquals(1, transcoder.getCompressionStats().getCompressedCount());
+        }
+    }
+
+    @Test
+    public void skipsCompressionBelowThreshold() {
+        CacheTranscoder transcoder = new CacheTranscoder(new JavaValueSerializer(), true, CompressionCodec.GZIP, 100000);
+        CachedData encoded = transcoder.encode(new CacheData(1, null, repeat("compressible ", 100), 0));
+        assertNull(CompressionCodec.forFlags(encoded.getFlags()));
+    }
+
+    @Test
+    public void keepsItemsCompressionDoesNotShrink() {
+        CacheTranscoder transcoder = new CacheTranscoder(new JavaValueSerializer(), true, CompressionCodec.LZ4, 10);
+        byte[] value = new byte[1000];
+        new Random(1).nextBytes(value);
+        CachedData encoded = transcoder.encode(new CacheData(1, null, value, 0));
+        assertNull(CompressionCodec.forFlags(encoded.getFlags()));
+        assertTrue(Arrays.equals(value, (byte[]) ((CacheData) transcoder.decode(encoded)).getValue()));
+    }
+
+    @Test
+    public void decodesItemsCompressedByAnyCodec() {
+        CacheTranscoder lz4 = new CacheTranscoder(new JavaValueSerializer(), true, CompressionCodec.LZ4, 100);
+        CacheTranscoder gzip = new CacheTranscoder(new JavaValueSerializer(), true, CompressionCodec.GZIP, 100);
+        String value = repeat("compressible ", 100);
+        assertEquals(value, ((CacheData) compact.decode(lz4.encode(new CacheData(1, null, value, 0)))).getValue());
+        assertEquals(value, ((CacheData) compact.decode(gzip.encode(new CacheData(1, null, value, 0)))).getValue());
+    }
+
+    @Test
+    public void decodesItemsCompressedBySpymemcached() {
+        SerializingTranscoder spy = new SerializingTranscoder();
+        spy.setCompressionThreshold(100);
+        String value = repeat("compressible ", 100);
+        CachedData encoded = spy.encode(value);
+        assertFalse(CompressionCodec.forFlags(encoded.getFlags()) == null);
+        assertEquals(value, compact.decode(encoded));
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CachedData;
+import org.fgsake.hibernate.cache.couchbase.CacheBackend;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkManifestTest {
+    @Test
+    public void splitsIntoChunksOfAtMostChunkSize() {
+        Map<String, CachedData> chunks = new LinkedHashMap<String, CachedData>();
+        ChunkManifest manifest = ChunkManifest.split(item(2500), 1000, 42, chunks);
+        assertEquals(3, chunks.size());
+        assertEquals(manifest.keys(), Arrays.asList(chunks.keySet().toArray(new String[0])));
+        int total = 0;
+        for (CachedData chunk : chunks.values()) {
+            assertTrue(chunk.getData().length <= 1000);
+            total += chunk.getData().length;
+        }
+        assertEquals(2500, total);
+    }
+
+    @Test
+    public void joinsChunksBackTogether() {
+        CachedData item = item(2500);
+        Map<String, CachedData> chunks = new LinkedHashMap<String, CachedData>();
+        ChunkManifest manifest = ChunkManifest.split(item, 1000, 42, chunks);
+        CachedData joined = ChunkManifest.decode(manifest.encode()).join(chunks);
+        assertNotNull(joined);
+        assertEquals(item.getFlags(), joined.getFlags());
+        assertArrayEquals(item.getData(), joined.getData());
+    }
+
+    @Test
+    public void splitsAnExactMultiple() {
+        CachedData item = item(3000);
+        Map<String, CachedData> chunks = new LinkedHashMap<String, CachedData>();
+        ChunkManifest manifest = ChunkManifest.split(item, 1000, 42, chunks);
+        assertEquals(3, chunks.size());
+        assertArrayEquals(item.getData(), manifest.join(chunks).getData());
+    }
+
+    @Test
+    public void rejectsMissingChunk() {
+        Map<String, CachedData> chunks = new LinkedHashMap<String, CachedData>();
+        ChunkManifest manifest = ChunkManifest.split(item(2500), 1000, 42, chunks);
+        chunks.remove(manifest.keys().get(1));
+        assertNull(manifest.join(chunks));
+    }
+
+    @Test
+    public void rejectsCorruptChunk() {
+        Map<String, CachedData> chunks = new LinkedHashMap<String, CachedData>();
+        ChunkManifest manifest = ChunkManifest.split(item(2500), 1000, 42, chunks);
+        CachedData chunk = chunks.get(manifest.keys().get(1));
+        byte[] data = chunk.getData().clone();
+        data[17] ^= 1;
+        chunks.put(manifest.keys().get(1), new CachedData(0, data, CachedData.MAX_SIZE));
+        assertNull(manifest.join(chunks));
+    }
+
+    @Test
+    public void rejectsChunkOfAnotherVersion() {
+        Map<String, CachedData> chunks = new LinkedHashMap<String, CachedData>();
+        ChunkManifest manifest = ChunkManifest.split(item(2500), 1000, 42, chunks);
+        // Same ID, as if evicted and rewritten by another version
+        Map<String, CachedData> other = new LinkedHashMap<String, CachedData>();
+        ChunkManifest.split(new CachedData(CacheTranscoder.TYPE_DATA, random(2500, 1), CachedData.MAX_SIZE), 1000, 42, other);
+        String key = manifest.keys().get(2);
+        chunks.put(key, other.get(key));
+        assertNull(manifest.join(chunks));
+    }
+
+    @Test
+    public void rejectsChunkOfWrongLength() {
+        Map<String, CachedData> chunks = new LinkedHashMap<String, CachedData>();
+        ChunkManifest manifest = ChunkManifest.split(item(2500), 1000, 42, chunks);
+        String key = manifest.keys().get(2);
+        chunks.put(key, new CachedData(0, new byte[1000], CachedData.MAX_SIZE));
+        assertNull(manifest.join(chunks));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownFormat() {
+        byte[] data = ChunkManifest.split(item(2500), 1000, 42, new LinkedHashMap<String, CachedData>()).encode();
+        data[0] = 99;
+        ChunkManifest.decode(data);
+    }
+
+    @Test
+    public void discardsChunksOfLostAdd() throws InterruptedException {
+        LocalBackend backend = new LocalBackend(64 * 1024 * 1024);
+        try {
+            ClientWrapper client = new ClientWrapper(new CacheBackend[] {backend}, new CacheTranscoder(new JavaValueSerializer(), true, null, 0), null, null, 1000);
+            client.add("k", 0, random(2500));
+            assertEquals(4, backend.size());
+            assertEquals(2500, ((byte[]) client.get("k")).length);
+
+            client.add("k", 0, random(2500, 1), false);
+            awaitSize(backend, 4);
+            assertEquals(4, backend.size());
+
+            client.cas("k", -1, 0, random(2500, 2));
+            assertEquals(4, backend.size());
+            assertEquals(2500, ((byte[]) client.get("k")).length);
+        } finally {
+            backend.shutdown(0, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void awaitSize(LocalBackend backend, int size) throws InterruptedException {
+        for (int i = 0; i < 100 && backend.size() != size; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static CachedData item(int length) {
+        return new CachedData(CacheTranscoder.TYPE_DATA, random(length), CachedData.MAX_SIZE);
+    }
+
+    private static byte[] random(int length) {
+        return random(length, 0);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
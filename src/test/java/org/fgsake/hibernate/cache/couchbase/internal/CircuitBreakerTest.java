@@ -0,0 +1,184 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    private static final long OPEN_MILLIS = 20;
+
+    private ExecutorService executor;
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        breaker = new CircuitBreaker("test", 0.5, 10, 10000, OPEN_MILLIS, 2, TimeUnit.MILLISECONDS, executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void staysClosedUntilMinimumRequests() {
+        for (int i = 0; i < 9; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void staysClosedBelowFailureRate() {
+        for (int i = 0; i < 6; i++) {
+            breaker.onSuccess();
+        }
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensAtFailureRate() {
+        trip();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getTripCount());
+
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(2, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void halfOpensAfterOpenDurationAndClosesOnProbes() throws InterruptedException {
+        trip();
+        Thread.sleep(2 * OPEN_MILLIS);
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertFalse("only 2 probes", breaker.allowRequest());
+
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void reopensOnFailedProbe() throws InterruptedException {
+        trip();
+        Thread.sleep(2 * OPEN_MILLIS);
+
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getTripCount());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void closingClearsFailures() throws InterruptedException {
+        trip();
+        Thread.sleep(2 * OPEN_MILLIS);
+        probe();
+
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void runsRecoveryActionsOnlyAfterDroppedWrites() throws InterruptedException {
+        final CountDownLatch recovered = new CountDownLatch(1);
+        breaker.addRecoveryAction(new Runnable() {
+            public void run() {
+                recovered.countDown();
+            }
+        });
+
+        trip();
+        Thread.sleep(2 * OPEN_MILLIS);
+        probe();
+        assertFalse(recovered.await(OPEN_MILLIS, TimeUnit.MILLISECONDS));
+
+        trip();
+        breaker.onWriteDropped();
+        Thread.sleep(2 * OPEN_MILLIS);
+        probe();
+        assertTrue(recovered.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void clientReportsOnlyInvalidatingWritesAsDropped() throws Exception {
+        final CountDownLatch recovered = new CountDownLatch(1);
+        breaker.addRecoveryAction(new Runnable() {
+            public void run() {
+                recovered.countDown();
+            }
+        });
+        LocalBackend backend = new LocalBackend(64 * 1024 * 1024);
+        try {
+            ClientWrapper client = new ClientWrapper(backend, new CacheTranscoder(new JavaValueSerializer(), true, null, 0), null, breaker);
+            trip();
+
+            assertFalse(client.add("k", 0, "v", false).get());
+            assertEquals(null, client.get("k"));
+            client.touch("k", 0);
+            Thread.sleep(2 * OPEN_MILLIS);
+            probe();
+            assertFalse("nothing that changes the cache was dropped", recovered.await(OPEN_MILLIS, TimeUnit.MILLISECONDS));
+
+            trip();
+            assertFalse(client.delete("k").get());
+            Thread.sleep(2 * OPEN_MILLIS);
+            probe();
+            assertTrue(recovered.await(1, TimeUnit.SECONDS));
+        } finally {
+            backend.shutdown(0, TimeUnit.SECONDS);
+        }
+    }
+
+    private void trip() {
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private void probe() {
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
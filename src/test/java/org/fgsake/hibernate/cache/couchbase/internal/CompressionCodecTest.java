@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionCodecTest {
+    private static final byte[] TEXT = ("The quick brown fox jumps over the lazy dog. "
+            + "The quick brown fox jumps over the lazy dog again.").getBytes(Charset.forName("UTF-8"));
+
+    @Test
+    public void findsCodecsByName() {
+        assertSame(CompressionCodec.GZIP, CompressionCodec.forName("gzip"));
+        assertSame(CompressionCodec.LZ4, CompressionCodec.forName("LZ4"));
+        assertNull(CompressionCodec.forName("none"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownName() {
+        CompressionCodec.forName("snappy");
+    }
+
+    @Test
+    public void findsCodecsByFlags() {
+        assertSame(CompressionCodec.GZIP, CompressionCodec.forFlags(CacheTranscoder.TYPE_DATA | CompressionCodec.GZIP.getFlag()));
+        assertSame(CompressionCodec.LZ4, CompressionCodec.forFlags(CacheTranscoder.TYPE_DATA | CompressionCodec.LZ4.getFlag()));
+        assertNull(CompressionCodec.forFlags(CacheTranscoder.TYPE_DATA));
+    }
+
+    @Test
+    public void gzipRoundTrips() throws IOException {
+        byte[] compressed = CompressionCodec.GZIP.compress(TEXT);
+        assertArrayEquals(TEXT, CompressionCodec.GZIP.decompress(compressed));
+    }
+
+    @Test
+    public void gzipRoundTripsEmpty() throws IOException {
+        assertArrayEquals(new byte[0], CompressionCodec.GZIP.decompress(CompressionCodec.GZIP.compress(new byte[0])));
+    }
+
+    @Test
+    public void gzipShrinksRedundantData() throws IOException {
+        byte[] data = new byte[10000];
+        assertTrue(CompressionCodec.GZIP.compress(data).length < 100);
+    }
+
+    @Test(expected = IOException.class)
+    public void gzipRejectsCorruptInput() throws IOException {
+        CompressionCodec.GZIP.decompress(TEXT);
+    }
+}
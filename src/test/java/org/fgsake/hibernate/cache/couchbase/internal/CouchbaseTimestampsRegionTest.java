@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CouchbaseTimestampsRegionTest {
+    private static final RegionSettings SETTINGS = new RegionSettings(0, 30000, false, 0, false, 0, 0);
+
+    private LocalBackend backend;
+    private ClientWrapper client;
+    private Generations.Generation generation;
+    private ScheduledThreadPoolExecutor scheduler;
+
+    @Before
+    public void setUp() {
+        backend = new LocalBackend(64 * 1024 * 1024);
+        client = new ClientWrapper(backend, new CacheTranscoder(new JavaValueSerializer(), true, null, 0), null, null);
+        generation = new Generations.Generation(client, "ts", "ts@generation", 1);
+        client.incr("ts@generation", 0, 1);
+        scheduler = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        backend.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void localPutIsMirroredAtOnce() {
+        CouchbaseTimestampsRegion region = region(TimeUnit.HOURS.toMillis(1));
+        region.put("space", 1L);
+        assertEquals(1L, region.get("space"));
+        assertEquals(1, region.getStats().getNearCacheHitCount());
+    }
+
+    @Test
+    public void otherNodesPutIsSeenAfterRefresh() {
+        CouchbaseTimestampsRegion local = region(TimeUnit.HOURS.toMillis(1));
+        CouchbaseTimestampsRegion remote = region(TimeUnit.HOURS.toMillis(1));
+        local.put("space", 1L);
+
+        remote.put("space", 2L);
+        assertEquals("within the staleness bound", 1L, local.get("space"));
+
+        local.refresh();
+        assertEquals(2L, local.get("space"));
+    }
+
+    @Test
+    public void mirroredMissIsRefreshedToo() {
+        CouchbaseTimestampsRegion local = region(TimeUnit.HOURS.toMillis(1));
+        CouchbaseTimestampsRegion remote = region(TimeUnit.HOURS.toMillis(1));
+        assertNull(local.get("space"));
+
+        remote.put("space", 2L);
+        assertNull(local.get("space"));
+        assertEquals(1, local.getStats().getMissCount());
+
+        local.refresh();
+        assertEquals(2L, local.get("space"));
+    }
+
+    @Test
+    public void staleEntryIsReadAgain() throws InterruptedException {
+        CouchbaseTimestampsRegion local = region(20);
+        CouchbaseTimestampsRegion remote = region(20);
+        local.put("space", 1L);
+        remote.put("space", 2L);
+
+        Thread.sleep(50);
+        assertEquals(2L, local.get("space"));
+        assertEquals(1, local.getStats().getHitCount());
+    }
+
+    @Test
+    public void evictDropsMirroredEntry() {
+        CouchbaseTimestampsRegion region = region(TimeUnit.HOURS.toMillis(1));
+        region.put("space", 1L);
+        region.evict("space");
+        assertNull(region.get("space"));
+    }
+
+    @Test
+    public void generationChangeDropsMirror() {
+        CouchbaseTimestampsRegion region = region(TimeUnit.HOURS.toMillis(1));
+        region.put("space", 1L);
+
+        generation.increment();
+        assertNull(region.get("space"));
+        assertEquals(0, region.getStats().getNearCacheHitCount());
+    }
+
+    private CouchbaseTimestampsRegion region(long maxStalenessMillis) {
+        return new CouchbaseTimestampsRegion(client, "ts", generation, SETTINGS, scheduler,
+                TimeUnit.HOURS.toMillis(1), maxStalenessMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.hibernate.cache.CacheException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GenerationsTest {
+    private LocalBackend backend;
+    private ClientWrapper client;
+    private ScheduledThreadPoolExecutor scheduler;
+    private volatile boolean down;
+
+    @Before
+    public void setUp() {
+        backend = new LocalBackend(64 * 1024 * 1024);
+        client = new ClientWrapper(backend, new CacheTranscoder(new JavaValueSerializer(), true, null, 0), null, null) {
+            @Override
+            public long incr(String key, int by, long def) {
+                if (down) {
+                    throw new CacheException("Couchbase unavailable");
+                }
+                return super.incr(key, by, def);
+            }
+        };
+        scheduler = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        backend.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void missingCounterStartsAtCurrentTime() {
+        long before = System.currentTimeMillis() / 1000;
+        Generations.Generation generation = generations().register("r");
+        long after = System.currentTimeMillis() / 1000;
+
+        assertTrue(generation.isKnown());
+        assertTrue(generation.get() >= before && generation.get() <= after);
+        assertEquals("r@" + Long.toString(generation.get(), 36) + ":", generation.prefix());
+    }
+
+    @Test
+    public void incrementBumpsGenerationAndPrefix() {
+        client.incr("r@generation", 0, 100);
+        Generations.Generation generation = generations().register("r");
+        assertEquals(100, generation.get());
+        String prefix = generation.prefix();
+
+        generation.increment();
+        assertEquals(101, generation.get());
+        assertFalse(prefix.equals(generation.prefix()));
+    }
+
+    @Test
+    public void incrementAllBumpsEveryRegion() {
+        Generations generations = generations();
+        Generations.Generation a = generations.register("a");
+        Generations.Generation b = generations.register("b");
+        long aBefore = a.get();
+        long bBefore = b.get();
+
+        generations.incrementAll();
+        assertEquals(aBefore + 1, a.get());
+        assertEquals(bBefore + 1, b.get());
+    }
+
+    @Test
+    public void refreshPicksUpOtherNodesIncrement() {
+        Generations local = generations();
+        Generations remote = generations();
+        Generations.Generation mine = local.register("r");
+        Generations.Generation theirs = remote.register("r");
+        assertEquals(mine.prefix(), theirs.prefix());
+
+        theirs.increment();
+        assertFalse(mine.prefix().equals(theirs.prefix()));
+
+        local.refresh();
+        assertEquals(theirs.get(), mine.get());
+        assertEquals(theirs.prefix(), mine.prefix());
+    }
+
+    @Test
+    public void refreshNeverMovesBack() {
+        client.incr("r@generation", 0, 100);
+        Generations generations = generations();
+        Generations.Generation generation = generations.register("r");
+        generation.increment();
+
+        // Another node's counter, reset as though evicted and recreated lower
+        client.delete("r@generation");
+        client.incr("r@generation", 0, 50);
+        generations.refresh();
+        assertEquals(101, generation.get());
+    }
+
+    @Test
+    public void unknownGenerationBypassesUntilRead() {
+        client.incr("r@generation", 0, 100);
+        down = true;
+        Generations generations = generations();
+        Generations.Generation generation = generations.register("r");
+        assertFalse(generation.isKnown());
+        assertTrue(generation.prefix().startsWith("r@?"));
+
+        generations.refresh();
+        assertFalse(generation.isKnown());
+
+        down = false;
+        generations.refresh();
+        assertTrue(generation.isKnown());
+        assertEquals(100, generation.get());
+        assertEquals("r@" + Long.toString(100, 36) + ":", generation.prefix());
+        assertFalse(generation.skipWrite());
+    }
+
+    @Test
+    public void writesSkippedWhileUnknownMoveToNewGeneration() {
+        client.incr("r@generation", 0, 100);
+        down = true;
+        Generations generations = generations();
+        Generations.Generation generation = generations.register("r");
+        assertTrue(generation.skipWrite());
+        generation.increment();
+
+        down = false;
+        generations.refresh();
+        assertTrue(generation.isKnown());
+        assertEquals(101, generation.get());
+    }
+
+    private Generations generations() {
+        return new Generations(client, scheduler, 1, TimeUnit.HOURS);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HotKeysTest {
+    private ScheduledThreadPoolExecutor scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void findsHotKeysAmongColdOnes() {
+        HotKeys hotKeys = hotKeys(2, 1);
+        for (int i = 0; i < 1000; i++) {
+            hotKeys.sample("cold" + i);
+            // With 16 counters, only keys above 1/16 of the reads are sure to be found
+            if (i % 5 == 0) {
+                hotKeys.sample("a");
+            }
+            if (i % 10 == 0) {
+                hotKeys.sample("b");
+            }
+        }
+        hotKeys.refresh();
+
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(hotKeys.getTopKeys().keySet()));
+        assertTrue(hotKeys.isHot("a"));
+        assertTrue(hotKeys.isHot("b"));
+        assertFalse(hotKeys.isHot("cold999"));
+    }
+
+    @Test
+    public void samplesOneReadInSampleRate() {
+        HotKeys hotKeys = hotKeys(1, 10);
+        // Reads 1, 11 and 21 are sampled
+        for (int i = 0; i < 30; i++) {
+            hotKeys.sample("a");
+        }
+        hotKeys.refresh();
+        assertFalse(hotKeys.isHot("a"));
+
+        hotKeys = hotKeys(1, 10);
+        for (int i = 0; i < 31; i++) {
+            hotKeys.sample("a");
+        }
+        hotKeys.refresh();
+        assertTrue(hotKeys.isHot("a"));
+        assertEquals(Long.valueOf(4 * 10 / 2), hotKeys.getTopKeys().get("a"));
+    }
+
+    @Test
+    public void keyTakingOverCounterInheritsItsCountAsError() {
+        HotKeys hotKeys = hotKeys(1, 1);
+        for (int i = 0; i < 8; i++) {
+            hotKeys.sample("cold" + i);
+        }
+        // Taking over a counter of 1 makes 3 samples count 4, of which only 3 are certain
+        for (int i = 0; i < 3; i++) {
+            hotKeys.sample("a");
+        }
+        hotKeys.refresh();
+        assertFalse(hotKeys.isHot("a"));
+
+        hotKeys = hotKeys(1, 1);
+        for (int i = 0; i < 8; i++) {
+            hotKeys.sample("cold" + i);
+        }
+        for (int i = 0; i < 4; i++) {
+            hotKeys.sample("a");
+        }
+        hotKeys.refresh();
+        assertTrue(hotKeys.isHot("a"));
+    }
+
+    @Test
+    public void keysCoolDownAsCountsDecay() {
+        HotKeys hotKeys = hotKeys(1, 1);
+        for (int i = 0; i < 8; i++) {
+            hotKeys.sample("a");
+        }
+        hotKeys.refresh();
+        assertTrue(hotKeys.isHot("a"));
+        hotKeys.refresh();
+        assertTrue(hotKeys.isHot("a"));
+        hotKeys.refresh();
+        assertFalse(hotKeys.isHot("a"));
+        assertTrue(hotKeys.getTopKeys().isEmpty());
+    }
+
+    @Test
+    public void tracksSkewedTrafficThroughDecays() {
+        HotKeys hotKeys = hotKeys(4, 1);
+        Random random = new Random(42);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 20000; i++) {
+                // Key n is read about twice as often as key n + 1
+                int n = Math.min(Long.numberOfTrailingZeros(random.nextLong() | Long.MIN_VALUE), 20);
+                hotKeys.sample(n < 4 ? "hot" + n : "cold" + random.nextInt(100000));
+            }
+            hotKeys.refresh();
+        }
+        assertEquals(Arrays.asList("hot0", "hot1", "hot2", "hot3"), new ArrayList<String>(hotKeys.getTopKeys().keySet()));
+    }
+
+    /**
+     * @return hot keys that are only refreshed by the test
+     */
+    private HotKeys hotKeys(int topK, int sampleRate) {
+        HotKeys hotKeys = new HotKeys(topK, sampleRate, 1, TimeUnit.SECONDS, scheduler);
+        // Cancels the periodic refresh
+        scheduler.shutdown();
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        return hotKeys;
+    }
+}
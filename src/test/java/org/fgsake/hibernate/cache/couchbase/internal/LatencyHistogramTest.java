@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void summarizesRecordedLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.MINUTES);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        assertWithinBucket(500, snapshot.getP50());
+        assertWithinBucket(990, snapshot.getP99());
+        assertWithinBucket(999, snapshot.getP999());
+    }
+
+    @Test
+    public void bucketsBoundTheirValues() {
+        for (long v = 0; v < 1 << 20; v += 1 + v / 7) {
+            int bucket = LatencyHistogram.bucket(v);
+            assertTrue(v <= LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || v > LatencyHistogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void clampsVeryLongLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.MINUTES);
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(TimeUnit.HOURS.toNanos(1));
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        // Both land in the largest bucket, which ends just under 2^37 ns
+        assertEquals(((1L << 37) - 1) / 1000.0, snapshot.getP50(), 0.001);
+    }
+
+    @Test
+    public void intervalCoversOnlyLatenciesSinceThePreviousOne() {
+        LatencyHistogram histogram = new LatencyHistogram(0, TimeUnit.SECONDS);
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertEquals(10, histogram.intervalSnapshot().getCount());
+
+        for (int i = 0; i < 5; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        LatencySnapshot interval = histogram.intervalSnapshot();
+        assertEquals(5, interval.getCount());
+        assertWithinBucket(100, interval.getP999());
+        assertEquals(15, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void intervalIsEmptyUntilItEnds() {
+        LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.MINUTES);
+        histogram.record(1000);
+        assertEquals(0, histogram.intervalSnapshot().getCount());
+    }
+
+    /**
+     * Checks a percentile, allowing for the 12.5% bucket width.
+     */
+    private static void assertWithinBucket(double expected, double actual) {
+        assertTrue(actual + " vs " + expected, actual >= expected && actual <= expected * 1.125 + 1);
+    }
+}
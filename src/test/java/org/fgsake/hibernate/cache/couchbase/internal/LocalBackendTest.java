@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalBackendTest {
+    private final Transcoder<Object> tc = new SerializingTranscoder();
+    private LocalBackend backend;
+
+    @Before
+    public void setUp() {
+        backend = new LocalBackend(64 * 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        backend.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void addOnlyStoresMissingItems() throws Exception {
+        OperationFuture<Boolean> added = backend.add("k", 0, "a", tc);
+        assertTrue(added.get());
+        assertTrue(added.getStatus().isSuccess());
+
+        OperationFuture<Boolean> again = backend.add("k", 0, "b", tc);
+        assertFalse(again.get());
+        assertEquals(StatusCode.ERR_EXISTS, again.getStatus().getStatusCode());
+        assertEquals("a", backend.get("k", tc));
+    }
+
+    @Test
+    public void everyWriteChangesCas() throws Exception {
+        backend.set("k", 0, "a", tc).get();
+        long first = backend.gets("k", tc).getCas();
+        backend.set("k", 0, "b", tc).get();
+        long second = backend.gets("k", tc).getCas();
+        assertFalse(first == second);
+
+        backend.incr("n", 1, 0, 0);
+        long counter = backend.gets("n", tc).getCas();
+        backend.incr("n", 1, 0, 0);
+        assertFalse(counter == backend.gets("n", tc).getCas());
+    }
+
+    @Test
+    public void touchKeepsCas() throws Exception {
+        backend.set("k", 0, "a", tc).get();
+        long cas = backend.gets("k", tc).getCas();
+        assertTrue(backend.touch("k", 60).get());
+        assertEquals(cas, backend.gets("k", tc).getCas());
+    }
+
+    @Test
+    public void casOnlyReplacesMatchingItem() throws Exception {
+        assertEquals(CASResponse.NOT_FOUND, backend.cas("k", 1, 0, "a", tc));
+
+        backend.set("k", 0, "a", tc).get();
+        CASValue<Object> current = backend.gets("k", tc);
+        assertEquals(CASResponse.OK, backend.cas("k", current.getCas(), 0, "b", tc));
+        assertEquals(CASResponse.EXISTS, backend.cas("k", current.getCas(), 0, "c", tc));
+        assertEquals("b", backend.get("k", tc));
+
+        OperationFuture<CASResponse> stale = backend.asyncCAS("k", current.getCas(), 0, "c", tc);
+        assertEquals(CASResponse.EXISTS, stale.get());
+        assertEquals(StatusCode.ERR_EXISTS, stale.getStatus().getStatusCode());
+        OperationFuture<CASResponse> missing = backend.asyncCAS("missing", 1, 0, "c", tc);
+        assertEquals(CASResponse.NOT_FOUND, missing.get());
+        assertEquals(StatusCode.ERR_NOT_FOUND, missing.getStatus().getStatusCode());
+    }
+
+    @Test
+    public void deleteAndTouchReportMissingItems() throws Exception {
+        OperationFuture<Boolean> delete = backend.delete("k");
+        assertFalse(delete.get());
+        assertEquals(StatusCode.ERR_NOT_FOUND, delete.getStatus().getStatusCode());
+        assertFalse(backend.touch("k", 60).get());
+
+        backend.set("k", 0, "a", tc).get();
+        assertTrue(backend.delete("k").get());
+        assertNull(backend.get("k", tc));
+    }
+
+    @Test
+    public void negativeExpiryExpiresAtOnce() throws Exception {
+        backend.set("k", -1, "a", tc).get();
+        assertNull(backend.get("k", tc));
+
+        backend.set("k", 0, "a", tc).get();
+        backend.touch("k", -1).get();
+        assertNull(backend.get("k", tc));
+    }
+
+    @Test
+    public void expiriesBeyondThirtyDaysAreAbsolute() throws Exception {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        backend.set("past", now - 10, "a", tc).get();
+        backend.set("future", now + 3600, "a", tc).get();
+        backend.set("relative", (int) TimeUnit.DAYS.toSeconds(30), "a", tc).get();
+
+        assertNull(backend.get("past", tc));
+        assertEquals("a", backend.get("future", tc));
+        assertEquals("a", backend.get("relative", tc));
+    }
+
+    @Test
+    public void expiredItemsCanBeAddedAgain() throws Exception {
+        backend.set("k", -1, "a", tc).get();
+        assertTrue(backend.add("k", 0, "b", tc).get());
+        assertEquals("b", backend.get("k", tc));
+    }
+
+    @Test
+    public void getBulkSkipsMissingAndExpiredItems() throws Exception {
+        backend.set("a", 0, "1", tc).get();
+        backend.set("b", -1, "2", tc).get();
+        Map<String, Object> values = backend.getBulk(Arrays.asList("a", "b", "c"), tc);
+        assertEquals(Collections.<String, Object>singletonMap("a", "1"), values);
+        assertEquals(values, backend.asyncGetBulk(Arrays.asList("a", "b", "c"), tc).get());
+    }
+
+    @Test
+    public void incrCreatesMissingCounterWithDefault() {
+        assertEquals(5, backend.incr("n", 1, 5, 0));
+        assertEquals("5", backend.get("n", tc));
+        assertEquals(7, backend.incr("n", 2, 5, 0));
+        assertEquals(7, backend.incr("n", 0, 5, 0));
+        assertEquals("7", backend.get("n", tc));
+    }
+
+    @Test
+    public void incrKeepsExpiry() throws Exception {
+        // An absolute expiry a second away at most
+        int soon = (int) (System.currentTimeMillis() / 1000) + 1;
+        assertEquals(5, backend.incr("n", 1, 5, soon));
+        assertEquals(6, backend.incr("n", 1, 0, 0));
+
+        Thread.sleep(1100);
+        assertNull(backend.get("n", tc));
+    }
+
+    @Test
+    public void incrFailsOnNonNumericValue() throws Exception {
+        backend.set("k", 0, "abc", tc).get();
+        assertEquals(-1, backend.incr("k", 1, 0, 0));
+        assertEquals("abc", backend.get("k", tc));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedItems() throws Exception {
+        backend.shutdown(0, TimeUnit.SECONDS);
+        backend = new LocalBackend(16 * 1024);
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+
+        backend.set("hot", 0, value, tc).get();
+        for (int i = 0; i < 1000; i++) {
+            backend.set("k" + i, 0, value, tc).get();
+            assertEquals(value, backend.get("hot", tc));
+        }
+        assertNull(backend.get("k0", tc));
+        assertEquals(value, backend.get("k999", tc));
+        assertTrue(backend.size() < 200);
+    }
+
+    @Test
+    public void keepsItemLargerThanSegment() throws Exception {
+        backend.shutdown(0, TimeUnit.SECONDS);
+        backend = new LocalBackend(16 * 1024);
+        byte[] big = new byte[4096];
+        backend.set("big", 0, big, tc).get();
+        assertEquals(4096, ((byte[]) backend.get("big", tc)).length);
+    }
+}
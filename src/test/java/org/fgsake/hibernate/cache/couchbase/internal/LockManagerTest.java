@@ -0,0 +1,328 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.OperationStatus;
+import org.fgsake.hibernate.cache.couchbase.CacheBackend;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LockManagerTest {
+    private static final Comparator<Object> VERSIONS = new Comparator<Object>() {
+        public int compare(Object a, Object b) {
+            return ((Long) a).compareTo((Long) b);
+        }
+    };
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMicros(30);
+
+    private LocalBackend backend;
+    private ClientWrapper client;
+    private LockManager locks;
+
+    @Before
+    public void setUp() {
+        backend = new LocalBackend(64 * 1024 * 1024);
+        client = new ClientWrapper(backend, new CacheTranscoder(new JavaValueSerializer(), true, null, 0), null, null);
+        locks = new LockManager(client, 3, 100, 1000, TimeUnit.MICROSECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        backend.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void locksMissingEntry() {
+        long now = Timestamper.nextTimestamp();
+        locks.lock("k", 1L, now + TIMEOUT, 0);
+        CacheLock lock = (CacheLock) client.get("k");
+        assertEquals(1, lock.getCount());
+        assertEquals(1L, lock.getVersion());
+        assertFalse(lock.writable(Timestamper.nextTimestamp(), 2L, VERSIONS, 0));
+    }
+
+    @Test
+    public void lockReplacesCachedData() {
+        client.set("k", 0, new CacheData(Timestamper.nextTimestamp(), 1L, "old", 0));
+        locks.lock("k", 1L, Timestamper.nextTimestamp() + TIMEOUT, 0);
+        assertTrue(client.get("k") instanceof CacheLock);
+    }
+
+    @Test
+    public void unlockTimestampOrdersLaterTransactions() {
+        locks.lock("k", 1L, Timestamper.nextTimestamp() + TIMEOUT, 0);
+        long unlockedAt = Timestamper.nextTimestamp();
+        locks.unlock("k", unlockedAt);
+        // Timestamps can repeat within a microsecond, so don't read more of them
+        long before = unlockedAt - 1;
+        long after = unlockedAt + 1;
+
+        CacheLock lock = (CacheLock) client.get("k");
+        assertEquals(0, lock.getCount());
+        assertEquals(unlockedAt, lock.getUnlockTimestamp());
+        // A transaction that started before the unlock may have read the old value
+        assertFalse(lock.writable(before, 2L, VERSIONS, 0));
+        assertTrue(lock.writable(after, 2L, VERSIONS, 0));
+        assertFalse(lock.writable(after, 1L, VERSIONS, 0));
+    }
+
+    @Test
+    public void concurrentLocksStayUntilTimeout() {
+        long timeout = Timestamper.nextTimestamp() + TIMEOUT;
+        locks.lock("k", 1L, timeout, 0);
+        locks.lock("k", 1L, timeout, 0);
+        CacheLock lock = (CacheLock) client.get("k");
+        assertEquals(2, lock.getCount());
+        assertTrue(lock.isConcurrent());
+
+        locks.unlock("k", Timestamper.nextTimestamp());
+        locks.unlock("k", Timestamper.nextTimestamp());
+        lock = (CacheLock) client.get("k");
+        assertEquals(0, lock.getCount());
+        assertFalse(lock.writable(Timestamper.nextTimestamp(), 2L, VERSIONS, 0));
+        assertTrue(lock.writable(timeout + 1, 2L, VERSIONS, 0));
+    }
+
+    @Test
+    public void unlockOfMissingEntryDoesNothing() {
+        locks.unlock("k", Timestamper.nextTimestamp());
+        assertNull(client.get("k"));
+    }
+
+    @Test
+    public void updateReplacesLastLockWithValue() {
+        long locked = Timestamper.nextTimestamp();
+        locks.lock("k", 1L, locked + TIMEOUT, 0);
+        assertTrue(locks.update("k", 2L, "new", 0, 60));
+
+        CacheData data = (CacheData) client.get("k");
+        assertEquals("new", data.getValue());
+        assertEquals(2L, data.getVersion());
+        assertTrue(data.getTimestamp() > locked);
+    }
+
+    @Test
+    public void updateKeepsLockOthersHold() {
+        long timeout = Timestamper.nextTimestamp() + TIMEOUT;
+        locks.lock("k", 1L, timeout, 0);
+        locks.lock("k", 1L, timeout, 0);
+        assertTrue(locks.update("k", 2L, "new", 0, 60));
+
+        CacheLock lock = (CacheLock) client.get("k");
+        assertEquals(1, lock.getCount());
+    }
+
+    @Test
+    public void updateWithoutLockFails() {
+        assertFalse(locks.update("k", 2L, "new", 0, 60));
+        client.set("k", 0, new CacheData(Timestamper.nextTimestamp(), 1L, "old", 0));
+        assertFalse(locks.update("k", 2L, "new", 0, 60));
+        assertEquals("old", ((CacheData) client.get("k")).getValue());
+    }
+
+    @Test
+    public void batchedReleasesApplyInOrder() throws InterruptedException {
+        ReleaseBatcher batcher = new ReleaseBatcher(1, TimeUnit.MILLISECONDS, 64);
+        try {
+            LockManager batched = new LockManager(client, 3, 100, 1000, TimeUnit.MICROSECONDS, batcher);
+            long timeout = Timestamper.nextTimestamp() + TIMEOUT;
+            batched.lock("k", 1L, timeout, 0);
+            batched.lock("k", 1L, timeout, 0);
+            batched.unlock("k", Timestamper.nextTimestamp());
+            assertTrue(batched.update("k", 2L, "new", 0, 60));
+
+            for (int i = 0; i < 100 && (batcher.size() > 0 || ((CacheLock) client.get("k")).getCount() > 0); i++) {
+                Thread.sleep(10);
+            }
+            // The first holder's unlock left the lock concurrent, so the update can't replace it
+            CacheLock lock = (CacheLock) client.get("k");
+            assertEquals(0, lock.getCount());
+            assertTrue(lock.isConcurrent());
+        } finally {
+            batcher.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void releaseDropsKeyWhoseGetsTimesOut() {
+        ClientWrapper faulty = faultyClient(Collections.<String, Exception>singletonMap("hung", new TimeoutException()),
+                Collections.<String, Exception>emptyMap());
+        LockManager locks = new LockManager(faulty, 3, 100, 1000, TimeUnit.MICROSECONDS);
+        assertReleaseDrops(locks, "hung");
+    }
+
+    @Test
+    public void releaseDropsKeyWhoseGetsFails() {
+        ClientWrapper faulty = faultyClient(Collections.<String, Exception>singletonMap("failed", new IllegalStateException()),
+                Collections.<String, Exception>emptyMap());
+        LockManager locks = new LockManager(faulty, 3, 100, 1000, TimeUnit.MICROSECONDS);
+        assertReleaseDrops(locks, "failed");
+    }
+
+    @Test
+    public void releaseDropsKeyWhoseCasTimesOut() {
+        ClientWrapper faulty = faultyClient(Collections.<String, Exception>emptyMap(),
+                Collections.<String, Exception>singletonMap("hung", new TimeoutException()));
+        LockManager locks = new LockManager(faulty, 3, 100, 1000, TimeUnit.MICROSECONDS);
+        assertReleaseDrops(locks, "hung");
+    }
+
+    @Test
+    public void releaseDefersContendedKeyWithKeysQueuedAfterIt() {
+        LockManager locks = new LockManager(contendedClient("hot", 1), 3, 100, 1000, TimeUnit.MICROSECONDS);
+        long timeout = Timestamper.nextTimestamp() + TIMEOUT;
+        locks.lock("hot", 1L, timeout, 0);
+        locks.lock("hot", 1L, timeout, 0);
+        locks.lock("k", 1L, timeout, 0);
+        long now = Timestamper.nextTimestamp();
+        LockManager.Release first = new LockManager.Release(locks, "hot", now);
+        LockManager.Release second = new LockManager.Release(locks, "hot", now);
+        long before = System.nanoTime();
+        List<LockManager.Release> deferred = locks.release(Arrays.asList(first, new LockManager.Release(locks, "k", now), second));
+
+        assertEquals(Arrays.asList(first, second), deferred);
+        assertEquals(1, first.retries);
+        assertTrue(first.notBefore >= before);
+        assertEquals(2, ((CacheLock) client.get("hot")).getCount());
+        assertEquals(0, ((CacheLock) client.get("k")).getCount());
+
+        assertTrue(locks.release(deferred).isEmpty());
+        assertEquals(0, ((CacheLock) client.get("hot")).getCount());
+        assertEquals(0, locks.getDroppedCount());
+    }
+
+    @Test
+    public void releaseDropsKeyOutOfRetries() {
+        LockManager locks = new LockManager(contendedClient("hot", Integer.MAX_VALUE), 3, 100, 1000, TimeUnit.MICROSECONDS);
+        locks.lock("hot", 1L, Timestamper.nextTimestamp() + TIMEOUT, 0);
+        List<LockManager.Release> deferred = Arrays.asList(new LockManager.Release(locks, "hot", Timestamper.nextTimestamp()));
+        for (int i = 0; i < 3; i++) {
+            deferred = locks.release(deferred);
+            assertEquals(1, deferred.size());
+        }
+        assertTrue(locks.release(deferred).isEmpty());
+        assertEquals(1, locks.getDroppedCount());
+        assertEquals(3, locks.getRetryCount());
+    }
+
+    @Test
+    public void batcherRetriesContendedRelease() throws InterruptedException {
+        ReleaseBatcher batcher = new ReleaseBatcher(1, TimeUnit.MILLISECONDS, 64);
+        try {
+            LockManager batched = new LockManager(contendedClient("k", 2), 3, 100, 1000, TimeUnit.MICROSECONDS, batcher);
+            batched.lock("k", 1L, Timestamper.nextTimestamp() + TIMEOUT, 0);
+            assertTrue(batched.update("k", 2L, "new", 0, 60));
+
+            for (int i = 0; i < 100 && !(client.get("k") instanceof CacheData); i++) {
+                Thread.sleep(10);
+            }
+            assertEquals("new", ((CacheData) client.get("k")).getValue());
+            assertEquals(2, batched.getRetryCount());
+        } finally {
+            batcher.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Releases {@code faultyKey} ahead of a healthy key and checks that only
+     * the faulty one is dropped.
+     */
+    private void assertReleaseDrops(LockManager locks, String faultyKey) {
+        long timeout = Timestamper.nextTimestamp() + TIMEOUT;
+        locks.lock(faultyKey, 1L, timeout, 0);
+        locks.lock("k", 1L, timeout, 0);
+        long now = Timestamper.nextTimestamp();
+        locks.release(Arrays.asList(new LockManager.Release(locks, faultyKey, now), new LockManager.Release(locks, "k", now)));
+
+        assertEquals(1, ((CacheLock) client.get(faultyKey)).getCount());
+        assertEquals(0, ((CacheLock) client.get("k")).getCount());
+        assertEquals(1, locks.getDroppedCount());
+    }
+
+    /**
+     * @return a client sharing the test's backend whose {@code gets} and
+     *         {@code cas} of the given keys fail with the given exceptions,
+     *         thrown as {@link OperationFuture#get(long, TimeUnit)} would
+     */
+    private ClientWrapper faultyClient(final Map<String, Exception> getsFaults, final Map<String, Exception> casFaults) {
+        CacheTranscoder transcoder = new CacheTranscoder(new JavaValueSerializer(), true, null, 0);
+        return new ClientWrapper(new CacheBackend[] {backend}, transcoder, null, null, 0, 50) {
+            @Override
+            public OperationFuture<CASValue<Object>> asyncGets(String key) {
+                Exception fault = getsFaults.get(key);
+                return fault != null ? LockManagerTest.<CASValue<Object>>failed(key, fault) : super.asyncGets(key);
+            }
+
+            @Override
+            public OperationFuture<CASResponse> asyncCAS(String key, long casId, int exp, Object value) {
+                Exception fault = casFaults.get(key);
+                return fault != null ? LockManagerTest.<CASResponse>failed(key, fault) : super.asyncCAS(key, casId, exp, value);
+            }
+        };
+    }
+
+    /**
+     * @return a client sharing the test's backend whose first {@code times}
+     *         async CAS of {@code key} lose a race
+     */
+    private ClientWrapper contendedClient(final String key, final int times) {
+        final AtomicInteger lost = new AtomicInteger();
+        CacheTranscoder transcoder = new CacheTranscoder(new JavaValueSerializer(), true, null, 0);
+        return new ClientWrapper(new CacheBackend[] {backend}, transcoder, null, null, 0, 50) {
+            @Override
+            public OperationFuture<CASResponse> asyncCAS(String k, long casId, int exp, Object value) {
+                if (k.equals(key) && lost.getAndIncrement() < times) {
+                    return new CompletedFuture<CASResponse>(k, CASResponse.EXISTS, new OperationStatus(false, "Exists"), null);
+                }
+                return super.asyncCAS(k, casId, exp, value);
+            }
+        };
+    }
+
+    private static <T> OperationFuture<T> failed(String key, final Exception fault) {
+        return new OperationFuture<T>(key, new CountDownLatch(1), 0, null) {
+            @Override
+            public T get(long duration, TimeUnit unit) throws ExecutionException, TimeoutException {
+                if (fault instanceof TimeoutException) {
+                    throw (TimeoutException) fault;
+                }
+                throw (RuntimeException) fault;
+            }
+        };
+    }
+}
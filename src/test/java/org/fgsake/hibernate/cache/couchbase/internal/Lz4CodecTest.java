@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Lz4CodecTest {
+    private final CompressionCodec codec = CompressionCodec.LZ4;
+
+    @Test
+    public void roundTripsEmpty() throws IOException {
+        assertRoundTrips(new byte[0]);
+    }
+
+    @Test
+    public void roundTripsInputTooShortToMatch() throws IOException {
+        for (int n = 1; n <= 16; n++) {
+            byte[] data = new byte[n];
+            Arrays.fill(data, (byte) 'a');
+            assertRoundTrips(data);
+        }
+    }
+
+    @Test
+    public void roundTripsLongMatches() throws IOException {
+        // Match lengths well past 15 + 255 need several length bytes
+        byte[] data = new byte[100000];
+        byte[] compressed = assertRoundTrips(data);
+        assertTrue(compressed.length < 500);
+    }
+
+    @Test
+    public void roundTripsLongLiteralRuns() throws IOException {
+        byte[] data = random(100000, 1);
+        byte[] compressed = assertRoundTrips(data);
+        assertTrue(compressed.length <= data.length + data.length / 255 + 16);
+    }
+
+    @Test
+    public void roundTripsOverlappingMatches() throws IOException {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) "abc".charAt(i % 3);
+        }
+        assertRoundTrips(data);
+    }
+
+    @Test
+    public void roundTripsMatchesAtMaxOffset() throws IOException {
+        byte[] block = random(1024, 2);
+        byte[] data = new byte[200000];
+        byte[] filler = random(data.length, 3);
+        System.arraycopy(filler, 0, data, 0, data.length);
+        // Repeats 65535 bytes apart, in range, and 65536 apart, out of range
+        System.arraycopy(block, 0, data, 1000, block.length);
+        System.arraycopy(block, 0, data, 1000 + 65535, block.length);
+        System.arraycopy(block, 0, data, 100000, block.length);
+        System.arraycopy(block, 0, data, 100000 + 65536, block.length);
+        assertRoundTrips(data);
+    }
+
+    @Test
+    public void roundTripsMixedData() throws IOException {
+        Random random = new Random(4);
+        byte[] data = new byte[1 << 20];
+        int i = 0;
+        while (i < data.length) {
+            int run = Math.min(1 + random.nextInt(300), data.length - i);
+            if (random.nextBoolean() && i > 70000) {
+                System.arraycopy(data, i - 1 - random.nextInt(70000), data, i, run);
+            } else {
+                for (int j = 0; j < run; j++) {
+                    data[i + j] = (byte) random.nextInt(16);
+                }
+            }
+            i += run;
+        }
+        assertRoundTrips(data);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedInput() throws IOException {
+        byte[] compressed = codec.compress(text());
+        codec.decompress(Arrays.copyOf(compressed, compressed.length - 3));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTrailingBytes() throws IOException {
+        byte[] compressed = codec.compress(text());
+        codec.decompress(Arrays.copyOf(compressed, compressed.length + 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBadOffset() throws IOException {
+        // One literal, then a match reaching back past the start
+        codec.decompress(new byte[] {0, 0, 0, 10, 0x10, 'a', 9, 0, 0x10, 'b'});
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNegativeLength() throws IOException {
+        codec.decompress(new byte[] {(byte) 0x80, 0, 0, 0, 0x10, 'a'});
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsLengthBeyondMaximumExpansion() throws IOException {
+        // Claims 2GB from a 2 byte block, which must fail before allocating it
+        codec.decompress(new byte[] {0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x10, 'a'});
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedLength() throws IOException {
+        codec.decompress(new byte[] {0, 0});
+    }
+
+    private byte[] assertRoundTrips(byte[] data) throws IOException {
+        byte[] compressed = codec.compress(data);
+        assertArrayEquals(data, codec.decompress(compressed));
+        return compressed;
+    }
+
+    private static byte[] text() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("entity #").append(i).append(" of the region, ");
+        }
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
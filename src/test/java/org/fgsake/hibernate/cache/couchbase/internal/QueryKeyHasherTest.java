@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.hibernate.cache.spi.FilterKey;
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.engine.spi.TypedValue;
+import org.hibernate.transform.CacheableResultTransformer;
+import org.hibernate.type.IntegerType;
+import org.hibernate.type.StringType;
+import org.hibernate.type.Type;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class QueryKeyHasherTest {
+    private static final String SQL = "select e.id from Entity e where e.name = ? and e.kind = :kind";
+
+    @Test
+    public void equalKeysHashTheSame() {
+        QueryKey a = key(SQL, "x", named("kind", 1, "owner", "y"), 0, 10, filters("f", "p", 1), null);
+        QueryKey b = key(SQL, "x", named("owner", "y", "kind", 1), 0, 10, filters("f", "p", 1), null);
+        assertEquals(a, b);
+        assertEquals(QueryKeyHasher.hash(a), QueryKeyHasher.hash(b));
+    }
+
+    @Test
+    public void positionalParametersChangeTheHash() {
+        String hash = QueryKeyHasher.hash(key(SQL, "x", null, null, null, null, null));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "y", null, null, null, null, null))));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, null, null, null, null, null, null))));
+    }
+
+    @Test
+    public void namedParametersChangeTheHash() {
+        String hash = QueryKeyHasher.hash(key(SQL, "x", named("kind", 1), null, null, null, null));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", named("kind", 2), null, null, null, null))));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", named("type", 1), null, null, null, null))));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", named("kind", "1"), null, null, null, null))));
+    }
+
+    @Test
+    public void filtersChangeTheHash() {
+        String hash = QueryKeyHasher.hash(key(SQL, "x", null, null, null, filters("f", "p", 1), null));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", null, null, null, filters("f", "p", 2), null))));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", null, null, null, filters("g", "p", 1), null))));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", null, null, null, null, null))));
+    }
+
+    @Test
+    public void pagingChangesTheHash() {
+        String hash = QueryKeyHasher.hash(key(SQL, "x", null, 0, 10, null, null));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", null, 10, 10, null, null))));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", null, 0, 20, null, null))));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", null, null, 10, null, null))));
+    }
+
+    @Test
+    public void transformerChangesTheHash() {
+        CacheableResultTransformer tuple = CacheableResultTransformer.create(null, null, new boolean[] {true, false});
+        CacheableResultTransformer other = CacheableResultTransformer.create(null, null, new boolean[] {false, true});
+        String hash = QueryKeyHasher.hash(key(SQL, "x", null, null, null, null, tuple));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", null, null, null, null, other))));
+        assertFalse(hash.equals(QueryKeyHasher.hash(key(SQL, "x", null, null, null, null, null))));
+    }
+
+    @Test
+    public void readsFieldsOfThisHibernateVersion() {
+        assertNotNull(QueryKeyHasher.fields(QueryKey.class, FilterKey.class, CacheableResultTransformer.class));
+    }
+
+    @Test
+    public void fallsBackToSerializationWhenFieldsAreMissing() {
+        assertNull(QueryKeyHasher.fields(Object.class, FilterKey.class, CacheableResultTransformer.class));
+        assertNull(QueryKeyHasher.fields(QueryKey.class, Object.class, CacheableResultTransformer.class));
+
+        QueryKey a = key(SQL, "x", null, 0, 10, null, null);
+        String hash = QueryKeyHasher.serializedHash(a);
+        assertEquals(hash, QueryKeyHasher.serializedHash(key(SQL, "x", null, 0, 10, null, null)));
+        assertFalse(hash.equals(QueryKeyHasher.serializedHash(key(SQL, "y", null, 0, 10, null, null))));
+        assertFalse(hash.equals(QueryKeyHasher.serializedHash(key(SQL, "x", null, 10, 10, null, null))));
+    }
+
+    private static Map<String, TypedValue> named(Object... namesAndValues) {
+        Map<String, TypedValue> params = new LinkedHashMap<String, TypedValue>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            Object value = namesAndValues[i + 1];
+            Type type = value instanceof Integer ? IntegerType.INSTANCE : StringType.INSTANCE;
+            params.put((String) namesAndValues[i], new TypedValue(type, value));
+        }
+        return params;
+    }
+
+    private static Set<FilterKey> filters(String name, String param, Object value) {
+        Map<String, Type> types = new HashMap<String, Type>();
+        types.put(param, IntegerType.INSTANCE);
+        Set<FilterKey> keys = new HashSet<FilterKey>();
+        keys.add(new FilterKey(name, Collections.singletonMap(param, value), types));
+        return keys;
+    }
+
+    // QueryKey's constructor is package-private; generateQueryKey needs a session
+    private static QueryKey key(String sql, String positional, Map<String, TypedValue> named, Integer firstRow,
+            Integer maxRows, Set<FilterKey> filters, CacheableResultTransformer transformer) {
+        Type[] types = positional == null ? new Type[0] : new Type[] {StringType.INSTANCE};
+        Object[] values = positional == null ? new Object[0] : new Object[] {positional};
+        try {
+            Constructor<QueryKey> constructor = QueryKey.class.getDeclaredConstructor(String.class, Type[].class,
+                    Object[].class, Map.class, Integer.class, Integer.class, Set.class, String.class,
+                    CacheableResultTransformer.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance(sql, types, values, named, firstRow, maxRows, filters, null, transformer);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
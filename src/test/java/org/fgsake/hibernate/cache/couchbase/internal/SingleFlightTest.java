@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+    private static final long LEASE_MILLIS = 100;
+
+    private ScheduledThreadPoolExecutor scheduler;
+    private SingleFlight flights;
+
+    @Before
+    public void setUp() {
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        flights = new SingleFlight(LEASE_MILLIS, TimeUnit.MILLISECONDS, scheduler);
+    }
+
+    @After
+    public void tearDown() {
+        flights.abortAll();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void firstMissLeads() throws InterruptedException {
+        assertNull(flights.join("k"));
+        assertEquals(1, flights.size());
+        assertNull("the leader doesn't wait for itself", flights.join("k"));
+        assertEquals(1, flights.size());
+    }
+
+    @Test
+    public void waiterGetsLeadersValue() throws InterruptedException {
+        flights = new SingleFlight(10, TimeUnit.SECONDS, scheduler);
+        assertNull(flights.join("k"));
+        Waiter waiter = waiter("k");
+
+        CacheData data = new CacheData(1, null, "v", 0);
+        flights.complete("k", data);
+        waiter.join(1000);
+        assertSame(data, waiter.value);
+        assertEquals(0, flights.size());
+    }
+
+    @Test
+    public void otherKeysDontWait() throws InterruptedException {
+        assertNull(flights.join("a"));
+        Waiter waiter = new Waiter("b");
+        waiter.start();
+        waiter.join(1000);
+        assertTrue(waiter.done);
+        assertNull(waiter.value);
+        assertEquals(2, flights.size());
+    }
+
+    @Test
+    public void abortLetsWaitersMiss() throws InterruptedException {
+        flights = new SingleFlight(10, TimeUnit.SECONDS, scheduler);
+        assertNull(flights.join("k"));
+        Waiter waiter = waiter("k");
+
+        flights.abort("k");
+        waiter.join(1000);
+        assertTrue(waiter.done);
+        assertNull(waiter.value);
+        assertEquals(0, flights.size());
+    }
+
+    @Test
+    public void abortAllLetsEveryWaiterMiss() throws InterruptedException {
+        flights = new SingleFlight(10, TimeUnit.SECONDS, scheduler);
+        assertNull(flights.join("a"));
+        assertNull(flights.join("b"));
+        Waiter a = waiter("a");
+        Waiter b = waiter("b");
+
+        flights.abortAll();
+        a.join(1000);
+        b.join(1000);
+        assertTrue(a.done && b.done);
+        assertEquals(0, flights.size());
+    }
+
+    @Test
+    public void waiterMissesWhenLeaseExpires() throws InterruptedException {
+        assertNull(flights.join("k"));
+        long start = System.nanoTime();
+        Waiter waiter = waiter("k");
+        waiter.join(10 * LEASE_MILLIS);
+        assertTrue(waiter.done);
+        assertNull(waiter.value);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS) / 2);
+        assertEquals("the expired flight is dropped", 0, flights.size());
+    }
+
+    @Test
+    public void nextMissTakesOverExpiredLease() throws InterruptedException {
+        assertNull(flights.join("k"));
+        Thread.sleep(2 * LEASE_MILLIS);
+
+        long start = System.nanoTime();
+        Waiter successor = new Waiter("k");
+        successor.start();
+        successor.join(1000);
+        assertTrue(successor.done);
+        assertNull(successor.value);
+        assertTrue("took over without waiting",
+                System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(LEASE_MILLIS));
+        assertEquals(1, flights.size());
+    }
+
+    @Test
+    public void purgeDropsExpiredLeases() throws InterruptedException {
+        assertNull(flights.join("old"));
+        Thread.sleep(2 * LEASE_MILLIS);
+        assertNull(flights.join("new"));
+
+        flights.purge();
+        assertEquals(1, flights.size());
+    }
+
+    /**
+     * Starts a thread joining {@code key} and returns once it's waiting.
+     */
+    private Waiter waiter(String key) throws InterruptedException {
+        Waiter waiter = new Waiter(key);
+        waiter.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (waiter.getState() != Thread.State.TIMED_WAITING && !waiter.done) {
+            assertTrue("waiter never blocked", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        return waiter;
+    }
+
+    private final class Waiter extends Thread {
+        private final String key;
+        volatile CacheData value;
+        volatile boolean done;
+
+        Waiter(String key) {
+            this.key = key;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                value = flights.join(key);
+                done = true;
+            } catch (InterruptedException e) {
+                // Test failed
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 For Goodness Sake, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fgsake.hibernate.cache.couchbase.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SizeEstimatorTest {
+    private LocalBackend backend;
+
+    @Before
+    public void setUp() {
+        backend = new LocalBackend(64 * 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        backend.shutdown(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void emptyRegionIsZero() {
+        SizeEstimator sizes = new SizeEstimator(client(), generation(client()), 60);
+        assertEquals(0, sizes.getElementCount());
+        assertEquals(0, sizes.getSizeInBytes());
+    }
+
+    @Test
+    public void countsDistinctKeys() {
+        ClientWrapper client = client();
+        Generations.Generation generation = generation(client);
+        SizeEstimator sizes = new SizeEstimator(client, generation, 60);
+        for (int pass = 0; pass < 3; pass++) {
+            for (int i = 0; i < 10000; i++) {
+                sizes.add(generation.prefix() + "E#" + i);
+            }
+        }
+        assertWithin(10000, sizes.getElementCount());
+    }
+
+    @Test
+    public void ignoresKeysOfOtherGenerations() {
+        ClientWrapper client = client();
+        SizeEstimator sizes = new SizeEstimator(client, generation(client), 60);
+        sizes.add("R@0:E#1");
+        assertEquals(0, sizes.getElementCount());
+    }
+
+    @Test
+    public void publishMergesNodes() {
+        ClientWrapper clientA = client();
+        ClientWrapper clientB = client();
+        Generations.Generation generation = generation(clientA);
+        SizeEstimator a = new SizeEstimator(clientA, generation, 60);
+        SizeEstimator b = new SizeEstimator(clientB, generation, 60);
+        for (int i = 0; i < 6000; i++) {
+            a.add(generation.prefix() + "E#" + i);
+        }
+        for (int i = 4000; i < 10000; i++) {
+            b.add(generation.prefix() + "E#" + i);
+        }
+
+        a.publish();
+        b.publish();
+        a.publish();
+
+        assertWithin(10000, a.getElementCount());
+        assertWithin(10000, b.getElementCount());
+        assertEquals(a.getElementCount(), b.getElementCount());
+    }
+
+    @Test
+    public void publishAddsBytesOnce() {
+        ClientWrapper client = client();
+        Generations.Generation generation = generation(client);
+        SizeEstimator sizes = new SizeEstimator(client, generation, 60);
+        for (int i = 0; i < 100; i++) {
+            String keyStr = generation.prefix() + "E#" + i;
+            client.set(keyStr, 60, new CacheData(1, null, "value", 1));
+            sizes.add(keyStr);
+        }
+        long before = sizes.getSizeInBytes();
+
+        sizes.publish();
+        sizes.publish();
+
+        assertTrue(before > 0);
+        assertEquals(before, sizes.getSizeInBytes());
+    }
+
+    @Test
+    public void newGenerationStartsOver() {
+        ClientWrapper client = client();
+        Generations.Generation generation = generation(client);
+        SizeEstimator sizes = new SizeEstimator(client, generation, 60);
+        for (int i = 0; i < 100; i++) {
+            sizes.add(generation.prefix() + "E#" + i);
+        }
+        sizes.publish();
+
+        generation.increment();
+
+        assertEquals(0, sizes.getElementCount());
+        assertEquals(0, sizes.getSizeInBytes());
+    }
+
+    @Test
+    public void toMapReportsEstimates() {
+        ClientWrapper client = client();
+        CouchbaseGeneralDataRegion region = new CouchbaseGeneralDataRegion(client, "R", generation(client),
+                new RegionSettings(60, 30000, false, -1, false, 0, 0));
+        for (int i = 0; i < 500; i++) {
+            region.put("Q" + i, "a query result of some length");
+        }
+
+        Map<?, ?> map = region.toMap();
+        long elementCount = (Long) map.get("elementCount");
+        long sizeInBytes = (Long) map.get("sizeInBytes");
+        assertWithin(500, elementCount);
+        assertEquals(region.getElementCountInMemory(), elementCount);
+        assertEquals(region.getSizeInMemory(), sizeInBytes);
+        assertEquals(sizeInBytes / elementCount, ((Long) map.get("averageSize")).longValue());
+        // Strings are stored as their UTF-8 bytes
+        assertWithin("a query result of some length".length(), sizeInBytes / elementCount);
+    }
+
+    private ClientWrapper client() {
+        return new ClientWrapper(backend, new CacheTranscoder(new JavaValueSerializer(), true, null, 0), null, null);
+    }
+
+    private static Generations.Generation generation(ClientWrapper client) {
+        return new Generations.Generation(client, "R", "R@generation", 1);
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + ", got " + actual, Math.abs(actual - expected) <= expected * 0.05);
+    }
+}